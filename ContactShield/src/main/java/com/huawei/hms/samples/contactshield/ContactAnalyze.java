@@ -23,25 +23,56 @@ import com.huawei.hms.samples.contactshield.contact.ContactWindow;
 import com.huawei.hms.samples.contactshield.contact.DiagnosisConfiguration;
 import com.huawei.hms.samples.contactshield.contact.ScanInfo;
 import com.huawei.hms.samples.contactshield.database.table.ScanData;
+import com.huawei.hms.samples.contactshield.ble.ContactBeacon;
+import com.huawei.hms.samples.contactshield.crypto.DscDerivationEngine;
+import com.huawei.hms.samples.contactshield.database.table.ContactDetailData;
+import com.huawei.hms.samples.contactshield.database.table.ContactWindowData;
+import com.huawei.hms.samples.contactshield.match.ContinuousKeyIndex;
+import com.huawei.hms.samples.contactshield.match.DayPartitionedKeyMatcher;
+import com.huawei.hms.samples.contactshield.match.DbScanDataMatcher;
+import com.huawei.hms.samples.contactshield.match.FilteredScanDataMatcher;
+import com.huawei.hms.samples.contactshield.match.HashScanDataMatcher;
+import com.huawei.hms.samples.contactshield.match.IScanDataMatcher;
+import com.huawei.hms.samples.contactshield.match.KeyFileLedger;
+import com.huawei.hms.samples.contactshield.match.KeyRevisions;
+import com.huawei.hms.samples.contactshield.match.MatchPlan;
+import com.huawei.hms.samples.contactshield.match.ParallelKeyMatcher;
+import com.huawei.hms.samples.contactshield.match.PeriodicKeyDeduplicator;
+import com.huawei.hms.samples.contactshield.match.PeriodicKeyUtil;
+import com.huawei.hms.samples.contactshield.match.ScanDscBloomFilter;
+import com.huawei.hms.samples.contactshield.match.ScanIntervalBitmap;
+import com.huawei.hms.samples.contactshield.match.SortMergeKeyMatcher;
+import com.huawei.hms.samples.contactshield.match.SortedRunMerger;
 import com.huawei.hms.samples.contactshield.util.GlobalSettings;
+import com.huawei.hms.samples.contactshield.util.KeyFileLoader;
 import com.huawei.hms.samples.contactshield.util.KeyFileParser;
+import com.huawei.hms.samples.contactshield.util.KeyFileVerifier;
 import com.huawei.hms.samples.contactshield.util.ParamsRangeChecker;
 import com.huawei.hms.samples.contactshield.contact.PeriodicKey;
-import com.huawei.hms.samples.contactshield.crypto.SupplementaryData;
-import com.huawei.hms.samples.contactshield.crypto.EncryptDecrypt;
+import com.huawei.hms.samples.contactshield.crypto.SdDecoder;
 import com.huawei.hms.samples.contactshield.crypto.Hkdf;
+import com.huawei.hms.samples.contactshield.crypto.HkdfEngine;
+import com.huawei.hms.samples.contactshield.crypto.MultiBufferHkdf;
+import com.huawei.hms.samples.contactshield.crypto.SupplementaryData;
 import com.huawei.hms.samples.contactshield.crypto.DynamicSharingCode;
 import com.huawei.hms.samples.contactshield.util.KeyGenUtil;
 import com.huawei.hms.samples.contactshield.util.RiskScoreCalculator;
+import com.huawei.hms.samples.contactshield.util.threadpool.StagePipeline;
+import com.huawei.hms.samples.contactshield.util.threadpool.ThreadExec;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Contact diagnosis Analyze
@@ -51,14 +82,38 @@ import java.util.List;
 public class ContactAnalyze {
     private static final String TAG = "ContactAnalyze";
 
+    // Keys matched at a time when the whole scan data is already indexed, while the next keys are decoded.
+    private static final int MATCH_CHUNK_KEYS = 16 * 1024;
+
+    // Key chunks parsed ahead of the match stage.
+    private static final int PIPELINE_KEY_CHUNKS = 2;
+
+    // Each chunk is already matched on all the cores by matchKeys(), more workers only help with small chunks.
+    private static final int PIPELINE_MATCH_WORKERS = 1;
+
+    // Detail lists matched ahead of the persist stage.
+    private static final int PIPELINE_DETAIL_LISTS = 4;
+
+    private static final String CONTINUOUS_KEY_SEPARATOR = "/";
+
     private static volatile ContactAnalyze instance;
 
     private ContactDataManage mContactDataManage = ContactDataManage.getInstance();
 
+    // The last diagnosis of each package in each mode, by getContinuousKey().
+    private final Map<String, ContinuousDiagnosis> mContinuousDiagnoses = new HashMap<>();
+
+    // Lock to protect mContinuousDiagnoses
+    private final Object mContinuousLock = new Object();
+
+    // Lock to keep the results of the continuous diagnoses from being updated while the package is diagnosed
+    private final Object mContinuousUpdateLock = new Object();
+
     /**
      * Constructor
      */
     private ContactAnalyze() {
+        mContactDataManage.setScanDataFlushListener(this::onScanDataFlushed);
     }
 
     /**
@@ -86,25 +141,286 @@ public class ContactAnalyze {
      */
     public boolean analyzeKeyFileList(List<File> fileList, DiagnosisConfiguration configuration,
         String token, String pkgName) {
-        // The implementation of the window mode.
-        if (GlobalSettings.TOKEN_WINDOW_MODE.equals(token)) {
-            return analyzeKeyFileListForWindow(fileList, pkgName);
+        // The window mode does not score the keys, it has no target.
+        List<DetailTarget> targets = GlobalSettings.TOKEN_WINDOW_MODE.equals(token)
+            ? Collections.<DetailTarget>emptyList()
+            : Collections.singletonList(new DetailTarget(token, configuration));
+        return !analyzeKeyFileList(fileList, targets, pkgName).isEmpty();
+    }
+
+    /**
+     * Analyze each key file in fileList with several configurations, such as a production configuration and the
+     * candidate tunings of the health authority. The keys are parsed, derived and matched once, only the matched
+     * keys are scored with each configuration. The results of each token are the same as analyzing the files with
+     * its configuration alone.
+     *
+     * @param fileList key file list
+     * @param configurations Configurations for calculating diagnosis results by token, the window mode excluded.
+     * @param pkgName Used to mark the same application.
+     * @return tokens contacted with input key file list, in the order of configurations
+     */
+    public List<String> analyzeKeyFileList(List<File> fileList, Map<String, DiagnosisConfiguration> configurations,
+        String pkgName) {
+        List<DetailTarget> targets = new ArrayList<>(configurations.size());
+        for (Map.Entry<String, DiagnosisConfiguration> entry : configurations.entrySet()) {
+            if (entry.getKey() == null || entry.getValue() == null
+                || GlobalSettings.TOKEN_WINDOW_MODE.equals(entry.getKey())) {
+                ContactShieldLog.e(TAG, "Skip invalid configuration of token " + entry.getKey());
+                continue;
+            }
+            targets.add(new DetailTarget(entry.getKey(), entry.getValue()));
+        }
+        if (targets.isEmpty()) {
+            return Collections.emptyList();
         }
+        return analyzeKeyFileList(fileList, targets, pkgName);
+    }
 
-        // The implementation of the contactDetail
-        return analyzeKeyFileListForDetail(fileList, configuration, token, pkgName);
+    private List<String> analyzeKeyFileList(List<File> fileList, List<DetailTarget> targets, String pkgName) {
+        long startTime = System.currentTimeMillis();
+        boolean isWindowMode = targets.isEmpty();
+        // The keys of the last diagnosis are replaced by the keys of this one.
+        stopContinuousDiagnosis(pkgName, isWindowMode);
+        long validInterval = getValidInterval();
+        long[] scanRange = mContactDataManage.getScanIntervalRange(validInterval);
+        // The files which can not match any scan data are skipped before their keys are read.
+        List<File> selectedFileList = selectKeyFileList(fileList, validInterval, scanRange);
+        // Scan data of the incubation period is shared by all the key files.
+        MatchSession session = createMatchSession(selectedFileList, pkgName, validInterval, scanRange);
+        try {
+            // The implementation of the window mode.
+            if (isWindowMode) {
+                return analyzeKeyFileListForWindow(selectedFileList, pkgName, session)
+                    ? Collections.singletonList(GlobalSettings.TOKEN_WINDOW_MODE)
+                    : Collections.<String>emptyList();
+            }
+
+            // The implementation of the contactDetail
+            return analyzeKeyFileListForDetail(selectedFileList, targets, pkgName, session);
+        } finally {
+            session.release();
+            ContactShieldLog.i(TAG, "Analyze " + selectedFileList.size() + " of " + fileList.size()
+                + " key files for " + targets.size() + " configurations with " + session.mPlan + ", "
+                + session.mLedger + ", " + session.mDeduplicator + ", " + session.mRevisions + " in "
+                + (System.currentTimeMillis() - startTime) + " ms");
+        }
     }
 
-    private boolean analyzeKeyFileListForWindow(List<File> fileList, String pkgName) {
-        boolean listUpdate = false;
+    /**
+     * Select the key files which may match the scan data, only the headers of the files are read.
+     * A file is published after all of its keys started, and the last of them can not live longer than a rolling
+     * period, so none of its keys can be valid after a rolling period since its end timestamp. The start timestamp
+     * does not bound the keys, they are published when they are reported, up to days after they were valid.
+     *
+     * @param fileList key file list
+     * @param validInterval first interval of the incubation period
+     * @param scanRange first and last intervals of the scan data, null if there is no scan data
+     * @return key files which may match, in the same order
+     */
+    private static List<File> selectKeyFileList(List<File> fileList, long validInterval, long[] scanRange) {
+        if (scanRange == null) {
+            ContactShieldLog.i(TAG, "No scan data since " + validInterval + ", skip all the key files");
+            return new ArrayList<>();
+        }
+        long firstInterval = Math.max(validInterval, scanRange[0]);
+        List<File> selectedFileList = new ArrayList<>(fileList.size());
         for (File file : fileList) {
-            List<PeriodicKey> keyList = KeyFileParser.parseFiles(file);
-            if (analyzePeriodicKeyListForContactWindow(keyList, pkgName)) {
-                listUpdate = true;
+            KeyFileParser.ExportHeader header = KeyFileParser.readExportHeader(file);
+            // Without the timestamps, the keys have to be checked one by one.
+            if (header != null && KeyGenUtil.getIntervalNumber(header.getEndTimestamp())
+                + GlobalSettings.PDK_ROLLING_PERIOD < firstInterval) {
+                ContactShieldLog.d(TAG, "Skip key file ending at " + header.getEndTimestamp());
+                continue;
+            }
+            selectedFileList.add(file);
+        }
+        return selectedFileList;
+    }
+
+    private MatchSession createMatchSession(List<File> fileList, String pkgName, long validInterval,
+        long[] scanRange) {
+        KeyFileVerifier verifier = new KeyFileVerifier(GlobalSettings.getVerificationKeys());
+        // The files diagnosed before are replaced by their candidate keys, they were verified then.
+        KeyFileLedger ledger = KeyFileLedger.load(pkgName, fileList, verifier);
+        // Without the bitmap, the DSCs of all the intervals are derived.
+        ScanIntervalBitmap bitmap = mContactDataManage.getScanIntervalBitmap(validInterval);
+        MatchPlan plan = createMatchPlan(fileList, ledger, validInterval);
+        ContactShieldLog.i(TAG, "Choose " + plan);
+        IScanDataMatcher matcher = null;
+        switch (plan.getStrategy()) {
+            case MatchPlan.STRATEGY_DB_PROBE:
+                matcher = addScanDscFilter(new DbScanDataMatcher(), validInterval);
+                break;
+            case MatchPlan.STRATEGY_HASH_JOIN:
+                matcher = addScanDscFilter(HashScanDataMatcher.create(validInterval, Long.MAX_VALUE), validInterval);
+                break;
+            default:
+                // The scan data is loaded by matchKeys().
+                break;
+        }
+        // The same key is often published in several of the files.
+        PeriodicKeyDeduplicator deduplicator = new PeriodicKeyDeduplicator(plan.getKeyNum());
+        // Without any scan data, the range is empty and no key can match.
+        long[] scanIntervals = scanRange != null ? scanRange : new long[] {validInterval, validInterval - 1};
+        return new MatchSession(validInterval, scanIntervals, plan, matcher, bitmap, deduplicator, ledger,
+            verifier);
+    }
+
+    private MatchPlan createMatchPlan(List<File> fileList, KeyFileLedger ledger, long validInterval) {
+        // The keys are counted from the sizes of the files, the files are parsed one by one later.
+        long keyNum = 0;
+        for (int i = 0; i < fileList.size(); i++) {
+            List<PeriodicKey> candidateKeys = ledger.getCandidateKeys(i);
+            keyNum += candidateKeys != null ? candidateKeys.size() : KeyFileParser.estimateKeyNum(fileList.get(i));
+        }
+        long scanDataNum = mContactDataManage.getScanDataNum(validInterval, Long.MAX_VALUE);
+        Runtime runtime = Runtime.getRuntime();
+        long availableHeap = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        return MatchPlan.create(keyNum, scanDataNum,
+            GlobalSettings.getGlobalContactShieldSetting().getIncubationPeriod(), availableHeap,
+            SortMergeKeyMatcher.getAvailableSpillSpace(), mContactDataManage.getScanDscFilter(validInterval) != null);
+    }
+
+    private static long getValidInterval() {
+        return (KeyGenUtil.getDayNumber() -
+                GlobalSettings.getGlobalContactShieldSetting().getIncubationPeriod()) * KeyGenUtil.INTERVAL_TO_DAY;
+    }
+
+    private IScanDataMatcher createScanDataMatcher(long startInterval, long endInterval, long maxIndexedNum) {
+        IScanDataMatcher matcher;
+        long scanDataNum = mContactDataManage.getScanDataNum(startInterval, endInterval);
+        if (scanDataNum > maxIndexedNum) {
+            // Too much scan data to be held in memory, search database for each DSC instead.
+            ContactShieldLog.i(TAG, "Scan data num " + scanDataNum + " exceeds index limit, use database matcher");
+            matcher = new DbScanDataMatcher();
+        } else {
+            matcher = HashScanDataMatcher.create(startInterval, endInterval);
+        }
+        return addScanDscFilter(matcher, startInterval);
+    }
+
+    private IScanDataMatcher addScanDscFilter(IScanDataMatcher matcher, long startInterval) {
+        // The filter is maintained when scan data is flushed, skip it if it is not built yet.
+        ScanDscBloomFilter filter = mContactDataManage.getScanDscFilter(startInterval);
+        if (filter == null) {
+            return matcher;
+        }
+        return new FilteredScanDataMatcher(filter, matcher);
+    }
+
+    /**
+     * Match the keys against the scan data matcher of the session. Without the matcher, the keys are joined with
+     * the scan data sorted by DSC, or matched day by day, as planned.
+     */
+    private <T> List<T> matchKeys(List<PeriodicKey> keyList, MatchSession session,
+        DayPartitionedKeyMatcher.PartitionAnalyzerFactory<T> factory) {
+        if (session.mMatcher != null) {
+            return ParallelKeyMatcher.match(keyList, factory.create(session.mMatcher));
+        }
+        if (session.mPlan.getStrategy() == MatchPlan.STRATEGY_SORT_MERGE) {
+            try {
+                return SortMergeKeyMatcher.match(keyList, session.mValidInterval, Long.MAX_VALUE,
+                    () -> createDscDeriver(session), factory);
+            } catch (IOException e) {
+                ContactShieldLog.e(TAG, "Sort merge join exception: " + e.getMessage() + ", match day by day");
+            }
+        }
+        // The next day is loaded while the current day is matched, each day takes half of the index limit.
+        return DayPartitionedKeyMatcher.match(keyList, session.mValidInterval,
+            (startInterval, endInterval) -> createScanDataMatcher(startInterval, endInterval,
+                HashScanDataMatcher.MAX_INDEXED_SCAN_DATA / 2), factory);
+    }
+
+    private SortMergeKeyMatcher.DscDeriver createDscDeriver(MatchSession session) {
+        // The DSCs are joined with the scan data later, no matcher is needed to derive them.
+        KeyMatchContext context = new KeyMatchContext(session, null);
+        return (keys, from, to, sink) -> {
+            for (int i = from; i < to; i++) {
+                if (!context.selectKey(keys, i, to)) {
+                    continue;
+                }
+                int dscNum = getTargetDsc(keys.get(i), context);
+                sink.add(i, context.mTargetDscData, dscNum);
+            }
+        };
+    }
+
+    private boolean analyzeKeyFileListForWindow(List<File> fileList, String pkgName, MatchSession session) {
+        AtomicBoolean listUpdate = new AtomicBoolean(false);
+        parseKeyFileList(fileList, session, keyList -> {
+            // A copy of a key would add the same windows again.
+            List<PeriodicKey> newKeyList = session.mDeduplicator.filter(keyList);
+            if (!newKeyList.isEmpty() && analyzePeriodicKeyListForContactWindow(newKeyList, pkgName, session)) {
+                listUpdate.set(true);
+            }
+            return true;
+        });
+        session.mLedger.save();
+        // The windows of the revised keys are patched, including the ones just added.
+        session.mRevisions.reviseContactWindows(pkgName);
+        startContinuousDiagnosis(pkgName, Collections.<DetailTarget>emptyList(), session);
+
+        return listUpdate.get();
+    }
+
+    private static void parseKeyFileList(List<File> fileList, MatchSession session,
+        StagePipeline.Emitter<List<PeriodicKey>> output) {
+        List<File> newFileList = new ArrayList<>();
+        for (int i = 0; i < fileList.size(); i++) {
+            if (session.mLedger.getCandidateKeys(i) == null) {
+                newFileList.add(fileList.get(i));
+            }
+        }
+        // The next files are loaded while the current one is parsed.
+        KeyFileLoader loader = new KeyFileLoader(newFileList);
+        try {
+            // In the order of the files, the first copy of a key wins.
+            for (int i = 0; i < fileList.size() && !Thread.currentThread().isInterrupted(); i++) {
+                List<PeriodicKey> candidateKeys = session.mLedger.getCandidateKeys(i);
+                if (candidateKeys != null) {
+                    session.mRevisions.addAll(session.mLedger.getRevisedKeys(i));
+                    if (!candidateKeys.isEmpty()) {
+                        output.emit(candidateKeys);
+                    }
+                    continue;
+                }
+                KeyFileParser.Export export = loader.next();
+                if (export == null) {
+                    continue;
+                }
+                // The signature is checked while the keys are decoded, no key is passed on before it is verified.
+                KeyFileVerifier.Verification verification = session.mVerifier.submit(export);
+                // The keys of a chunk are matched while the following chunks are decoded.
+                // The ledger keeps the candidates from the verified content, the file is not read again.
+                int fileIndex = i;
+                boolean isParsed = KeyFileParser.parseExport(export, getKeyChunkSize(session), keyList -> {
+                    if (verification.await()) {
+                        session.mLedger.recordParsedKeys(fileIndex, keyList);
+                        output.emit(keyList);
+                    }
+                }, revisedKey -> {
+                    if (verification.await()) {
+                        session.mLedger.recordParsedRevisedKey(fileIndex, revisedKey);
+                        session.mRevisions.add(revisedKey);
+                    }
+                });
+                if (!verification.await()) {
+                    ContactShieldLog.w(TAG, "Drop key file " + fileList.get(i).getName() + " failing verification");
+                } else if (isParsed) {
+                    session.mLedger.setVerifiedKeyId(i, verification.getKeyId());
+                } else {
+                    // The keys not decoded would be skipped by every later diagnosis, the file is parsed again.
+                    ContactShieldLog.w(TAG, "Key file " + fileList.get(i).getName() + " is not fully parsed");
+                }
             }
+        } finally {
+            loader.close();
         }
+    }
 
-        return listUpdate;
+    private static int getKeyChunkSize(MatchSession session) {
+        // The other strategies load the scan data for each key list, so they take all the keys of a file at once.
+        return session.mMatcher != null ? MATCH_CHUNK_KEYS : Integer.MAX_VALUE;
     }
 
     private ContactSketch mergeContactSketch(ContactSketch originSketch, ContactSketch newSketch) {
@@ -138,152 +454,464 @@ public class ContactAnalyze {
         return mergedSketch;
     }
 
-    private boolean analyzeKeyFileListForDetail(List<File> fileList, DiagnosisConfiguration configuration,
-        String token, String pkgName) {
+    private List<String> analyzeKeyFileListForDetail(List<File> fileList, List<DetailTarget> targets,
+        String pkgName, MatchSession session) {
         /* Clear stale data before every new diagnosis. */
         mContactDataManage.clearStaleSketchAndDetailData(pkgName);
-        /* Prepare empty contact sketch to generate id. */
-        ContactSketch originSketch = mContactDataManage.getContactSketch(pkgName, token);
-        if (originSketch == null) {
-            originSketch = new ContactSketch.Builder().build();
-            mContactDataManage.addContactSketchData(pkgName, token, originSketch);
+        // Written by the persist stage, which runs on this thread.
+        int targetNum = targets.size();
+        ContactSketch[] sketches = new ContactSketch[targetNum];
+        boolean[] isUpdated = new boolean[targetNum];
+        for (int i = 0; i < targetNum; i++) {
+            /* Prepare empty contact sketch to generate id. */
+            sketches[i] = mContactDataManage.getContactSketch(pkgName, targets.get(i).mToken);
+            if (sketches[i] == null) {
+                sketches[i] = new ContactSketch.Builder().build();
+                mContactDataManage.addContactSketchData(pkgName, targets.get(i).mToken, sketches[i]);
+            }
         }
-        boolean listUpdate = false;
-        for (File file : fileList) {
-            List<PeriodicKey> keyList = KeyFileParser.parseFiles(file);
-            List<ContactDetail> contactDetailList = analyzePeriodicKeyListForContactDetail(keyList, configuration,
-                token, pkgName);
-            ContactShieldLog.d(TAG, "contactDetailList size " + contactDetailList.size());
-            if (contactDetailList.size() > 0) {
-                ContactSketch newSketch = generateContactSketch(contactDetailList);
-                ContactSketch mergeSketch = mergeContactSketch(originSketch, newSketch);
+        // Parse, match and persist overlap, the sketches are merged for each list of details as it is persisted.
+        StagePipeline pipeline = new StagePipeline("detail");
+        StagePipeline.Channel<List<PeriodicKey>> keyChannel = pipeline.addSource("parse", PIPELINE_KEY_CHUNKS,
+            output -> parseKeyFileList(fileList, session, output));
+        // The copies of a key are dropped before they are derived, so they are not counted twice by the sketch.
+        StagePipeline.Channel<List<PeriodicKey>> newKeyChannel = pipeline.addStage("dedup", 1, keyChannel,
+            PIPELINE_KEY_CHUNKS, (keyList, output) -> {
+                List<PeriodicKey> newKeyList = session.mDeduplicator.filter(keyList);
+                if (!newKeyList.isEmpty()) {
+                    output.emit(newKeyList);
+                }
+            });
+        StagePipeline.Channel<List<ContactDetailData[]>> detailChannel = pipeline.addStage("match",
+            PIPELINE_MATCH_WORKERS, newKeyChannel, PIPELINE_DETAIL_LISTS, (keyList, output) -> {
+                List<ContactDetailData[]> keyDetailList = matchPeriodicKeyListForContactDetail(keyList, targets,
+                    session);
+                ContactShieldLog.d(TAG, "contactDetailList size " + keyDetailList.size());
+                if (!keyDetailList.isEmpty()) {
+                    output.emit(keyDetailList);
+                }
+            });
+        pipeline.addSink("persist", detailChannel, keyDetailList -> {
+            for (int i = 0; i < targetNum; i++) {
+                List<ContactDetailData> contactDetailDataList = getTargetDetailList(keyDetailList, i);
+                if (contactDetailDataList.isEmpty()) {
+                    continue;
+                }
+                mContactDataManage.addContactDetailDataList(pkgName, targets.get(i).mToken, contactDetailDataList);
+                List<ContactDetail> contactDetailList = new ArrayList<>(contactDetailDataList.size());
+                for (ContactDetailData contactDetailData : contactDetailDataList) {
+                    contactDetailList.add(contactDetailData.getContactDetail());
+                }
                 /* Update original sketch for next round */
-                originSketch = mergeSketch;
-                listUpdate = true;
+                sketches[i] = mergeContactSketch(sketches[i], generateContactSketch(contactDetailList));
+                isUpdated[i] = true;
+            }
+        });
+        boolean[] isRevised = new boolean[targetNum];
+        if (pipeline.run()) {
+            // The candidate keys are only complete when all the keys are matched.
+            session.mLedger.save();
+            // The details of the revised keys are patched, including the ones just persisted.
+            for (int i = 0; i < targetNum; i++) {
+                isRevised[i] = session.mRevisions.reviseContactDetails(pkgName, targets.get(i).mToken,
+                    targets.get(i).mConfiguration);
+                if (matchRevisedKeysWithoutDetail(pkgName, targets.get(i), session)) {
+                    // New details, the sketch is generated again from all the details of the token.
+                    isRevised[i] = true;
+                    isUpdated[i] = true;
+                }
+            }
+            startContinuousDiagnosis(pkgName, targets, session);
+        } else {
+            ContactShieldLog.e(TAG, "Diagnosis pipeline aborted, keep the details persisted so far");
+        }
+        ContactShieldLog.i(TAG, pipeline.getReport());
+        List<String> contactedTokens = new ArrayList<>();
+        for (int i = 0; i < targetNum; i++) {
+            String token = targets.get(i).mToken;
+            if (isRevised[i]) {
+                // The maximums and the capped sums of the sketch can not be taken back, it is generated again
+                // from the details of the token, without matching any key.
+                sketches[i] = generateContactSketch(mContactDataManage.getContactDetailList(pkgName, token));
+            }
+            if (isUpdated[i] || isRevised[i]) {
+                /* Must use updateContactSketchData() instead of addContactSketchData() to avoid removing detail
+                 * data. */
+                mContactDataManage.updateContactSketchData(pkgName, token, sketches[i]);
+            }
+            if (isUpdated[i]) {
+                contactedTokens.add(token);
             }
         }
-        if (listUpdate) {
-            /* Must use updateContactSketchData() instead of addContactSketchData() to avoid removing detail data. */
-            mContactDataManage.updateContactSketchData(pkgName, token, originSketch);
+        return contactedTokens;
+    }
+
+    private boolean matchRevisedKeysWithoutDetail(String pkgName, DetailTarget target, MatchSession session) {
+        // A key scored below the threshold has no detail to patch when a later file raises its risk level.
+        List<PeriodicKey> keyList = session.mRevisions.getRevisedKeysWithoutDetail(pkgName, target.mToken,
+            session.mLedger.getMatchedKeys());
+        if (keyList.isEmpty()) {
+            return false;
+        }
+        List<ContactDetailData> contactDetailDataList = getTargetDetailList(
+            matchPeriodicKeyListForContactDetail(keyList, Collections.singletonList(target), session), 0);
+        ContactShieldLog.i(TAG, "Match revised keys without detail: " + keyList.size() + ", contacted: "
+            + contactDetailDataList.size());
+        if (contactDetailDataList.isEmpty()) {
+            return false;
         }
-        return listUpdate;
+        mContactDataManage.addContactDetailDataList(pkgName, target.mToken, contactDetailDataList);
+        return true;
     }
 
     /**
-     * To analyze each key in keyList
+     * To match each key in keyList, and score each matched key with the configuration of each target
      *
      * @param keyList Periodic List
-     * @return List of ContactDetail
+     * @param targets tokens and configurations of the diagnosis
+     * @param session matcher and caches shared by the key files
+     * @return ContactDetailData of each matched key for each target, null if below the threshold of the target,
+     *     linked to the keys and not persisted yet
      */
-    private List<ContactDetail> analyzePeriodicKeyListForContactDetail(List<PeriodicKey> keyList,
-        DiagnosisConfiguration configuration, String token, String pkgName) {
-        List<ContactDetail> contactDetailList = new LinkedList<>();
+    private List<ContactDetailData[]> matchPeriodicKeyListForContactDetail(List<PeriodicKey> keyList,
+        List<DetailTarget> targets, MatchSession session) {
         if (keyList == null || keyList.size() == 0) {
             ContactShieldLog.e(TAG, "keyList is empty");
-            return contactDetailList;
+            return new LinkedList<>();
         }
-        long validInterval = (KeyGenUtil.getDayNumber() -
-                GlobalSettings.getGlobalContactShieldSetting().getIncubationPeriod()) * KeyGenUtil.INTERVAL_TO_DAY;
-        byte[] result = new byte[Hkdf.DEFAULT_SIZE];
-        RiskScoreCalculator calculator = new RiskScoreCalculator(configuration);
-        for (PeriodicKey key : keyList) {
-            List<ScanDataWithTxPower> validScanDataList = getScanDataListOfGivenKeyFromDb(key, validInterval, result);
-            if (validScanDataList.isEmpty()) {
-                // The local database does not contain data that has been contacted with the current key.
-                continue;
+        List<ContactDetailData[]> keyDetailList = matchKeys(keyList, session, matcher -> () -> {
+            // Scratch buffers, cipher state and calculators are owned by a single worker.
+            KeyMatchContext context = new KeyMatchContext(session, matcher);
+            RiskScoreCalculator[] calculators = new RiskScoreCalculator[targets.size()];
+            for (int i = 0; i < calculators.length; i++) {
+                calculators[i] = new RiskScoreCalculator(targets.get(i).mConfiguration);
             }
-            ContactDetail contactDetail = generateContactDetail(key, calculator, validScanDataList, configuration);
-            if (contactDetail == null) {
-                continue;
+            return (keys, from, to, resultList) -> {
+                for (int i = from; i < to; i++) {
+                    if (!context.selectKey(keys, i, to)) {
+                        continue;
+                    }
+                    PeriodicKey key = keys.get(i);
+                    List<ScanDataWithTxPower> validScanDataList = getScanDataListOfGivenKeyFromDb(key, context);
+                    if (validScanDataList.isEmpty()) {
+                        // The local database does not contain data that has been contacted with the current key.
+                        continue;
+                    }
+                    // Matched again by the next diagnoses, whatever the risk score is.
+                    session.mLedger.recordMatchedKey(context.mFingerprint, key);
+                    // The scan data is matched once, only the scores differ between the configurations.
+                    ContactDetailData[] contactDetailDatas = new ContactDetailData[targets.size()];
+                    boolean isContacted = false;
+                    for (int j = 0; j < calculators.length; j++) {
+                        ContactDetail contactDetail = generateContactDetail(key, calculators[j], validScanDataList,
+                            targets.get(j).mConfiguration);
+                        if (contactDetail == null) {
+                            continue;
+                        }
+                        // Linked to the key, so the detail can be patched when the key is revised.
+                        contactDetailDatas[j] = new ContactDetailData();
+                        contactDetailDatas[j].setContactDetail(contactDetail);
+                        contactDetailDatas[j].setKeyFingerprint(context.mFingerprint);
+                        isContacted = true;
+                    }
+                    if (isContacted) {
+                        resultList.add(contactDetailDatas);
+                    }
+                }
+            };
+        });
+        // The results are persisted by the next stage of the pipeline.
+        return keyDetailList;
+    }
+
+    private static List<ContactDetailData> getTargetDetailList(List<ContactDetailData[]> keyDetailList,
+        int target) {
+        List<ContactDetailData> contactDetailDataList = new ArrayList<>(keyDetailList.size());
+        for (ContactDetailData[] contactDetailDatas : keyDetailList) {
+            if (contactDetailDatas[target] != null) {
+                contactDetailDataList.add(contactDetailDatas[target]);
             }
-            contactDetailList.add(contactDetail);
-            mContactDataManage.addContactDetailData(pkgName, token, contactDetail);
         }
-
-        return contactDetailList;
+        return contactDetailDataList;
     }
 
     /**
      * Analyze PeriodicKey list for ContactWindow mode
      *
      * @param keyList Periodic Key List
-     * @return List of ContactWindow
+     * @param session matcher and caches shared by the key files
+     * @return true if any ContactWindow is added
      */
-    private boolean analyzePeriodicKeyListForContactWindow(List<PeriodicKey> keyList, String pkgName) {
-        boolean isUpdate = false;
+    private boolean analyzePeriodicKeyListForContactWindow(List<PeriodicKey> keyList, String pkgName,
+        MatchSession session) {
         if (keyList == null || keyList.size() == 0) {
             ContactShieldLog.e(TAG, "keyList is empty");
-            return isUpdate;
+            return false;
         }
-        long validInterval = (KeyGenUtil.getDayNumber() -
-                GlobalSettings.getGlobalContactShieldSetting().getIncubationPeriod()) * KeyGenUtil.INTERVAL_TO_DAY;
-        byte[] result = new byte[Hkdf.DEFAULT_SIZE];
-        for (PeriodicKey key : keyList) {
-            List<ScanDataWithTxPower> validScanDataList = getScanDataListOfGivenKeyFromDb(key, validInterval, result);
-            if (validScanDataList.isEmpty()) {
-                // The local database does not contain data that has been contacted with the current key.
-                ContactShieldLog.d(TAG, "No valid ScanData from DB");
-                continue;
+        List<ContactWindowData> contactWindowList = matchPeriodicKeyListForContactWindow(keyList, pkgName, session);
+        if (contactWindowList.isEmpty()) {
+            return false;
+        }
+        // Persist all the results of the key list at once.
+        mContactDataManage.addContactWindowDataList(contactWindowList);
+        return true;
+    }
+
+    /**
+     * To match each key in keyList for ContactWindow mode
+     *
+     * @param keyList Periodic Key List
+     * @param session matcher and caches shared by the key files
+     * @return List of ContactWindowData linked to the keys, not persisted yet
+     */
+    private List<ContactWindowData> matchPeriodicKeyListForContactWindow(List<PeriodicKey> keyList, String pkgName,
+        MatchSession session) {
+        return matchKeys(keyList, session, matcher -> () -> {
+            // Scratch buffers and cipher state are owned by a single worker.
+            KeyMatchContext context = new KeyMatchContext(session, matcher);
+            return (keys, from, to, resultList) -> {
+                for (int i = from; i < to; i++) {
+                    if (!context.selectKey(keys, i, to)) {
+                        continue;
+                    }
+                    PeriodicKey key = keys.get(i);
+                    List<ScanDataWithTxPower> validScanDataList = getScanDataListOfGivenKeyFromDb(key, context);
+                    if (validScanDataList.isEmpty()) {
+                        // The local database does not contain data that has been contacted with the current key.
+                        ContactShieldLog.d(TAG, "No valid ScanData from DB");
+                        continue;
+                    }
+                    session.mLedger.recordMatchedKey(context.mFingerprint, key);
+                    // The scan data of neighbouring DSCs overlaps in time, the windows are cut on the merged stream.
+                    List<ScanDataWithTxPower> timeOrderedList = context.mRunMerger.merge(validScanDataList,
+                        ScanDataWithTxPower.TIME_ORDER);
+                    // Linked to the key, so the windows can be patched when the key is revised.
+                    for (ContactWindow contactWindow : generateContactWindowListOfGivenKey(key, timeOrderedList)) {
+                        resultList.add(mContactDataManage.toContactWindowData(pkgName, context.mFingerprint,
+                            contactWindow));
+                    }
+                }
+            };
+        });
+    }
+
+    private static String getContinuousKey(String pkgName, boolean isWindowMode) {
+        // Only the last diagnosis of the package is kept, the window mode has its own.
+        return pkgName + CONTINUOUS_KEY_SEPARATOR + (isWindowMode ? GlobalSettings.TOKEN_WINDOW_MODE : "");
+    }
+
+    /**
+     * Keep the keys of the diagnosis which have not ended yet, so the scan data flushed later is matched against
+     * them by onScanDataFlushed() and the new contacts are added to the results of the diagnosis.
+     */
+    private void startContinuousDiagnosis(String pkgName, List<DetailTarget> targets, MatchSession session) {
+        if (!GlobalSettings.isContinuousDiagnosis()) {
+            return;
+        }
+        List<PeriodicKey> liveKeys = session.mRevisions.reviseKeys(session.mLedger.getLiveKeys());
+        // The same key may be published by several of the files.
+        liveKeys = new PeriodicKeyDeduplicator(liveKeys.size()).filter(liveKeys);
+        ContinuousKeyIndex index = ContinuousKeyIndex.create(liveKeys, session.mLedger.getWatermark());
+        if (index.getKeyNum() == 0) {
+            return;
+        }
+        synchronized (mContinuousLock) {
+            mContinuousDiagnoses.put(getContinuousKey(pkgName, targets.isEmpty()),
+                new ContinuousDiagnosis(pkgName, targets, index));
+        }
+        ContactShieldLog.i(TAG, "Start continuous diagnosis with " + index);
+    }
+
+    private void stopContinuousDiagnosis(String pkgName, boolean isWindowMode) {
+        // Waits for the update running, no result of the diagnosis is written afterwards.
+        synchronized (mContinuousUpdateLock) {
+            synchronized (mContinuousLock) {
+                mContinuousDiagnoses.remove(getContinuousKey(pkgName, isWindowMode));
             }
-            List<ContactWindow> resultList = generateContactWindowListOfGivenKey(key, validScanDataList);
-            if (!resultList.isEmpty()) {
-                mContactDataManage.addContactWindows(pkgName, resultList);
-                isUpdate = true;
+        }
+    }
+
+    /**
+     * Stop the continuous diagnoses of the package, such as when the data of the package is cleared
+     *
+     * @param pkgName package name
+     */
+    public void stopContinuousDiagnosis(String pkgName) {
+        stopContinuousDiagnosis(pkgName, false);
+        stopContinuousDiagnosis(pkgName, true);
+    }
+
+    /**
+     * Match the flushed scan data against the keys of the continuous diagnoses. Only the keys whose DSCs were
+     * scanned are matched again, with all of their scan data, and their results replace the old ones.
+     * The results are added to the tokens of the diagnosis, so the apps get them without diagnosing again.
+     * Called on the thread flushing the scan data, which also handles the scans, so the keys are matched on the
+     * background thread.
+     *
+     * @param flushedList ScanData flushed to database
+     */
+    private void onScanDataFlushed(List<ScanData> flushedList) {
+        synchronized (mContinuousLock) {
+            if (mContinuousDiagnoses.isEmpty()) {
+                return;
             }
         }
+        ThreadExec.execBackgroundSeqTask(TAG, () -> matchFlushedScanData(flushedList));
+    }
 
-        return isUpdate;
+    private void matchFlushedScanData(List<ScanData> flushedList) {
+        List<ContinuousDiagnosis> diagnoses;
+        synchronized (mContinuousLock) {
+            diagnoses = new ArrayList<>(mContinuousDiagnoses.values());
+        }
+        long currentInterval = KeyGenUtil.getIntervalNumber();
+        for (ContinuousDiagnosis diagnosis : diagnoses) {
+            synchronized (mContinuousUpdateLock) {
+                String key = getContinuousKey(diagnosis.mPkgName, diagnosis.mTargets.isEmpty());
+                synchronized (mContinuousLock) {
+                    if (mContinuousDiagnoses.get(key) != diagnosis) {
+                        // Replaced or stopped by a new diagnosis of the package.
+                        continue;
+                    }
+                }
+                List<PeriodicKey> keyList = diagnosis.mIndex.match(flushedList);
+                boolean isActive = keyList.isEmpty() || updateContinuousDiagnosis(diagnosis, keyList);
+                if (!isActive || diagnosis.mIndex.isExpired(currentInterval)) {
+                    ContactShieldLog.i(TAG, "Stop continuous diagnosis with " + diagnosis.mIndex);
+                    synchronized (mContinuousLock) {
+                        mContinuousDiagnoses.remove(key);
+                    }
+                }
+            }
+        }
     }
 
-    private List<ScanDataWithTxPower> getScanDataListOfGivenKeyFromDb(PeriodicKey key, long validInterval,
-        byte[] result) {
+    /**
+     * Match the keys again and replace their results
+     *
+     * @return false if the results of the diagnosis are gone
+     */
+    private boolean updateContinuousDiagnosis(ContinuousDiagnosis diagnosis, List<PeriodicKey> keyList) {
+        long startTime = System.currentTimeMillis();
+        long validInterval = getValidInterval();
+        // Without any file, the few keys are probed in database.
+        MatchSession session = createMatchSession(Collections.<File>emptyList(), diagnosis.mPkgName, validInterval,
+            mContactDataManage.getScanIntervalRange(validInterval));
+        try {
+            if (diagnosis.mTargets.isEmpty()) {
+                updateContinuousWindows(diagnosis, keyList, session);
+                return true;
+            }
+            return updateContinuousDetails(diagnosis, keyList, session);
+        } finally {
+            session.release();
+            ContactShieldLog.i(TAG, "Continuous diagnosis matched " + keyList.size() + " keys in "
+                + (System.currentTimeMillis() - startTime) + " ms");
+        }
+    }
+
+    private boolean updateContinuousDetails(ContinuousDiagnosis diagnosis, List<PeriodicKey> keyList,
+        MatchSession session) {
+        String pkgName = diagnosis.mPkgName;
+        List<DetailTarget> targets = new ArrayList<>(diagnosis.mTargets.size());
+        for (DetailTarget target : diagnosis.mTargets) {
+            // The results of a token cleared as stale are not updated any more.
+            if (mContactDataManage.getContactSketch(pkgName, target.mToken) != null) {
+                targets.add(target);
+            }
+        }
+        if (targets.isEmpty()) {
+            return false;
+        }
+        List<ContactDetailData[]> keyDetailList = matchPeriodicKeyListForContactDetail(keyList, targets, session);
+        List<byte[]> fingerprints = getFingerprints(keyList);
+        for (int i = 0; i < targets.size(); i++) {
+            String token = targets.get(i).mToken;
+            List<ContactDetailData> contactDetailDataList = getTargetDetailList(keyDetailList, i);
+            // A key matched before has its detail generated again from all of its scan data.
+            List<ContactDetailData> oldDataList = mContactDataManage.searchContactDetailData(pkgName, token,
+                fingerprints);
+            if (contactDetailDataList.isEmpty() && oldDataList.isEmpty()) {
+                continue;
+            }
+            mContactDataManage.deleteContactDetailData(oldDataList);
+            mContactDataManage.addContactDetailDataList(pkgName, token, contactDetailDataList);
+            // The old details can not be taken back from the sketch, it is generated again.
+            mContactDataManage.updateContactSketchData(pkgName, token,
+                generateContactSketch(mContactDataManage.getContactDetailList(pkgName, token)));
+        }
+        return true;
+    }
+
+    private void updateContinuousWindows(ContinuousDiagnosis diagnosis, List<PeriodicKey> keyList,
+        MatchSession session) {
+        String pkgName = diagnosis.mPkgName;
+        List<ContactWindowData> contactWindowList = matchPeriodicKeyListForContactWindow(keyList, pkgName, session);
+        // The windows of a key matched before are generated again from all of its scan data.
+        mContactDataManage.deleteContactWindows(mContactDataManage.searchContactWindowBase(pkgName,
+            getFingerprints(keyList)));
+        mContactDataManage.addContactWindowDataList(contactWindowList);
+    }
+
+    private static List<byte[]> getFingerprints(List<PeriodicKey> keyList) {
+        List<byte[]> fingerprints = new ArrayList<>(keyList.size());
+        for (PeriodicKey key : keyList) {
+            fingerprints.add(PeriodicKeyUtil.getFingerprint(key));
+        }
+        return fingerprints;
+    }
+
+    private List<ScanDataWithTxPower> getScanDataListOfGivenKeyFromDb(PeriodicKey key, KeyMatchContext context) {
         // Based on the validity period of the key, search the data of the current day in the ScanData table.
+        // The keys out of the incubation period are already skipped by KeyMatchContext.selectKey().
         long startInterval = key.getPeriodicKeyValidTime();
         long endInterval = startInterval + key.getPeriodicKeyLifeTime() - 1;
-        // Check whether the key is in the incubation period.
-        // If the key is out of the incubation period, no need to handle it.
-        if (startInterval < validInterval) {
-            ContactShieldLog.d(TAG, "This key is not in incubation period" + validInterval);
-            return Collections.emptyList();
-        }
-        List<ScanDataWithTxPower> validScanDataList = new LinkedList<>();
-        byte[] sdKey = generateSdKey(key);
-        if (sdKey == null || sdKey.length == 0) {
-            ContactShieldLog.e(TAG, "sdKey:" + Arrays.toString(sdKey));
-            return validScanDataList;
-        }
-        // Generate a target DSCs list. The maximum number of DSCs is 144 for each key.
-        List<byte[]> targetDscList = getTargetDsc(key, result);
-        for (byte[] dscTarget : targetDscList) {
-            // For each DSC, search the database for the same scanning record.
-            List<ScanData> scanDataList = ContactDataManage.getInstance()
-                    .searchScanDataWithGivenDsc(dscTarget, startInterval, endInterval);
+        IScanDataMatcher matcher = context.mMatcher;
+        // One run for each matched DSC, in the order the matcher returns the scan data.
+        List<ScanDataWithTxPower> validScanDataList = new ArrayList<>();
+        context.mRunMerger.reset();
+        // Most keys match nothing, so the SD key schedule is only set up once a DSC is matched.
+        boolean isSdKeySet = false;
+        // Generate the target DSCs of the intervals with scans nearby. The maximum number is 144 for each key.
+        int targetDscNum = getTargetDsc(key, context);
+        byte[] targetDscData = context.mTargetDscData;
+        for (int i = 0; i < targetDscNum; i++) {
+            // For each DSC, search the local scan data for the same scanning record.
+            int offset = i * ContactBeacon.DSC_LENGTH;
+            List<ScanData> scanDataList = matcher.searchScanData(targetDscData, offset, startInterval, endInterval);
             if (scanDataList.size() == 0) {
                 // If no matching record is found, check the next target DSC.
                 continue;
             }
             ContactShieldLog.d(TAG, "scanDataList size:" + scanDataList.size());
+            if (!isSdKeySet) {
+                isSdKeySet = context.mSdDecoder.setKey(context.mSdKey);
+                if (!isSdKeySet) {
+                    ContactShieldLog.e(TAG, "Set sdKey failed");
+                    return validScanDataList;
+                }
+            }
             // If the records are valid, decrypt and extract TxPower for future use.
+            // The keystream of the DSC is computed once for all the records scanned with it.
+            byte[] sdData = context.mSdData;
             for (ScanData data: scanDataList) {
-                byte[] sdData = EncryptDecrypt.aesCtrDecrypt(sdKey, dscTarget, data.getSd());
-                ContactShieldLog.d(TAG, "Dsc matched:" + Arrays.toString(dscTarget)
-                        + ", Decrypt sd: " + Arrays.toString(sdData));
-                if (sdData == null || sdData.length != 4) {
+                if (!context.mSdDecoder.decrypt(targetDscData, offset, data.getSdReadOnly(), sdData)) {
                     ContactShieldLog.d(TAG, "Invalid sd data, continue");
                     continue;
                 }
+                ContactShieldLog.d(TAG, "Dsc matched at interval:" + data.getIntervalNum()
+                        + ", Decrypt sd: " + Arrays.toString(sdData));
                 // Note: The version number contained in sdData is not checked for version compatibility.
                 // Parse the sdData and use the Tx carried in the scanned data.
                 validScanDataList.add(new ScanDataWithTxPower(data, sdData[1]));
                 ContactShieldLog.d(TAG, "validScanDataList size:" + validScanDataList.size());
             }
+            context.mRunMerger.endRun(validScanDataList.size());
         }
         return validScanDataList;
     }
 
-    private void updateAttenuationDurationResult(DiagnosisConfiguration configuration, int signal, int[] attenDuration,
-        int duration) {
-        int[] thresholds = configuration.getAttenuationDurationThresholds();
+    private void updateAttenuationDurationResult(int[] thresholds, int signal, int[] attenDuration, int duration) {
         if (signal < thresholds[0]) {
             attenDuration[0] += duration;
             attenDuration[0] = Math.min(attenDuration[0], GlobalSettings.DURATION_MAX_MINUTES);
@@ -298,35 +926,36 @@ public class ContactAnalyze {
         attenDuration[1] = Math.min(attenDuration[1], GlobalSettings.DURATION_MAX_MINUTES);
     }
 
-    private List<byte[]> getTargetDsc(PeriodicKey key, byte[] result) {
-        byte[] dscKey = generateDscKey(key, result);
-        List<byte[]> targetDscList = new ArrayList<>();
-        if (dscKey == null || dscKey.length == 0) {
-            ContactShieldLog.e(TAG, "dscKey:" + Arrays.toString(dscKey));
-            return targetDscList;
-        }
-
-        // Calculate the DSC list based on the input parameter PeriodicKey.
-        long startNumber = key.getPeriodicKeyValidTime();
-        long keyDuration = key.getPeriodicKeyLifeTime();
-        if (startNumber < 0 || keyDuration <= 0) {
-            ContactShieldLog.d(TAG, "Invalid KeyValidTime or KeyLifeTime." + key.toString());
-            return targetDscList;
-        }
-        // keyDuration must in range [0,143]
-        keyDuration = Math.max(0, Math.min(GlobalSettings.PDK_ROLLING_PERIOD, keyDuration));
-        for (long i = 0; i < keyDuration; i++) {
-            byte[] eninJ = KeyGenUtil.getEncodeIntervalNumberByteArray(startNumber + i);
-            targetDscList.add(EncryptDecrypt.aesEcbEncrypt(dscKey, DynamicSharingCode.generatePaddedData(eninJ)));
-        }
-        return targetDscList;
+    /**
+     * Derive the target DSCs of the selected key with the engine of context.
+     * Only the candidate intervals selected by KeyMatchContext.selectKey() are derived.
+     *
+     * @return number of DSCs saved in context.mTargetDscData
+     */
+    private int getTargetDsc(PeriodicKey key, KeyMatchContext context) {
+        // All the intervals are encrypted with a single key schedule.
+        int dscNum = context.mDscEngine.derive(context.mDscKey, key.getPeriodicKeyValidTime(),
+            context.mCandidateOffsets, context.mCandidateNum);
+        context.mTargetDscData = context.mDscEngine.getDscData();
+        return dscNum;
     }
 
+    /**
+     * Cut the scan data of the key into ContactWindows of up to 30 minutes
+     *
+     * @param key PeriodicKey
+     * @param validScanDataList scan data of the key in time order
+     * @return List of ContactWindow
+     */
     private List<ContactWindow> generateContactWindowListOfGivenKey(PeriodicKey key,
         List<ScanDataWithTxPower> validScanDataList) {
-        List<ContactWindow> contactWindowList = new LinkedList<>();
+        List<ContactWindow> contactWindowList = new ArrayList<>();
         long dateMillis = KeyGenUtil.intervalNum2DayMillis(key.getPeriodicKeyValidTime());
-        List<ScanInfo> scanInfoList = new LinkedList<>();
+        // The ScanInfos of all the windows are generated in one buffer, each window takes a slice of it.
+        ScanInfo[] scanInfos = new ScanInfo[validScanDataList.size()];
+        ScanInfo.Builder scanInfoBuilder = new ScanInfo.Builder();
+        int scanInfoNum = 0;
+        int windowStart = 0;
         // The unit of duration is second, which is used to partition different ContactWindows.
         int duration = 0;
         for (ScanDataWithTxPower scanDataWithTxPower : validScanDataList) {
@@ -342,35 +971,36 @@ public class ContactAnalyze {
 
             duration += scanData.getSecondsSinceLastScan();
             // Each ContactWindow can save ScanInfo for a maximum of 30 minutes.
-            if (duration > GlobalSettings.CONTACT_WINDOW_SECOND) {
-                contactWindowList.add(new ContactWindow.Builder()
-                        .setDateMillis(dateMillis)
-                        .setReportType(key.getReportType())
-                        .setScanInfos(scanInfoList)
-                        .build());
-                scanInfoList = new LinkedList<>();
+            if (duration > GlobalSettings.CONTACT_WINDOW_SECOND && scanInfoNum > windowStart) {
+                contactWindowList.add(buildContactWindow(key, dateMillis, scanInfos, windowStart, scanInfoNum));
+                windowStart = scanInfoNum;
                 duration = scanData.getSecondsSinceLastScan();
             }
 
-            scanInfoList.add(new ScanInfo.Builder()
+            scanInfos[scanInfoNum++] = scanInfoBuilder
                     .setAverageAttenuation(averageAttenuation)
                     .setMinimumAttenuation(minimumAttenuation)
                     .setSecondsSinceLastScan(scanData.getSecondsSinceLastScan())
-                    .build());
+                    .build();
         }
         // The remaining ScanInfo information within 30 minutes forms the last ContactWindow.
-        if (!scanInfoList.isEmpty()) {
-            contactWindowList.add(new ContactWindow.Builder()
-                    .setDateMillis(dateMillis)
-                    .setReportType(key.getReportType())
-                    .setScanInfos(scanInfoList)
-                    .build());
+        if (scanInfoNum > windowStart) {
+            contactWindowList.add(buildContactWindow(key, dateMillis, scanInfos, windowStart, scanInfoNum));
         }
 
         ContactShieldLog.d(TAG, "generate contactWindowList，size：" + contactWindowList.size());
         return contactWindowList;
     }
 
+    private static ContactWindow buildContactWindow(PeriodicKey key, long dateMillis, ScanInfo[] scanInfos,
+        int from, int to) {
+        return new ContactWindow.Builder()
+                .setDateMillis(dateMillis)
+                .setReportType(key.getReportType())
+                .setScanInfos(new ArrayList<>(Arrays.asList(scanInfos).subList(from, to)))
+                .build();
+    }
+
     private ContactDetail generateContactDetail(PeriodicKey key, RiskScoreCalculator calculator,
         List<ScanDataWithTxPower> validScanDataList, DiagnosisConfiguration configuration) {
         long startNumber = key.getPeriodicKeyValidTime();
@@ -380,6 +1010,8 @@ public class ContactAnalyze {
         // The value of signal must be in range [0, 255].
         int minSignal = Integer.MAX_VALUE;
         int[] attenuationDurationOfCurrentKey = new int[3];
+        // The getter copies the thresholds, they are read once for all the scan data of the key.
+        int[] thresholds = configuration.getAttenuationDurationThresholds();
         for (ScanDataWithTxPower scanDataWithTxPower : validScanDataList) {
             ScanData scanData = scanDataWithTxPower.getScanData();
             int signal = scanDataWithTxPower.getDecryptTxPower() - scanData.getRssi()
@@ -387,13 +1019,13 @@ public class ContactAnalyze {
             minSignal = Math.min(minSignal, signal);
             if (scanData.getAverageRssi() == 0) {
                 // AverageRssi is 0 indicates the data is scanned by an earlier version, so the step is 5 minutes.
-                updateAttenuationDurationResult(configuration, signal, attenuationDurationOfCurrentKey,
+                updateAttenuationDurationResult(thresholds, signal, attenuationDurationOfCurrentKey,
                         GlobalSettings.DURATION_STEP);
                 duration += GlobalSettings.DURATION_STEP;
             } else {
                 // AverageRssi is not 0 indicates that the data is scanned by the new version.
                 // The step is scanData.getSecondsSinceLastScan().
-                updateAttenuationDurationResult(configuration, signal, attenuationDurationOfCurrentKey,
+                updateAttenuationDurationResult(thresholds, signal, attenuationDurationOfCurrentKey,
                         scanData.getSecondsSinceLastScan() / KeyGenUtil.SECOND_TO_MINUTE);
                 duration += scanData.getSecondsSinceLastScan() / KeyGenUtil.SECOND_TO_MINUTE;
             }
@@ -419,28 +1051,6 @@ public class ContactAnalyze {
                 .build();
     }
 
-    private byte[] generateDscKey(PeriodicKey key, byte[] result) {
-        byte[] dscKey = null;
-        try {
-            dscKey = Hkdf.get16ByteHkdfWithoutSaltToGivenArray(key.getContent(),
-                    DynamicSharingCode.DSC_KEY.getBytes(StandardCharsets.UTF_8), result);
-        }catch (GeneralSecurityException e) {
-            ContactShieldLog.e(TAG, "DscKey Expand exception:" + e.getMessage());
-        }
-        return dscKey;
-    }
-
-    private byte[] generateSdKey(PeriodicKey key) {
-        byte[] sdKey = null;
-        try {
-            sdKey = Hkdf.get16ByteHkdfWithoutSalt(key.getContent(),
-                    SupplementaryData.SD_KEY.getBytes(StandardCharsets.UTF_8));
-        }catch (GeneralSecurityException e) {
-            ContactShieldLog.e(TAG, "SdKey Expand exception:" + e.getMessage());
-        }
-        return sdKey;
-    }
-
     /**
      * Get contact detail list
      *
@@ -510,11 +1120,257 @@ public class ContactAnalyze {
                 .build();
     }
 
+    /**
+     * Matcher and caches shared by all the key files of a diagnosis
+     */
+    private static class MatchSession {
+        private final long mValidInterval;
+
+        // The keys valid only before the first scan or after the last one can not match. The scan data flushed
+        // during the diagnosis is matched by the next one.
+        private final long mFirstScanInterval;
+
+        private final long mLastScanInterval;
+
+        private final MatchPlan mPlan;
+
+        // Matcher of all the scan data, null if the scan data is matched day by day or by sort merge join.
+        private final IScanDataMatcher mMatcher;
+
+        // Null if the bitmap is not ready, then all the intervals are candidates.
+        private final ScanIntervalBitmap mBitmap;
+
+        // Used by a single thread, before the keys are matched.
+        private final PeriodicKeyDeduplicator mDeduplicator;
+
+        private final KeyFileLedger mLedger;
+
+        private final KeyFileVerifier mVerifier;
+
+        // Collected while the files are parsed, applied to the results once all the keys are matched.
+        private final KeyRevisions mRevisions = new KeyRevisions();
+
+        MatchSession(long validInterval, long[] scanRange, MatchPlan plan, IScanDataMatcher matcher,
+            ScanIntervalBitmap bitmap, PeriodicKeyDeduplicator deduplicator, KeyFileLedger ledger,
+            KeyFileVerifier verifier) {
+            mValidInterval = validInterval;
+            mFirstScanInterval = scanRange[0];
+            mLastScanInterval = scanRange[1];
+            mPlan = plan;
+            mMatcher = matcher;
+            mBitmap = bitmap;
+            mDeduplicator = deduplicator;
+            mLedger = ledger;
+            mVerifier = verifier;
+        }
+
+        private void release() {
+            if (mMatcher != null) {
+                mMatcher.release();
+            }
+        }
+    }
+
+    /**
+     * Token and configuration of a diagnosis in detail mode, the diagnoses of several targets share the match
+     */
+    private static class DetailTarget {
+        private final String mToken;
+
+        private final DiagnosisConfiguration mConfiguration;
+
+        DetailTarget(String token, DiagnosisConfiguration configuration) {
+            mToken = token;
+            mConfiguration = configuration;
+        }
+    }
+
+    /**
+     * Keys of a diagnosis matched against the scan data flushed after it
+     */
+    private static class ContinuousDiagnosis {
+        private final String mPkgName;
+
+        // Empty for the window mode.
+        private final List<DetailTarget> mTargets;
+
+        private final ContinuousKeyIndex mIndex;
+
+        ContinuousDiagnosis(String pkgName, List<DetailTarget> targets, ContinuousKeyIndex index) {
+            mPkgName = pkgName;
+            mTargets = targets;
+            mIndex = index;
+        }
+    }
+
+    /**
+     * Buffers and crypto engines used to match keys. Every worker owns its context, and the keys are processed
+     * in order within the worker, so up to BATCH_SIZE keys are derived together.
+     */
+    private static class KeyMatchContext {
+        // Keys derived together, a lane group of MultiBufferHkdf.
+        private static final int BATCH_SIZE = MultiBufferHkdf.LANES;
+
+        private static final byte[] DSC_KEY_INFO = DynamicSharingCode.DSC_KEY.getBytes(StandardCharsets.UTF_8);
+
+        private static final byte[] SD_KEY_INFO = SupplementaryData.SD_KEY.getBytes(StandardCharsets.UTF_8);
+
+        private final MatchSession mSession;
+
+        private final IScanDataMatcher mMatcher;
+
+        private final HkdfEngine mHkdf = new HkdfEngine(DSC_KEY_INFO, SD_KEY_INFO);
+
+        private final DscDerivationEngine mDscEngine = new DscDerivationEngine();
+
+        private final SdDecoder mSdDecoder = new SdDecoder();
+
+        // Runs of the scan data of the selected key, one for each matched DSC.
+        private final SortedRunMerger mRunMerger = new SortedRunMerger(DscDerivationEngine.MAX_DSC_NUM);
+
+        private final byte[] mSdData = new byte[ContactBeacon.SD_LENGTH];
+
+        // The batch holds the keys which need matching, other keys are skipped without being derived.
+        private final int[] mBatchKeyIndexes = new int[BATCH_SIZE];
+
+        private final int[][] mBatchCandidateOffsets = new int[BATCH_SIZE][DscDerivationEngine.MAX_DSC_NUM];
+
+        private final int[] mBatchCandidateNums = new int[BATCH_SIZE];
+
+        private final List<byte[]> mFingerprints = new ArrayList<>(BATCH_SIZE);
+
+        private final byte[][] mIkms = new byte[BATCH_SIZE][];
+
+        // DSC keys and SD keys of the batch, in the order of the infos.
+        private final byte[][] mDerivedKeys = new byte[2][BATCH_SIZE * Hkdf.DEFAULT_SIZE];
+
+        private int mBatchSize;
+
+        private int mBatchFrom;
+
+        private int mBatchTo;
+
+        private int mSlot;
+
+        // Keys of the selected key
+        private final byte[] mDscKey = new byte[Hkdf.DEFAULT_SIZE];
+
+        private final byte[] mSdKey = new byte[Hkdf.DEFAULT_SIZE];
+
+        private byte[] mFingerprint;
+
+        private int[] mCandidateOffsets;
+
+        private int mCandidateNum;
+
+        private byte[] mTargetDscData;
+
+        KeyMatchContext(MatchSession session, IScanDataMatcher matcher) {
+            mSession = session;
+            mMatcher = matcher;
+        }
+
+        /**
+         * Select keys[index] and save its fingerprint, candidate intervals, DSC key and SD key in the context.
+         * If the key is not prepared yet, prepare it together with the keys following it, up to keys[to - 1].
+         *
+         * @return true if the key needs matching and its keys are ready
+         */
+        private boolean selectKey(List<PeriodicKey> keys, int index, int to) {
+            if (index < mBatchFrom || index >= mBatchTo) {
+                prepareBatch(keys, index, to);
+            }
+            while (mSlot < mBatchSize && mBatchKeyIndexes[mSlot] < index) {
+                mSlot++;
+            }
+            if (mSlot >= mBatchSize || mBatchKeyIndexes[mSlot] != index) {
+                return false;
+            }
+            mFingerprint = mFingerprints.get(mSlot);
+            mCandidateOffsets = mBatchCandidateOffsets[mSlot];
+            mCandidateNum = mBatchCandidateNums[mSlot];
+            int offset = mSlot * Hkdf.DEFAULT_SIZE;
+            System.arraycopy(mDerivedKeys[0], offset, mDscKey, 0, Hkdf.DEFAULT_SIZE);
+            System.arraycopy(mDerivedKeys[1], offset, mSdKey, 0, Hkdf.DEFAULT_SIZE);
+            return true;
+        }
+
+        private void prepareBatch(List<PeriodicKey> keys, int index, int to) {
+            mBatchFrom = index;
+            mBatchSize = 0;
+            mSlot = 0;
+            mFingerprints.clear();
+            int next = index;
+            for (; next < to && mBatchSize < BATCH_SIZE; next++) {
+                PeriodicKey key = keys.get(next);
+                int candidateNum = getCandidateOffsets(key, mBatchCandidateOffsets[mBatchSize]);
+                if (candidateNum == 0) {
+                    continue;
+                }
+                mBatchKeyIndexes[mBatchSize] = next;
+                mBatchCandidateNums[mBatchSize] = candidateNum;
+                mFingerprints.add(PeriodicKeyUtil.getFingerprint(key));
+                mIkms[mBatchSize] = key.getContent();
+                mBatchSize++;
+            }
+            mBatchTo = next;
+            if (mBatchSize == 0) {
+                return;
+            }
+            try {
+                mHkdf.derive(mIkms, mBatchSize, mDerivedKeys);
+            } catch (GeneralSecurityException e) {
+                ContactShieldLog.e(TAG, "Hkdf derive exception:" + e.getMessage());
+                mBatchSize = 0;
+            }
+        }
+
+        /**
+         * Find the intervals of the key whose DSCs need matching
+         *
+         * @return number of candidate intervals, 0 if the key can be skipped
+         */
+        private int getCandidateOffsets(PeriodicKey key, int[] offsets) {
+            long startInterval = key.getPeriodicKeyValidTime();
+            long keyDuration = key.getPeriodicKeyLifeTime();
+            // Check whether the key is in the incubation period.
+            // If the key is out of the incubation period, no need to handle it.
+            if (startInterval < mSession.mValidInterval) {
+                ContactShieldLog.d(TAG, "This key is not in incubation period" + mSession.mValidInterval);
+                return 0;
+            }
+            if (keyDuration <= 0) {
+                ContactShieldLog.d(TAG, "Invalid KeyValidTime or KeyLifeTime." + key.toString());
+                return 0;
+            }
+            // The scan data is searched within the life time of the key.
+            if (startInterval + keyDuration <= mSession.mFirstScanInterval
+                || startInterval > mSession.mLastScanInterval) {
+                return 0;
+            }
+            // keyDuration must in range [0,143]
+            int intervalNum = (int) Math.min(GlobalSettings.PDK_ROLLING_PERIOD, keyDuration);
+            if (mSession.mBitmap == null) {
+                for (int i = 0; i < intervalNum; i++) {
+                    offsets[i] = i;
+                }
+                return intervalNum;
+            }
+            return mSession.mBitmap.getCandidateOffsets(startInterval, intervalNum, offsets);
+        }
+    }
+
     /**
      * This structure encapsulates the valid scanning data selected from the database and the decrypted TxPower
      * for subsequent calculation of risk values and windows.
      */
     private static class ScanDataWithTxPower {
+        // Scan data is saved in time order, the id orders the scan data within an interval.
+        private static final Comparator<ScanDataWithTxPower> TIME_ORDER = (first, second) -> {
+            int order = Long.compare(first.mScanData.getIntervalNum(), second.mScanData.getIntervalNum());
+            return order != 0 ? order : Integer.compare(first.mScanData.getId(), second.mScanData.getId());
+        };
+
         // mDecryptTxPower: stores the TxPower decrypted from the SD of ScanData.
         private int mDecryptTxPower;
         private ScanData mScanData;
@@ -31,10 +31,13 @@ import com.huawei.hms.samples.contactshield.database.table.ContactDetailData;
 import com.huawei.hms.samples.contactshield.database.table.ContactSketchData;
 import com.huawei.hms.samples.contactshield.database.table.ContactWindowData;
 import com.huawei.hms.samples.contactshield.database.table.ContactWindowBase;
+import com.huawei.hms.samples.contactshield.database.table.KeyFileLedgerData;
 import com.huawei.hms.samples.contactshield.database.table.PdkData;
 import com.huawei.hms.samples.contactshield.database.table.PdkNum;
 import com.huawei.hms.samples.contactshield.database.table.ScanData;
 import com.huawei.hms.samples.contactshield.database.table.ScanInfoData;
+import com.huawei.hms.samples.contactshield.match.ScanDscBloomFilter;
+import com.huawei.hms.samples.contactshield.match.ScanIntervalBitmap;
 import com.huawei.hms.samples.contactshield.util.GlobalSettings;
 import com.huawei.hms.samples.contactshield.util.KeyGenUtil;
 
@@ -54,6 +57,12 @@ import java.util.concurrent.atomic.AtomicLong;
 public class ContactDataManage {
     private static final String TAG = "ContactDataManage";
 
+    // Default limit of the host parameters of a SQLite statement.
+    private static final int MAX_SQL_VARIABLE_NUM = 999;
+
+    // ScanData read at a time when the scan index is rebuilt.
+    private static final int SCAN_INDEX_PAGE_SIZE = 4096;
+
     private static volatile ContactDataManage contactDataInstance;
 
     private final Map<String, ScanDataDetail> scanDataDetailMap = new HashMap<>();
@@ -65,6 +74,35 @@ public class ContactDataManage {
 
     private IContactDatabase contactDatabase;
 
+    // Bloom filter of the DSCs scanned within incubation period, null until it is built.
+    private volatile ScanDscBloomFilter mScanDscFilter;
+
+    // Bitmap of the intervals scanned within incubation period, built together with the bloom filter.
+    private volatile ScanIntervalBitmap mScanIntervalBitmap;
+
+    // Lock to keep the bloom filter and the interval bitmap consistent with the ScanData table
+    private final Object mFilterLock = new Object();
+
+    // Scan data flushed while the scan index is rebuilt, null if no rebuild is running. Guarded by mFilterLock.
+    private List<ScanData> mPendingIndexData;
+
+    // Whether the scan index still contains deleted scan data and should be rebuilt. Guarded by mFilterLock.
+    private boolean mIsScanIndexStale;
+
+    private volatile ScanDataFlushListener mScanDataFlushListener;
+
+    /**
+     * Listener of the scan data flushed to database
+     */
+    public interface ScanDataFlushListener {
+        /**
+         * Called on the flush thread once the scan data is saved and indexed
+         *
+         * @param flushedList ScanData flushed to database
+         */
+        void onScanDataFlushed(List<ScanData> flushedList);
+    }
+
     /**
      * Constructor
      */
@@ -113,6 +151,66 @@ public class ContactDataManage {
         return scanDataList;
     }
 
+    /**
+     * Search all ScanData between startInterval and endInterval
+     *
+     * @param startInterval starting interval number
+     * @param endInterval ending interval number
+     * @return ScanData list ordered by interval number
+     */
+    public List<ScanData> searchScanDataInRange(long startInterval, long endInterval) {
+        List<ScanData> scanDataList = contactDatabase.getAllScanData(startInterval, endInterval);
+        if (scanDataList == null || scanDataList.size() == 0) {
+            return Collections.emptyList();
+        }
+        return scanDataList;
+    }
+
+    /**
+     * Search a page of ScanData between startInterval and endInterval in the order of DSC
+     *
+     * @param startInterval starting interval number
+     * @param endInterval ending interval number
+     * @param afterDsc DSC of the last ScanData of the previous page, null for the first page
+     * @param afterId id of the last ScanData of the previous page
+     * @param limit max number of ScanData
+     * @return ScanData list ordered by DSC and id
+     */
+    public List<ScanData> searchScanDataOrderByDsc(long startInterval, long endInterval, byte[] afterDsc,
+        int afterId, int limit) {
+        List<ScanData> scanDataList = contactDatabase.getScanDataOrderByDsc(startInterval, endInterval, afterDsc,
+            afterId, limit);
+        if (scanDataList == null || scanDataList.size() == 0) {
+            return Collections.emptyList();
+        }
+        return scanDataList;
+    }
+
+    /**
+     * Get the number of ScanData between startInterval and endInterval
+     *
+     * @param startInterval starting interval number
+     * @param endInterval ending interval number
+     * @return number of ScanData
+     */
+    public long getScanDataNum(long startInterval, long endInterval) {
+        return contactDatabase.getScanDataNum(startInterval, endInterval);
+    }
+
+    /**
+     * Get the range of the intervals in which ScanData is saved
+     *
+     * @param startInterval starting interval number
+     * @return {first, last} interval numbers of the ScanData since startInterval, null if there is none
+     */
+    public long[] getScanIntervalRange(long startInterval) {
+        long[] range = contactDatabase.getScanDataIntervalRange(startInterval);
+        if (range == null || range.length != 2 || range[0] > range[1]) {
+            return null;
+        }
+        return range;
+    }
+
     /**
      * Add scan detail data to cache
      *
@@ -157,6 +255,7 @@ public class ContactDataManage {
                 ContactShieldLog.d(TAG, "Get Storage remain from DB, " + storageRemainOfDailyScan.get());
             }
 
+            List<ScanData> flushedList = new ArrayList<>();
             synchronized (mLock) {
                 for (Map.Entry<String, ScanDataDetail> entry : scanDataDetailMap.entrySet()) {
                     if (storageRemainOfDailyScan.get() < 0) {
@@ -172,14 +271,136 @@ public class ContactDataManage {
                     scanData.setAverageRssi((int) Math.round(scanDataDetail.getAverageRssi()));
                     scanData.setSecondsSinceLastScan(secondsSinceLastScan);
                     contactDatabase.insertScanData(scanData);
+                    flushedList.add(scanData);
                     storageRemainOfDailyScan.decrementAndGet();
                     ContactShieldLog.d(TAG, "Storage remain is " + storageRemainOfDailyScan.get());
                 }
                 scanDataDetailMap.clear();
             }
+            updateScanIndex(flushedList);
+            ScanDataFlushListener listener = mScanDataFlushListener;
+            if (listener != null && !flushedList.isEmpty()) {
+                listener.onScanDataFlushed(flushedList);
+            }
         });
     }
 
+    /**
+     * Set the listener of the scan data flushed to database
+     *
+     * @param listener listener, null to remove it
+     */
+    public void setScanDataFlushListener(ScanDataFlushListener listener) {
+        mScanDataFlushListener = listener;
+    }
+
+    private void updateScanIndex(List<ScanData> flushedList) {
+        synchronized (mFilterLock) {
+            ScanDscBloomFilter filter = mScanDscFilter;
+            ScanIntervalBitmap bitmap = mScanIntervalBitmap;
+            if (filter != null && bitmap != null) {
+                // A stale or saturated index is kept until the new one is built, it only lets more DSCs through.
+                addToScanIndex(filter, bitmap, flushedList);
+            }
+            if (mPendingIndexData != null) {
+                mPendingIndexData.addAll(flushedList);
+                return;
+            }
+            if (filter == null || bitmap == null || filter.isSaturated() || mIsScanIndexStale) {
+                // Rebuilding reads the whole incubation period, it is not done on the thread of the BLE scans.
+                // The new index is built from database, which already contains the flushed scan data.
+                mPendingIndexData = new ArrayList<>();
+                mIsScanIndexStale = false;
+                ThreadExec.execBackgroundSeqTask(TAG, this::rebuildScanIndex);
+            }
+        }
+    }
+
+    private static void addToScanIndex(ScanDscBloomFilter filter, ScanIntervalBitmap bitmap,
+        List<ScanData> scanDataList) {
+        for (ScanData scanData : scanDataList) {
+            filter.put(scanData.getDscReadOnly());
+            bitmap.set(scanData.getIntervalNum());
+        }
+    }
+
+    private void rebuildScanIndex() {
+        long startTime = System.currentTimeMillis();
+        ScanDscBloomFilter filter = null;
+        ScanIntervalBitmap bitmap = null;
+        try {
+            long startInterval = KeyGenUtil.getDeleteTimeInterval(GlobalSettings
+                    .getGlobalContactShieldSetting().getIncubationPeriod());
+            long scanDataNum = contactDatabase.getScanDataNum(startInterval, Long.MAX_VALUE);
+            // Reserve room for the scan data of the coming days, so the filter is not rebuilt on every flush.
+            filter = new ScanDscBloomFilter(scanDataNum * 2, startInterval);
+            bitmap = new ScanIntervalBitmap(startInterval);
+            // Read page by page, the scan data of the incubation period does not fit in memory at once.
+            byte[] afterDsc = null;
+            int afterId = 0;
+            while (true) {
+                List<ScanData> scanDataList = contactDatabase.getScanDataOrderByDsc(startInterval, Long.MAX_VALUE,
+                    afterDsc, afterId, SCAN_INDEX_PAGE_SIZE);
+                if (scanDataList == null || scanDataList.isEmpty()) {
+                    break;
+                }
+                addToScanIndex(filter, bitmap, scanDataList);
+                ScanData lastScanData = scanDataList.get(scanDataList.size() - 1);
+                afterDsc = lastScanData.getDscReadOnly();
+                afterId = lastScanData.getId();
+                if (scanDataList.size() < SCAN_INDEX_PAGE_SIZE) {
+                    break;
+                }
+            }
+            ContactShieldLog.d(TAG, "Rebuild scan index for " + scanDataNum + " scan data in "
+                    + (System.currentTimeMillis() - startTime) + " ms");
+        } catch (RuntimeException e) {
+            ContactShieldLog.e(TAG, "Rebuild scan index exception: " + e.getMessage());
+            filter = null;
+        } finally {
+            synchronized (mFilterLock) {
+                if (filter != null) {
+                    // The scan data flushed meanwhile may have been inserted behind the pages already read.
+                    addToScanIndex(filter, bitmap, mPendingIndexData);
+                    mScanDscFilter = filter;
+                    mScanIntervalBitmap = bitmap;
+                } else {
+                    // The current index is kept, it is rebuilt again on next flush.
+                    mIsScanIndexStale = true;
+                }
+                mPendingIndexData = null;
+            }
+        }
+    }
+
+    /**
+     * Get the bloom filter of the DSCs scanned since validInterval
+     *
+     * @param validInterval starting interval number of the diagnosis
+     * @return bloom filter, or null if the filter is not ready
+     */
+    public ScanDscBloomFilter getScanDscFilter(long validInterval) {
+        ScanDscBloomFilter filter = mScanDscFilter;
+        if (filter == null || filter.getStartInterval() > validInterval) {
+            return null;
+        }
+        return filter;
+    }
+
+    /**
+     * Get a snapshot of the bitmap of the intervals scanned since validInterval
+     *
+     * @param validInterval starting interval number of the diagnosis
+     * @return bitmap, or null if the bitmap is not ready
+     */
+    public ScanIntervalBitmap getScanIntervalBitmap(long validInterval) {
+        ScanIntervalBitmap bitmap = mScanIntervalBitmap;
+        if (bitmap == null || bitmap.getStartInterval() > validInterval) {
+            return null;
+        }
+        return bitmap.copy();
+    }
+
     /**
      * Add pdk to PdkData table
      *
@@ -272,6 +493,73 @@ public class ContactDataManage {
         contactDatabase.insertContactDetailData(result);
     }
 
+    /**
+     * Add contact detail data in batch, linked to the PeriodicKeys matched
+     *
+     * @param pkgName package name
+     * @param token token
+     * @param detailDataList ContactDetailData list with the contact details and key fingerprints set
+     */
+    public void addContactDetailDataList(String pkgName, String token, List<ContactDetailData> detailDataList) {
+        if (detailDataList.isEmpty()) {
+            return;
+        }
+        for (ContactDetailData result : detailDataList) {
+            result.setPkgName(pkgName);
+            result.setToken(token);
+        }
+        contactDatabase.insertContactDetailData(detailDataList.toArray(new ContactDetailData[0]));
+    }
+
+    /**
+     * Search the contact detail data of the package + token matched with the PeriodicKeys
+     *
+     * @param pkgName package name
+     * @param token token
+     * @param keyFingerprints fingerprints of the PeriodicKeys, see PeriodicKeyUtil.getFingerprint()
+     * @return ContactDetailData list
+     */
+    public List<ContactDetailData> searchContactDetailData(String pkgName, String token,
+        List<byte[]> keyFingerprints) {
+        if (keyFingerprints.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<ContactDetailData> detailDataList = contactDatabase.getContactDetailData(pkgName, token,
+            keyFingerprints);
+        if (detailDataList == null) {
+            return Collections.emptyList();
+        }
+        return detailDataList;
+    }
+
+    /**
+     * Update contact detail data
+     *
+     * @param detailDataList ContactDetailData list found by searchContactDetailData()
+     */
+    public void updateContactDetailData(List<ContactDetailData> detailDataList) {
+        if (detailDataList.isEmpty()) {
+            return;
+        }
+        contactDatabase.updateContactDetailData(detailDataList.toArray(new ContactDetailData[0]));
+    }
+
+    /**
+     * Delete contact detail data
+     *
+     * @param detailDataList ContactDetailData list found by searchContactDetailData()
+     */
+    public void deleteContactDetailData(List<ContactDetailData> detailDataList) {
+        if (detailDataList.isEmpty()) {
+            return;
+        }
+        long[] ids = new long[detailDataList.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = detailDataList.get(i).getId();
+        }
+        contactDatabase.deleteContactDetailData(ids);
+    }
+
     /**
      * Get contact detail list
      *
@@ -371,20 +659,90 @@ public class ContactDataManage {
      */
     public void addContactWindows(String pkgName, List<ContactWindow> contactWindowList) {
         for (ContactWindow contactWindow : contactWindowList) {
-            ContactWindowBase contactWindowBase = new ContactWindowBase();
-            contactWindowBase.setDateMillis(contactWindow.getDateMillis());
-            contactWindowBase.setReportType(contactWindow.getReportType());
-            contactWindowBase.setPkgName(pkgName);
-            contactWindowBase.setLastUpdateTimestamp(KeyGenUtil.getIntervalNumber());
+            contactDatabase.insertContactWindowData(toContactWindowData(pkgName, new byte[0], contactWindow));
+        }
+    }
+
+    /**
+     * Add ContactWindowData list created by toContactWindowData()
+     *
+     * @param contactWindowDataList ContactWindowData list
+     */
+    public void addContactWindowDataList(List<ContactWindowData> contactWindowDataList) {
+        for (ContactWindowData contactWindowData : contactWindowDataList) {
+            contactDatabase.insertContactWindowData(contactWindowData);
+        }
+    }
+
+    /**
+     * Create the ContactWindowData of a ContactWindow
+     *
+     * @param pkgName package name
+     * @param keyFingerprint fingerprint of the PeriodicKey matched, see PeriodicKeyUtil.getFingerprint()
+     * @param contactWindow ContactWindow
+     * @return ContactWindowData to be added
+     */
+    public ContactWindowData toContactWindowData(String pkgName, byte[] keyFingerprint, ContactWindow contactWindow) {
+        ContactWindowBase contactWindowBase = new ContactWindowBase();
+        contactWindowBase.setDateMillis(contactWindow.getDateMillis());
+        contactWindowBase.setReportType(contactWindow.getReportType());
+        contactWindowBase.setPkgName(pkgName);
+        contactWindowBase.setLastUpdateTimestamp(KeyGenUtil.getIntervalNumber());
+        contactWindowBase.setKeyFingerprint(keyFingerprint);
+
+        List<ScanInfoData> scanInfoDataList = fromScanInfoList(contactWindow.getScanInfos());
+
+        ContactWindowData contactWindowData = new ContactWindowData();
+        contactWindowData.setContactWindowBase(contactWindowBase);
+        contactWindowData.setScanInfoDataList(scanInfoDataList);
+        return contactWindowData;
+    }
 
-            List<ScanInfoData> scanInfoDataList = fromScanInfoList(contactWindow.getScanInfos());
+    /**
+     * Search the ContactWindowBase of the package matched with the PeriodicKeys
+     *
+     * @param pkgName package name
+     * @param keyFingerprints fingerprints of the PeriodicKeys, see PeriodicKeyUtil.getFingerprint()
+     * @return ContactWindowBase list
+     */
+    public List<ContactWindowBase> searchContactWindowBase(String pkgName, List<byte[]> keyFingerprints) {
+        if (keyFingerprints.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<ContactWindowBase> contactWindowBaseList = contactDatabase.getContactWindowBase(pkgName,
+            keyFingerprints);
+        if (contactWindowBaseList == null) {
+            return Collections.emptyList();
+        }
+        return contactWindowBaseList;
+    }
 
-            ContactWindowData contactWindowData = new ContactWindowData();
-            contactWindowData.setContactWindowBase(contactWindowBase);
-            contactWindowData.setScanInfoDataList(scanInfoDataList);
+    /**
+     * Update the report types of ContactWindows
+     *
+     * @param contactWindowBaseList ContactWindowBase list found by searchContactWindowBase()
+     */
+    public void updateContactWindowBase(List<ContactWindowBase> contactWindowBaseList) {
+        if (contactWindowBaseList.isEmpty()) {
+            return;
+        }
+        contactDatabase.updateContactWindowBase(contactWindowBaseList.toArray(new ContactWindowBase[0]));
+    }
 
-            contactDatabase.insertContactWindowData(contactWindowData);
+    /**
+     * Delete ContactWindows
+     *
+     * @param contactWindowBaseList ContactWindowBase list found by searchContactWindowBase()
+     */
+    public void deleteContactWindows(List<ContactWindowBase> contactWindowBaseList) {
+        if (contactWindowBaseList.isEmpty()) {
+            return;
+        }
+        long[] ids = new long[contactWindowBaseList.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = contactWindowBaseList.get(i).getId();
         }
+        contactDatabase.deleteContactWindowData(ids);
     }
 
     /**
@@ -412,6 +770,35 @@ public class ContactDataManage {
         return contactWindowList;
     }
 
+    /**
+     * Search the ledger entries of the key files diagnosed by the package
+     *
+     * @param pkgName package name
+     * @param fingerprints fingerprints of the key files
+     * @return KeyFileLedgerData found, in any order
+     */
+    public List<KeyFileLedgerData> searchKeyFileLedgerData(String pkgName, List<byte[]> fingerprints) {
+        if (fingerprints.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<KeyFileLedgerData> ledgerDataList = contactDatabase.getKeyFileLedgerData(pkgName, fingerprints);
+        if (ledgerDataList == null) {
+            return Collections.emptyList();
+        }
+        return ledgerDataList;
+    }
+
+    /**
+     * Save the ledger entries of the key files diagnosed by the package, replacing the old ones
+     *
+     * @param ledgerDataList ledger entries
+     */
+    public void addKeyFileLedgerData(List<KeyFileLedgerData> ledgerDataList) {
+        if (!ledgerDataList.isEmpty()) {
+            contactDatabase.insertKeyFileLedgerData(ledgerDataList.toArray(new KeyFileLedgerData[0]));
+        }
+    }
+
     /**
      * Clear data from database when uninstalling package
      *
@@ -422,6 +809,7 @@ public class ContactDataManage {
         contactDatabase.deletePdkData(pkgName);
         contactDatabase.deleteContactSketchData(pkgName);
         contactDatabase.deleteContactWindowData(pkgName);
+        contactDatabase.deleteKeyFileLedgerData(pkgName);
         ContactShieldLog.d(TAG, "finish to clear data.");
         PeriodicKeyGenerator.clearPeriodicKey();
     }
@@ -467,9 +855,16 @@ public class ContactDataManage {
         long dataToDeleteInterval = KeyGenUtil.getDeleteTimeInterval(GlobalSettings
             .getGlobalContactShieldSetting().getIncubationPeriod());
         contactDatabase.deleteScanData(scanDataToDeleteInterval);
+        // The expired scan data stays in the index until it is rebuilt after next flush, it only lets more DSCs
+        // through meanwhile.
+        synchronized (mFilterLock) {
+            mIsScanIndexStale = true;
+        }
         contactDatabase.deletePdkData(dataToDeleteInterval, pkgName);
         contactDatabase.deleteContactSketchData(pkgName, dataToDeleteInterval);
         contactDatabase.deleteContactWindowData(pkgName, dataToDeleteInterval);
+        // Files not diagnosed for a whole incubation period are not expected again.
+        contactDatabase.deleteKeyFileLedgerData(pkgName, dataToDeleteInterval);
         synchronized (mLock) {
             scanDataDetailMap.clear();
         }
@@ -482,5 +877,10 @@ public class ContactDataManage {
     public void clearPdkAndScanData(String pkgName) {
         contactDatabase.deletePdkData(pkgName);
         contactDatabase.deleteScanData();
+        synchronized (mFilterLock) {
+            mScanDscFilter = null;
+            mScanIntervalBitmap = null;
+            mIsScanIndexStale = true;
+        }
     }
 }
@@ -28,6 +28,11 @@ import java.util.Locale;
  * @since 2020-04-30
  */
 public class PeriodicKey {
+    /**
+     * Report type of a revised key which is revoked
+     */
+    public static final int REPORT_TYPE_REVOKED = 5;
+
     private byte[] content;
 
     private long periodicKeyValidTime;
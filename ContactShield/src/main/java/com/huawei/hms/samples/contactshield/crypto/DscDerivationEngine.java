@@ -0,0 +1,133 @@
+/*
+ * Copyright 2020. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huawei.hms.samples.contactshield.crypto;
+
+import com.huawei.hms.samples.contactshield.util.ContactShieldLog;
+import com.huawei.hms.samples.contactshield.util.GlobalSettings;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Derive all the DSCs of a PeriodicKey at once.
+ * The cipher is initialized once per DSC key, and the PaddedData of every interval is encrypted
+ * with a single multi-block doFinal(). The engine keeps its buffers, so it must not be shared by threads.
+ *
+ * @since 2020-10-16
+ */
+public class DscDerivationEngine {
+    /**
+     * Max number of DSCs derived from one PeriodicKey
+     */
+    public static final int MAX_DSC_NUM = GlobalSettings.PDK_ROLLING_PERIOD;
+
+    private static final String TAG = "DscDerivationEngine";
+
+    private static final int BLOCK_SIZE = DynamicSharingCode.PAD_LENGTH;
+
+    private static final int BITS_PER_BYTE = 8;
+
+    // PaddedData of MAX_DSC_NUM intervals, 2304 bytes.
+    private final byte[] mPaddedData = new byte[MAX_DSC_NUM * BLOCK_SIZE];
+
+    private final byte[] mDscData = new byte[MAX_DSC_NUM * BLOCK_SIZE];
+
+    private Cipher mCipher;
+
+    /**
+     * Constructor
+     */
+    public DscDerivationEngine() {
+        // Only the interval number differs between blocks, prepare the "EN-RPI" part once.
+        byte[] template = DynamicSharingCode.generatePaddedData(new byte[DynamicSharingCode.PAD_ENIN_LENGTH]);
+        for (int i = 0; i < MAX_DSC_NUM; i++) {
+            System.arraycopy(template, 0, mPaddedData, i * BLOCK_SIZE, BLOCK_SIZE);
+        }
+    }
+
+    /**
+     * Derive the DSCs of dscNum intervals starting from startInterval.
+     * The DSCs are saved in the array returned by getDscData(), 16 bytes each.
+     *
+     * @param dscKey DSC key of the PeriodicKey
+     * @param startInterval interval number of the first DSC
+     * @param dscNum number of DSCs, at most MAX_DSC_NUM
+     * @return number of DSCs derived, 0 if failed
+     */
+    public int derive(byte[] dscKey, long startInterval, int dscNum) {
+        int count = Math.max(0, Math.min(MAX_DSC_NUM, dscNum));
+        for (int i = 0; i < count; i++) {
+            putIntervalNumber(i * BLOCK_SIZE + DynamicSharingCode.PAD_ENIN_OFFSET, startInterval + i);
+        }
+        return encrypt(dscKey, count);
+    }
+
+    /**
+     * Derive the DSCs of the given intervals only.
+     * The DSCs are saved in the array returned by getDscData(), 16 bytes each, in the order of intervalOffsets.
+     *
+     * @param dscKey DSC key of the PeriodicKey
+     * @param startInterval interval number of the PeriodicKey
+     * @param intervalOffsets offsets of the intervals to startInterval
+     * @param dscNum number of offsets in intervalOffsets, at most MAX_DSC_NUM
+     * @return number of DSCs derived, 0 if failed
+     */
+    public int derive(byte[] dscKey, long startInterval, int[] intervalOffsets, int dscNum) {
+        int count = Math.max(0, Math.min(MAX_DSC_NUM, dscNum));
+        for (int i = 0; i < count; i++) {
+            putIntervalNumber(i * BLOCK_SIZE + DynamicSharingCode.PAD_ENIN_OFFSET,
+                startInterval + intervalOffsets[i]);
+        }
+        return encrypt(dscKey, count);
+    }
+
+    private int encrypt(byte[] dscKey, int count) {
+        if (count == 0) {
+            return 0;
+        }
+        try {
+            if (mCipher == null) {
+                mCipher = Cipher.getInstance("AES/ECB/NoPadding");
+            }
+            mCipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(dscKey, "AES"));
+            mCipher.doFinal(mPaddedData, 0, count * BLOCK_SIZE, mDscData, 0);
+        } catch (GeneralSecurityException e) {
+            ContactShieldLog.e(TAG, "Derive DSC exception : " + e.getMessage());
+            return 0;
+        }
+        return count;
+    }
+
+    /**
+     * Get the DSCs of the last derive(). The array is reused by the next derive().
+     *
+     * @return DSC data
+     */
+    public byte[] getDscData() {
+        return mDscData;
+    }
+
+    private void putIntervalNumber(int offset, long intervalNumber) {
+        // IntervalNumber is encoded as a 32-bit (uint32_t) unsigned little-endian value.
+        int value = (int) intervalNumber;
+        for (int i = 0; i < DynamicSharingCode.PAD_ENIN_LENGTH; i++) {
+            mPaddedData[offset + i] = (byte) (value >>> (i * BITS_PER_BYTE));
+        }
+    }
+}
@@ -37,16 +37,13 @@ public class DynamicSharingCode {
 
     public static final String DSC_TEXT = "EN-RPI";
 
-    @VisibleForTesting
     static final int PAD_ENIN_OFFSET = 12;
 
     @VisibleForTesting
     static final int PAD_UTF_LENGTH = 6;
 
-    @VisibleForTesting
     static final int PAD_ENIN_LENGTH = 4;
 
-    @VisibleForTesting
     static final int PAD_LENGTH = 16;
 
     private byte[] mCurrentPdk;
@@ -29,7 +29,7 @@ import javax.crypto.spec.SecretKeySpec;
 public class Hkdf {
     public static final int DEFAULT_SIZE = 16;
 
-    private static final String ALG = "HmacSha256";
+    static final String ALG = "HmacSha256";
 
     /**
      * get 16-Byte Hkdf Without Salt
@@ -69,6 +69,23 @@ public class Hkdf {
         return result;
     }
 
+    /**
+     * get 16-Byte Hkdf Without Salt of several keys at once
+     *
+     * @param ikms input keying materials
+     * @param infos optional contexts, every ikm is expanded with each of them
+     *
+     * @return the i-th array saves the pseudorandom bytes of infos[i], DEFAULT_SIZE bytes for each ikm in order
+     * @throws GeneralSecurityException Exception
+     */
+    public static byte[][] get16ByteHkdfWithoutSaltBatch(final byte[][] ikms, final byte[]... infos)
+            throws GeneralSecurityException {
+        byte[][] results = new byte[infos.length][ikms.length * DEFAULT_SIZE];
+        new HkdfEngine(infos).derive(ikms, ikms.length, results);
+
+        return results;
+    }
+
     private static byte[] getDigest(final byte[] ikm, final byte[] info) throws GeneralSecurityException  {
         Mac mac = Mac.getInstance(ALG);
         mac.init(new SecretKeySpec(new byte[mac.getMacLength()], ALG));
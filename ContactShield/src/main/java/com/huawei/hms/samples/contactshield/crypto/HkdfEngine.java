@@ -0,0 +1,104 @@
+/*
+ * Copyright 2020. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huawei.hms.samples.contactshield.crypto;
+
+import com.huawei.hms.samples.contactshield.util.GlobalSettings;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * 16-Byte HKDF-SHA256 without salt, deriving the keys of several infos from each PeriodicKey.
+ * The pseudorandom key is extracted once per PeriodicKey and shared by the expands of all the infos. The salt is
+ * always zero, so the extract Mac is initialized only once. The Mac instances and buffers are reused, so the engine
+ * must not be shared by threads.
+ * MultiBufferHkdf is used instead only if GlobalSettings.isMultiBufferHkdf() is set when the engine is created
+ * and MultiBufferHkdf.isVerified() passes.
+ *
+ * @since 2020-10-17
+ */
+public class HkdfEngine {
+    private static final byte FIRST_BLOCK = 1;
+
+    private final byte[][] mInfos;
+
+    // Null if the JCA Macs are used.
+    private final MultiBufferHkdf mMultiBufferHkdf;
+
+    private Mac mExtractMac;
+
+    private Mac mExpandMac;
+
+    private byte[] mPrk;
+
+    private byte[] mDigest;
+
+    /**
+     * Constructor
+     *
+     * @param infos optional contexts, every key is expanded with each of them
+     */
+    public HkdfEngine(byte[]... infos) {
+        mInfos = infos.clone();
+        mMultiBufferHkdf = GlobalSettings.isMultiBufferHkdf() && MultiBufferHkdf.isVerified()
+            ? new MultiBufferHkdf(infos) : null;
+    }
+
+    /**
+     * Derive the keys of ikms[0, count)
+     *
+     * @param ikms input keying materials
+     * @param count number of ikms to derive
+     * @param results results[i] saves the keys expanded with infos[i], Hkdf.DEFAULT_SIZE bytes for each ikm
+     * @throws GeneralSecurityException Exception
+     */
+    public void derive(byte[][] ikms, int count, byte[][] results) throws GeneralSecurityException {
+        if (mMultiBufferHkdf != null) {
+            mMultiBufferHkdf.derive(ikms, count, results);
+            return;
+        }
+        if (results.length != mInfos.length) {
+            throw new GeneralSecurityException("Results do not match infos");
+        }
+        for (byte[] result : results) {
+            if (result.length < count * Hkdf.DEFAULT_SIZE) {
+                throw new GeneralSecurityException("Result array too small");
+            }
+        }
+        if (mExtractMac == null) {
+            mExtractMac = Mac.getInstance(Hkdf.ALG);
+            mExtractMac.init(new SecretKeySpec(new byte[mExtractMac.getMacLength()], Hkdf.ALG));
+            mExpandMac = Mac.getInstance(Hkdf.ALG);
+            mPrk = new byte[mExtractMac.getMacLength()];
+            mDigest = new byte[mExpandMac.getMacLength()];
+        }
+        for (int i = 0; i < count; i++) {
+            mExtractMac.update(ikms[i]);
+            mExtractMac.doFinal(mPrk, 0);
+            mExpandMac.init(new SecretKeySpec(mPrk, Hkdf.ALG));
+            for (int j = 0; j < mInfos.length; j++) {
+                // Only the first block is needed for a 16-byte output.
+                mExpandMac.update(mInfos[j]);
+                mExpandMac.update(FIRST_BLOCK);
+                mExpandMac.doFinal(mDigest, 0);
+                System.arraycopy(mDigest, 0, results[j], i * Hkdf.DEFAULT_SIZE, Hkdf.DEFAULT_SIZE);
+            }
+        }
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright 2020. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huawei.hms.samples.contactshield.crypto;
+
+import com.huawei.hms.samples.contactshield.util.ContactShieldLog;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * 16-Byte HKDF-SHA256 without salt, deriving the keys of MultiBufferHkdf.LANES periodic keys in lockstep.
+ * Every periodic key is extracted once, and the pseudorandom key is expanded with each info.
+ * The HMAC pad states of the zero salt are computed once, so a key with two infos costs 8 compressions.
+ * The engine keeps its buffers between calls and must not be shared by threads.
+ *
+ * @since 2020-10-18
+ */
+public class MultiBufferHkdf {
+    private static final String TAG = "MultiBufferHkdf";
+
+    /**
+     * Number of keys derived in lockstep
+     */
+    public static final int LANES = MultiBufferSha256.LANES;
+
+    private static final int BLOCK_SIZE = 64;
+
+    private static final int DIGEST_WORDS = MultiBufferSha256.STATE_WORDS;
+
+    private static final int BLOCK_WORDS = MultiBufferSha256.BLOCK_WORDS;
+
+    private static final int IKM_WORDS = Hkdf.DEFAULT_SIZE / Integer.BYTES;
+
+    private static final int RESULT_WORDS = Hkdf.DEFAULT_SIZE / Integer.BYTES;
+
+    // Info, the counter byte, the padding byte and the 8-byte message length must fit in a single block.
+    private static final int MAX_INFO_SIZE = BLOCK_SIZE - 1 - 1 - Long.BYTES;
+
+    private static final int IPAD = 0x36363636;
+
+    private static final int OPAD = 0x5c5c5c5c;
+
+    private static final int PADDING_WORD = 0x80000000;
+
+    private static final int[] EXTRACT_INNER_STATE = getZeroKeyPadState(IPAD);
+
+    private static final int[] EXTRACT_OUTER_STATE = getZeroKeyPadState(OPAD);
+
+    // Result of the known-answer check, null until it is run.
+    private static volatile Boolean sIsVerified;
+
+    private final MultiBufferSha256 mSha = new MultiBufferSha256();
+
+    private final int[] mPrk = new int[DIGEST_WORDS * LANES];
+
+    private final int[] mInnerPadState = new int[DIGEST_WORDS * LANES];
+
+    private final int[] mOuterPadState = new int[DIGEST_WORDS * LANES];
+
+    private final byte[][] mInfos;
+
+    // Padded first expand block of each info, null if the info is too long and JCA is used instead.
+    private final int[][] mInfoBlocks;
+
+    /**
+     * Constructor
+     *
+     * @param infos optional contexts, every key is expanded with each of them
+     */
+    public MultiBufferHkdf(byte[]... infos) {
+        mInfos = infos.clone();
+        mInfoBlocks = new int[infos.length][];
+        for (int i = 0; i < infos.length; i++) {
+            if (infos[i].length <= MAX_INFO_SIZE) {
+                mInfoBlocks[i] = getInfoBlock(infos[i]);
+            }
+        }
+    }
+
+    /**
+     * Derive the keys of ikms[0] ~ ikms[count - 1]
+     *
+     * @param ikms input keying materials, 16-byte keys take the multi-buffer path
+     * @param count number of keys
+     * @param results results[i] saves the keys expanded with infos[i], Hkdf.DEFAULT_SIZE bytes for each ikm
+     * @throws GeneralSecurityException Exception
+     */
+    public void derive(byte[][] ikms, int count, byte[][] results) throws GeneralSecurityException {
+        if (results.length != mInfos.length) {
+            throw new GeneralSecurityException("Results do not match infos");
+        }
+        for (byte[] result : results) {
+            if (result.length < count * Hkdf.DEFAULT_SIZE) {
+                throw new GeneralSecurityException("Result array too small");
+            }
+        }
+        for (int from = 0; from < count; from += LANES) {
+            deriveLanes(ikms, from, Math.min(LANES, count - from), results);
+        }
+    }
+
+    /**
+     * Known-answer check of the multi-buffer path against Hkdf.get16ByteHkdfWithoutSalt(), run once.
+     * The keys fill more than one lane group, the last group only partially, and one key is not 16 bytes long.
+     *
+     * @return true if every derived key matches the JCA result
+     */
+    public static boolean isVerified() {
+        Boolean isVerified = sIsVerified;
+        if (isVerified == null) {
+            isVerified = checkKnownAnswers();
+            sIsVerified = isVerified;
+        }
+        return isVerified;
+    }
+
+    private static boolean checkKnownAnswers() {
+        byte[][] infos = {DynamicSharingCode.DSC_KEY.getBytes(StandardCharsets.UTF_8),
+            SupplementaryData.SD_KEY.getBytes(StandardCharsets.UTF_8)};
+        int count = LANES + LANES / 2 + 1;
+        byte[][] ikms = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            ikms[i] = new byte[i == LANES / 2 ? Hkdf.DEFAULT_SIZE + 1 : Hkdf.DEFAULT_SIZE];
+            for (int j = 0; j < ikms[i].length; j++) {
+                ikms[i][j] = (byte) (i * 31 + j * 7 + 1);
+            }
+        }
+        byte[][] results = new byte[infos.length][count * Hkdf.DEFAULT_SIZE];
+        try {
+            new MultiBufferHkdf(infos).derive(ikms, count, results);
+            for (int i = 0; i < infos.length; i++) {
+                for (int j = 0; j < count; j++) {
+                    byte[] expected = Hkdf.get16ByteHkdfWithoutSalt(ikms[j], infos[i]);
+                    int offset = j * Hkdf.DEFAULT_SIZE;
+                    if (!Arrays.equals(expected, Arrays.copyOfRange(results[i], offset, offset + Hkdf.DEFAULT_SIZE))) {
+                        ContactShieldLog.e(TAG, "Known-answer check failed at key " + j);
+                        return false;
+                    }
+                }
+            }
+        } catch (GeneralSecurityException e) {
+            ContactShieldLog.e(TAG, "Known-answer check exception:" + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    private void deriveLanes(byte[][] ikms, int from, int laneNum, byte[][] results) throws GeneralSecurityException {
+        for (int lane = 0; lane < laneNum; lane++) {
+            if (ikms[from + lane] == null) {
+                throw new GeneralSecurityException("ikm is null");
+            }
+        }
+        int[] state = mSha.mState;
+        int[] block = mSha.mBlock;
+
+        // Extract: HMAC keyed with the zero salt, the pad states are constant.
+        setAllLanes(state, EXTRACT_INNER_STATE);
+        for (int lane = 0; lane < LANES; lane++) {
+            byte[] ikm = lane < laneNum ? ikms[from + lane] : null;
+            boolean isFastPath = ikm != null && ikm.length == Hkdf.DEFAULT_SIZE;
+            for (int i = 0; i < IKM_WORDS; i++) {
+                block[i * LANES + lane] = isFastPath ? getInt(ikm, i * Integer.BYTES) : 0;
+            }
+        }
+        fillPadding(block, IKM_WORDS, BLOCK_SIZE + Hkdf.DEFAULT_SIZE);
+        mSha.compress();
+        setInnerDigest(block, state);
+        setAllLanes(state, EXTRACT_OUTER_STATE);
+        mSha.compress();
+        System.arraycopy(state, 0, mPrk, 0, mPrk.length);
+
+        // Pad states of the pseudorandom key, shared by the expands of all the infos.
+        computePrkPadState(IPAD, mInnerPadState);
+        computePrkPadState(OPAD, mOuterPadState);
+
+        for (int i = 0; i < mInfos.length; i++) {
+            if (mInfoBlocks[i] == null) {
+                deriveWithJca(ikms, from, 0, laneNum, i, results[i]);
+                continue;
+            }
+            System.arraycopy(mInnerPadState, 0, state, 0, state.length);
+            setAllLanes(block, mInfoBlocks[i]);
+            mSha.compress();
+            setInnerDigest(block, state);
+            System.arraycopy(mOuterPadState, 0, state, 0, state.length);
+            mSha.compress();
+            for (int lane = 0; lane < laneNum; lane++) {
+                int offset = (from + lane) * Hkdf.DEFAULT_SIZE;
+                for (int word = 0; word < RESULT_WORDS; word++) {
+                    putInt(state[word * LANES + lane], results[i], offset + word * Integer.BYTES);
+                }
+            }
+        }
+
+        // Keys which are not 16 bytes long were hashed as zeros above, derive them again with JCA.
+        for (int lane = 0; lane < laneNum; lane++) {
+            if (ikms[from + lane].length == Hkdf.DEFAULT_SIZE) {
+                continue;
+            }
+            for (int i = 0; i < mInfos.length; i++) {
+                deriveWithJca(ikms, from, lane, lane + 1, i, results[i]);
+            }
+        }
+    }
+
+    private void deriveWithJca(byte[][] ikms, int from, int fromLane, int toLane, int infoIndex, byte[] result)
+            throws GeneralSecurityException {
+        for (int lane = fromLane; lane < toLane; lane++) {
+            byte[] key = Hkdf.get16ByteHkdfWithoutSalt(ikms[from + lane], mInfos[infoIndex]);
+            System.arraycopy(key, 0, result, (from + lane) * Hkdf.DEFAULT_SIZE, Hkdf.DEFAULT_SIZE);
+        }
+    }
+
+    private void computePrkPadState(int pad, int[] padState) {
+        int[] block = mSha.mBlock;
+        for (int i = 0; i < DIGEST_WORDS * LANES; i++) {
+            block[i] = mPrk[i] ^ pad;
+        }
+        for (int i = DIGEST_WORDS * LANES; i < BLOCK_WORDS * LANES; i++) {
+            block[i] = pad;
+        }
+        mSha.reset();
+        mSha.compress();
+        System.arraycopy(mSha.mState, 0, padState, 0, padState.length);
+    }
+
+    /**
+     * Use the inner digest as the message of the outer hash
+     */
+    private static void setInnerDigest(int[] block, int[] state) {
+        System.arraycopy(state, 0, block, 0, DIGEST_WORDS * LANES);
+        fillPadding(block, DIGEST_WORDS, BLOCK_SIZE + DIGEST_WORDS * Integer.BYTES);
+    }
+
+    /**
+     * Pad the message of messageWords words, the length covers the key block hashed before it.
+     */
+    private static void fillPadding(int[] block, int messageWords, int totalLength) {
+        for (int lane = 0; lane < LANES; lane++) {
+            block[messageWords * LANES + lane] = PADDING_WORD;
+            for (int i = messageWords + 1; i < BLOCK_WORDS - 1; i++) {
+                block[i * LANES + lane] = 0;
+            }
+            block[(BLOCK_WORDS - 1) * LANES + lane] = totalLength * Byte.SIZE;
+        }
+    }
+
+    private static void setAllLanes(int[] dest, int[] words) {
+        for (int i = 0; i < words.length; i++) {
+            for (int lane = 0; lane < LANES; lane++) {
+                dest[i * LANES + lane] = words[i];
+            }
+        }
+    }
+
+    private static int[] getZeroKeyPadState(int pad) {
+        MultiBufferSha256 sha = new MultiBufferSha256();
+        int[] block = new int[BLOCK_WORDS];
+        for (int i = 0; i < BLOCK_WORDS; i++) {
+            block[i] = pad;
+        }
+        setAllLanes(sha.mBlock, block);
+        sha.reset();
+        sha.compress();
+        int[] padState = new int[DIGEST_WORDS];
+        for (int i = 0; i < DIGEST_WORDS; i++) {
+            padState[i] = sha.mState[i * LANES];
+        }
+        return padState;
+    }
+
+    private static int[] getInfoBlock(byte[] info) {
+        // info || 0x01, the first and only block of T(1) needed for a 16-byte output.
+        byte[] data = new byte[BLOCK_SIZE];
+        System.arraycopy(info, 0, data, 0, info.length);
+        data[info.length] = 1;
+        data[info.length + 1] = (byte) 0x80;
+        putInt((BLOCK_SIZE + info.length + 1) * Byte.SIZE, data, BLOCK_SIZE - Integer.BYTES);
+        int[] block = new int[BLOCK_WORDS];
+        for (int i = 0; i < BLOCK_WORDS; i++) {
+            block[i] = getInt(data, i * Integer.BYTES);
+        }
+        return block;
+    }
+
+    private static int getInt(byte[] data, int offset) {
+        return (data[offset] << 24) | ((data[offset + 1] & 0xff) << 16) | ((data[offset + 2] & 0xff) << 8)
+                | (data[offset + 3] & 0xff);
+    }
+
+    private static void putInt(int value, byte[] data, int offset) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2020. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huawei.hms.samples.contactshield.crypto;
+
+/**
+ * SHA-256 compression function running on several independent messages in lockstep.
+ * Every word is stored lane by lane (word * LANES + lane), so each round is a short loop over the lanes
+ * without data dependency between the iterations. Padding is left to the caller.
+ *
+ * @since 2020-10-18
+ */
+final class MultiBufferSha256 {
+    /**
+     * Number of messages hashed at once
+     */
+    static final int LANES = 8;
+
+    /**
+     * Number of int words in a state
+     */
+    static final int STATE_WORDS = 8;
+
+    /**
+     * Number of int words in a block
+     */
+    static final int BLOCK_WORDS = 16;
+
+    private static final int ROUNDS = 64;
+
+    private static final int[] IV = {
+        0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+    };
+
+    private static final int[] K = {
+        0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+        0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+        0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+        0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+        0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+        0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+        0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+        0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+    };
+
+    /**
+     * Chaining state of every lane
+     */
+    final int[] mState = new int[STATE_WORDS * LANES];
+
+    /**
+     * Message block of every lane, filled by the caller before compress()
+     */
+    final int[] mBlock = new int[BLOCK_WORDS * LANES];
+
+    private final int[] mSchedule = new int[ROUNDS * LANES];
+
+    private final int[] mWork = new int[STATE_WORDS * LANES];
+
+    /**
+     * Set the state of every lane to the SHA-256 initial value
+     */
+    void reset() {
+        for (int i = 0; i < STATE_WORDS; i++) {
+            for (int lane = 0; lane < LANES; lane++) {
+                mState[i * LANES + lane] = IV[i];
+            }
+        }
+    }
+
+    /**
+     * Process mBlock of every lane and update mState
+     */
+    void compress() {
+        int[] w = mSchedule;
+        System.arraycopy(mBlock, 0, w, 0, BLOCK_WORDS * LANES);
+        for (int t = BLOCK_WORDS * LANES; t < ROUNDS * LANES; t += LANES) {
+            for (int lane = 0; lane < LANES; lane++) {
+                int w15 = w[t - 15 * LANES + lane];
+                int w2 = w[t - 2 * LANES + lane];
+                int s0 = Integer.rotateRight(w15, 7) ^ Integer.rotateRight(w15, 18) ^ (w15 >>> 3);
+                int s1 = Integer.rotateRight(w2, 17) ^ Integer.rotateRight(w2, 19) ^ (w2 >>> 10);
+                w[t + lane] = w[t - 16 * LANES + lane] + s0 + w[t - 7 * LANES + lane] + s1;
+            }
+        }
+
+        // Working variables a ~ h, lane by lane. Instead of shifting the variables after each round,
+        // their roles rotate through the slots, so only the new a and e are written.
+        int[] v = mWork;
+        System.arraycopy(mState, 0, v, 0, STATE_WORDS * LANES);
+        for (int t = 0; t < ROUNDS; t++) {
+            int k = K[t];
+            int base = t * LANES;
+            int ia = slot(t, 0);
+            int ib = slot(t, 1);
+            int ic = slot(t, 2);
+            int id = slot(t, 3);
+            int ie = slot(t, 4);
+            int iff = slot(t, 5);
+            int ig = slot(t, 6);
+            int ih = slot(t, 7);
+            for (int lane = 0; lane < LANES; lane++) {
+                int a = v[ia + lane];
+                int b = v[ib + lane];
+                int c = v[ic + lane];
+                int e = v[ie + lane];
+                int f = v[iff + lane];
+                int g = v[ig + lane];
+                int t1 = v[ih + lane]
+                        + (Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25))
+                        + ((e & f) ^ (~e & g)) + k + w[base + lane];
+                int t2 = (Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22))
+                        + ((a & b) ^ (a & c) ^ (b & c));
+                // The slot of d becomes e, and the slot of h becomes a in the next round.
+                v[id + lane] += t1;
+                v[ih + lane] = t1 + t2;
+            }
+        }
+        // ROUNDS is a multiple of STATE_WORDS, so every variable is back in its own slot.
+        for (int i = 0; i < STATE_WORDS * LANES; i++) {
+            mState[i] += v[i];
+        }
+    }
+
+    /**
+     * Offset of the slot holding the variable in round t
+     *
+     * @param t round
+     * @param variable 0 for a, ..., 7 for h
+     */
+    private static int slot(int t, int variable) {
+        return ((variable - t) & (STATE_WORDS - 1)) * LANES;
+    }
+}
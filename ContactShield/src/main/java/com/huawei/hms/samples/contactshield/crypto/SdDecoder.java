@@ -0,0 +1,119 @@
+/*
+ * Copyright 2020. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huawei.hms.samples.contactshield.crypto;
+
+import com.huawei.hms.samples.contactshield.util.ContactShieldLog;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Decrypt the supplementary data, which is AES-CTR encrypted with the DSC as the counter block.
+ * The SD is shorter than one block, so the keystream is just the DSC encrypted with the SD key in ECB mode.
+ * The key schedule is kept until the SD key changes, and the keystream until the DSC changes, so the
+ * records scanned with the same DSC only cost an XOR. The decoder must not be shared by threads.
+ *
+ * @since 2020-10-18
+ */
+public class SdDecoder {
+    private static final String TAG = "SdDecoder";
+
+    private static final int BLOCK_SIZE = 16;
+
+    private final byte[] mSdKey = new byte[Hkdf.DEFAULT_SIZE];
+
+    private final byte[] mDsc = new byte[BLOCK_SIZE];
+
+    private final byte[] mKeystream = new byte[BLOCK_SIZE];
+
+    private Cipher mCipher;
+
+    private boolean mHasKey;
+
+    private boolean mHasKeystream;
+
+    /**
+     * Set the SD key used by the following decrypt()
+     *
+     * @param sdKey SD key of the PeriodicKey
+     * @return true if success
+     */
+    public boolean setKey(byte[] sdKey) {
+        if (mHasKey && Arrays.equals(mSdKey, sdKey)) {
+            return true;
+        }
+        mHasKey = false;
+        mHasKeystream = false;
+        if (sdKey == null || sdKey.length != Hkdf.DEFAULT_SIZE) {
+            return false;
+        }
+        try {
+            if (mCipher == null) {
+                mCipher = Cipher.getInstance("AES/ECB/NoPadding");
+            }
+            mCipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(sdKey, "AES"));
+        } catch (GeneralSecurityException e) {
+            ContactShieldLog.e(TAG, "Init SD key exception : " + e.getMessage());
+            return false;
+        }
+        System.arraycopy(sdKey, 0, mSdKey, 0, Hkdf.DEFAULT_SIZE);
+        mHasKey = true;
+        return true;
+    }
+
+    /**
+     * Decrypt the SD scanned with the DSC
+     *
+     * @param dscData byte array containing the DSC
+     * @param offset offset of the DSC in dscData
+     * @param sd encrypted SD, not modified
+     * @param result array to save the decrypted SD, must have the same length as sd
+     * @return true if success
+     */
+    public boolean decrypt(byte[] dscData, int offset, byte[] sd, byte[] result) {
+        if (!mHasKey || sd == null || result == null || sd.length != result.length || sd.length > BLOCK_SIZE) {
+            return false;
+        }
+        if (!mHasKeystream || !isSameDsc(dscData, offset)) {
+            mHasKeystream = false;
+            try {
+                mCipher.doFinal(dscData, offset, BLOCK_SIZE, mKeystream, 0);
+            } catch (GeneralSecurityException e) {
+                ContactShieldLog.e(TAG, "Keystream exception : " + e.getMessage());
+                return false;
+            }
+            System.arraycopy(dscData, offset, mDsc, 0, BLOCK_SIZE);
+            mHasKeystream = true;
+        }
+        for (int i = 0; i < sd.length; i++) {
+            result[i] = (byte) (sd[i] ^ mKeystream[i]);
+        }
+        return true;
+    }
+
+    private boolean isSameDsc(byte[] dscData, int offset) {
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            if (mDsc[i] != dscData[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
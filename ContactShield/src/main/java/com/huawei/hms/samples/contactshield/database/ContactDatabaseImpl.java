@@ -20,7 +20,9 @@ import com.huawei.hms.samples.contactshield.contact.ContactDetail;
 import com.huawei.hms.samples.contactshield.contact.ContactSketch;
 import com.huawei.hms.samples.contactshield.database.table.ContactDetailData;
 import com.huawei.hms.samples.contactshield.database.table.ContactSketchData;
+import com.huawei.hms.samples.contactshield.database.table.ContactWindowBase;
 import com.huawei.hms.samples.contactshield.database.table.ContactWindowData;
+import com.huawei.hms.samples.contactshield.database.table.KeyFileLedgerData;
 import com.huawei.hms.samples.contactshield.database.table.PdkData;
 import com.huawei.hms.samples.contactshield.database.table.PdkNum;
 import com.huawei.hms.samples.contactshield.database.table.ScanData;
@@ -41,11 +43,27 @@ public class ContactDatabaseImpl implements IContactDatabase {
         return Collections.EMPTY_LIST;
     }
 
+    @Override
+    public List<ScanData> getAllScanData(long startInterval, long endInterval) {
+        return Collections.EMPTY_LIST;
+    }
+
     @Override
     public long getScanDataNum(long startInterval, long endInterval) {
         return 0;
     }
 
+    @Override
+    public long[] getScanDataIntervalRange(long startInterval) {
+        return null;
+    }
+
+    @Override
+    public List<ScanData> getScanDataOrderByDsc(long startInterval, long endInterval, byte[] afterDsc, int afterId,
+        int limit) {
+        return Collections.EMPTY_LIST;
+    }
+
     @Override
     public int deleteScanData(long validTs) {
         return 0;
@@ -92,6 +110,19 @@ public class ContactDatabaseImpl implements IContactDatabase {
         return Collections.EMPTY_LIST;
     }
 
+    @Override
+    public List<ContactDetailData> getContactDetailData(String pkgName, String token, List<byte[]> keyFingerprints) {
+        return Collections.EMPTY_LIST;
+    }
+
+    @Override
+    public void updateContactDetailData(ContactDetailData... contactDetailData) {
+    }
+
+    @Override
+    public void deleteContactDetailData(long... ids) {
+    }
+
     @Override
     public void insertContactSketchData(ContactSketchData... contactSketchData) {
     }
@@ -122,6 +153,19 @@ public class ContactDatabaseImpl implements IContactDatabase {
         return Collections.EMPTY_LIST;
     }
 
+    @Override
+    public List<ContactWindowBase> getContactWindowBase(String pkgName, List<byte[]> keyFingerprints) {
+        return Collections.EMPTY_LIST;
+    }
+
+    @Override
+    public void updateContactWindowBase(ContactWindowBase... contactWindowBase) {
+    }
+
+    @Override
+    public void deleteContactWindowData(long... ids) {
+    }
+
     @Override
     public void deleteContactWindowData(String pkgName) {
     }
@@ -129,4 +173,21 @@ public class ContactDatabaseImpl implements IContactDatabase {
     @Override
     public void deleteContactWindowData(String pkgName, long validTs) {
     }
+
+    @Override
+    public void insertKeyFileLedgerData(KeyFileLedgerData... keyFileLedgerData) {
+    }
+
+    @Override
+    public List<KeyFileLedgerData> getKeyFileLedgerData(String pkgName, List<byte[]> fingerprints) {
+        return Collections.EMPTY_LIST;
+    }
+
+    @Override
+    public void deleteKeyFileLedgerData(String pkgName, long validTs) {
+    }
+
+    @Override
+    public void deleteKeyFileLedgerData(String pkgName) {
+    }
 }
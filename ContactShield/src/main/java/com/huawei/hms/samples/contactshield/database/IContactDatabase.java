@@ -20,7 +20,9 @@ import com.huawei.hms.samples.contactshield.contact.ContactDetail;
 import com.huawei.hms.samples.contactshield.contact.ContactSketch;
 import com.huawei.hms.samples.contactshield.database.table.ContactDetailData;
 import com.huawei.hms.samples.contactshield.database.table.ContactSketchData;
+import com.huawei.hms.samples.contactshield.database.table.ContactWindowBase;
 import com.huawei.hms.samples.contactshield.database.table.ContactWindowData;
+import com.huawei.hms.samples.contactshield.database.table.KeyFileLedgerData;
 import com.huawei.hms.samples.contactshield.database.table.PdkData;
 import com.huawei.hms.samples.contactshield.database.table.PdkNum;
 import com.huawei.hms.samples.contactshield.database.table.ScanData;
@@ -42,10 +44,19 @@ public interface IContactDatabase {
      * @param dscTarget target DSC
      * @param startInterval starting timestamp
      * @param endInterval ending timestamp
-     * @return matched ScanData list
+     * @return matched ScanData list, in any order
      */
     List<ScanData> getAllScanData(byte[] dscTarget, long startInterval, long endInterval);
 
+    /**
+     * Get all ScanData between startInterval ~ endInterval, ordered by timestamp
+     *
+     * @param startInterval starting timestamp
+     * @param endInterval ending timestamp
+     * @return ScanData list
+     */
+    List<ScanData> getAllScanData(long startInterval, long endInterval);
+
     /**
      * Get the number of ScanData which is between startInterval ~ endInterval
      *
@@ -55,6 +66,29 @@ public interface IContactDatabase {
      */
     long getScanDataNum(long startInterval, long endInterval);
 
+    /**
+     * Get the first and last interval numbers of the ScanData since startInterval
+     *
+     * @param startInterval starting interval number
+     * @return {first, last} interval numbers, null if there is no ScanData since startInterval
+     */
+    long[] getScanDataIntervalRange(long startInterval);
+
+    /**
+     * Get a page of ScanData between startInterval ~ endInterval, ordered by DSC (as unsigned bytes) and then id.
+     * Only the ScanData after (afterDsc, afterId) in that order are returned, so the whole range can be read
+     * sequentially page by page.
+     *
+     * @param startInterval starting timestamp
+     * @param endInterval ending timestamp
+     * @param afterDsc DSC of the last ScanData of the previous page, null for the first page
+     * @param afterId id of the last ScanData of the previous page
+     * @param limit max number of ScanData to return
+     * @return ScanData list
+     */
+    List<ScanData> getScanDataOrderByDsc(long startInterval, long endInterval, byte[] afterDsc, int afterId,
+        int limit);
+
     /**
      * Delete ScanData whose timestamp is out of validTs
      *
@@ -133,6 +167,30 @@ public interface IContactDatabase {
      */
     List<ContactDetail> getContactDetailList(String pkgName, String token);
 
+    /**
+     * Get ContactDetailData for specific package + token, matched with the PeriodicKeys of given fingerprints
+     *
+     * @param pkgName package name
+     * @param token token
+     * @param keyFingerprints fingerprints of the PeriodicKeys
+     * @return ContactDetailData list, with the ids
+     */
+    List<ContactDetailData> getContactDetailData(String pkgName, String token, List<byte[]> keyFingerprints);
+
+    /**
+     * Update the ContactDetail of ContactDetailData with the same id
+     *
+     * @param contactDetailData ContactDetailData list
+     */
+    void updateContactDetailData(ContactDetailData... contactDetailData);
+
+    /**
+     * Delete ContactDetailData with given ids
+     *
+     * @param ids ids of ContactDetailData
+     */
+    void deleteContactDetailData(long... ids);
+
     // APIs for ContactSketchData
     /**
      * Insert new ContactSketchData
@@ -190,6 +248,29 @@ public interface IContactDatabase {
      */
     List<ContactWindowData> getContactWindowData(String pkgName);
 
+    /**
+     * Get ContactWindowBase for specific package, matched with the PeriodicKeys of given fingerprints
+     *
+     * @param pkgName package name
+     * @param keyFingerprints fingerprints of the PeriodicKeys
+     * @return ContactWindowBase list, with the ids
+     */
+    List<ContactWindowBase> getContactWindowBase(String pkgName, List<byte[]> keyFingerprints);
+
+    /**
+     * Update the report type of ContactWindowBase with the same id
+     *
+     * @param contactWindowBase ContactWindowBase list
+     */
+    void updateContactWindowBase(ContactWindowBase... contactWindowBase);
+
+    /**
+     * Delete ContactWindowData with given ids, together with their ScanInfoData
+     *
+     * @param ids ids of ContactWindowBase
+     */
+    void deleteContactWindowData(long... ids);
+
     /**
      * Delete all ContactWindowData for specific package
      *
@@ -204,4 +285,36 @@ public interface IContactDatabase {
      * @param validTs valid timestamp
      */
     void deleteContactWindowData(String pkgName, long validTs);
+
+    // APIs for KeyFileLedgerData
+    /**
+     * Insert new KeyFileLedgerData, replacing the one with the same package name and fingerprint
+     *
+     * @param keyFileLedgerData KeyFileLedgerData list
+     */
+    void insertKeyFileLedgerData(KeyFileLedgerData... keyFileLedgerData);
+
+    /**
+     * Get KeyFileLedgerData of the package with given fingerprints
+     *
+     * @param pkgName package name
+     * @param fingerprints fingerprints of the key files
+     * @return KeyFileLedgerData found, in any order
+     */
+    List<KeyFileLedgerData> getKeyFileLedgerData(String pkgName, List<byte[]> fingerprints);
+
+    /**
+     * Delete KeyFileLedgerData of the package last used before validTs
+     *
+     * @param pkgName package name
+     * @param validTs valid interval number
+     */
+    void deleteKeyFileLedgerData(String pkgName, long validTs);
+
+    /**
+     * Delete all the KeyFileLedgerData of the package
+     *
+     * @param pkgName package name
+     */
+    void deleteKeyFileLedgerData(String pkgName);
 }
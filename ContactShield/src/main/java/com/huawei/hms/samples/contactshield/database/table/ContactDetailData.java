@@ -28,6 +28,9 @@ public class ContactDetailData {
     private String token;
     private ContactDetail contactDetail;
 
+    /* Fingerprint of the PeriodicKey matched, see PeriodicKeyUtil.getFingerprint(), so revisions can be applied */
+    private byte[] keyFingerprint = new byte[0];
+
     public long getId() {
         return id;
     }
@@ -59,4 +62,12 @@ public class ContactDetailData {
     public void setContactDetail(ContactDetail contactDetail) {
         this.contactDetail = contactDetail;
     }
+
+    public byte[] getKeyFingerprint() {
+        return keyFingerprint.clone();
+    }
+
+    public void setKeyFingerprint(byte[] keyFingerprint) {
+        this.keyFingerprint = keyFingerprint.clone();
+    }
 }
@@ -27,6 +27,9 @@ public class ContactWindowBase {
     private long dateMillis;
     private int reportType;
 
+    /* Fingerprint of the PeriodicKey matched, see PeriodicKeyUtil.getFingerprint(), so revisions can be applied */
+    private byte[] keyFingerprint = new byte[0];
+
     public long getId() {
         return id;
     }
@@ -66,4 +69,12 @@ public class ContactWindowBase {
     public void setReportType(int reportType) {
         this.reportType = reportType;
     }
+
+    public byte[] getKeyFingerprint() {
+        return keyFingerprint.clone();
+    }
+
+    public void setKeyFingerprint(byte[] keyFingerprint) {
+        this.keyFingerprint = keyFingerprint.clone();
+    }
 }
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2020. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huawei.hms.samples.contactshield.database.table;
+
+/**
+ * Ledger entry of a key file diagnosed by a package, so the file is not parsed and matched again by the next
+ * diagnoses. Only the keys which may contribute to the result are kept.
+ *
+ * @since 2020-10-25
+ */
+public class KeyFileLedgerData {
+    private String pkgName;
+
+    /* SHA-256 of export.sig and export.bin */
+    private byte[] fingerprint = new byte[0];
+
+    /* Scan data flushed from this interval on was not matched, keys ending from this interval on are kept */
+    private long watermarkInterval;
+
+    /* Number of keys in the file */
+    private long keyNum;
+
+    /* Keys which matched scan data, or may match the scan data flushed later */
+    private byte[] candidateKeys = new byte[0];
+
+    /* Revised keys of the file, replayed by every diagnosis */
+    private byte[] revisedKeys = new byte[0];
+
+    /* Id of the key which verified the signature of the file, empty if the signature was not verified */
+    private String verifiedKeyId = "";
+
+    /* Interval number of the last diagnosis which used the entry, for expiration */
+    private long lastUsedInterval;
+
+    public String getPkgName() {
+        return pkgName;
+    }
+
+    public void setPkgName(String pkgName) {
+        this.pkgName = pkgName;
+    }
+
+    public byte[] getFingerprint() {
+        return fingerprint.clone();
+    }
+
+    public void setFingerprint(byte[] fingerprint) {
+        this.fingerprint = fingerprint.clone();
+    }
+
+    public long getWatermarkInterval() {
+        return watermarkInterval;
+    }
+
+    public void setWatermarkInterval(long watermarkInterval) {
+        this.watermarkInterval = watermarkInterval;
+    }
+
+    public long getKeyNum() {
+        return keyNum;
+    }
+
+    public void setKeyNum(long keyNum) {
+        this.keyNum = keyNum;
+    }
+
+    public byte[] getCandidateKeys() {
+        return candidateKeys.clone();
+    }
+
+    public void setCandidateKeys(byte[] candidateKeys) {
+        this.candidateKeys = candidateKeys.clone();
+    }
+
+    public byte[] getRevisedKeys() {
+        return revisedKeys.clone();
+    }
+
+    public void setRevisedKeys(byte[] revisedKeys) {
+        this.revisedKeys = revisedKeys.clone();
+    }
+
+    public String getVerifiedKeyId() {
+        return verifiedKeyId;
+    }
+
+    public void setVerifiedKeyId(String verifiedKeyId) {
+        this.verifiedKeyId = verifiedKeyId;
+    }
+
+    public long getLastUsedInterval() {
+        return lastUsedInterval;
+    }
+
+    public void setLastUsedInterval(long lastUsedInterval) {
+        this.lastUsedInterval = lastUsedInterval;
+    }
+}
@@ -51,6 +51,13 @@ public class ScanData {
         return dsc.clone();
     }
 
+    /**
+     * Same as getDsc() without copying, the returned array must not be modified.
+     */
+    public byte[] getDscReadOnly() {
+        return dsc;
+    }
+
     public void setDsc(byte[] dsc) {
         this.dsc = dsc.clone();
     }
@@ -59,6 +66,13 @@ public class ScanData {
         return sd.clone();
     }
 
+    /**
+     * Same as getSd() without copying, the returned array must not be modified.
+     */
+    public byte[] getSdReadOnly() {
+        return sd;
+    }
+
     public void setSd(byte[] sd) {
         this.sd = sd.clone();
     }
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2020. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huawei.hms.samples.contactshield.match;
+
+import com.huawei.hms.samples.contactshield.ble.ContactBeacon;
+import com.huawei.hms.samples.contactshield.contact.PeriodicKey;
+import com.huawei.hms.samples.contactshield.crypto.DscDerivationEngine;
+import com.huawei.hms.samples.contactshield.crypto.DynamicSharingCode;
+import com.huawei.hms.samples.contactshield.crypto.Hkdf;
+import com.huawei.hms.samples.contactshield.database.table.ScanData;
+import com.huawei.hms.samples.contactshield.util.ContactShieldLog;
+import com.huawei.hms.samples.contactshield.util.GlobalSettings;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Index of the DSCs of the diagnosis keys which have not ended yet. Scan data flushed after a diagnosis is
+ * scanned at a later interval, so only these keys can match it, and only with the DSCs of their remaining
+ * intervals. Each flushed ScanData is looked up once, so the new contacts are found in O(new scans) without
+ * deriving or matching any other key.
+ * The DSCs are kept in an open addressing table of primitive arrays. The index is not changed once it is built,
+ * it can be read by several threads.
+ *
+ * @since 2020-10-29
+ */
+public class ContinuousKeyIndex {
+    private static final String TAG = "ContinuousKeyIndex";
+
+    private static final byte[] DSC_KEY_INFO = DynamicSharingCode.DSC_KEY.getBytes(StandardCharsets.UTF_8);
+
+    // Around 5 MB of table, 256K slots of 20 bytes for the DSCs of about 900 keys valid for a whole day. The other
+    // keys are left to the next diagnosis.
+    private static final int MAX_INDEXED_DSC_NUM = 128 * 1024;
+
+    // The table is at most half full.
+    private static final int LOAD_FACTOR_INVERSE = 2;
+
+    private final List<PeriodicKey> mKeyList = new ArrayList<>();
+
+    private long mEndInterval;
+
+    private int mDscNum;
+
+    private long[] mHighs;
+
+    private long[] mLows;
+
+    // Index of the key in mKeyList plus one, 0 for an empty slot.
+    private int[] mKeyIndexes;
+
+    private int mMask;
+
+    private ContinuousKeyIndex() {
+    }
+
+    /**
+     * Derive the DSCs of the keys from the given interval on
+     *
+     * @param keyList PeriodicKey list, without duplicate keys
+     * @param fromInterval first interval of the scan data to be matched
+     * @return index of the keys which have not ended before fromInterval
+     */
+    public static ContinuousKeyIndex create(List<PeriodicKey> keyList, long fromInterval) {
+        ContinuousKeyIndex index = new ContinuousKeyIndex();
+        long dscNum = 0;
+        for (PeriodicKey key : keyList) {
+            int offset = getFirstOffset(key, fromInterval);
+            int intervalNum = getIntervalNum(key);
+            if (offset >= intervalNum || key.getContent().length != ContactBeacon.DSC_LENGTH) {
+                continue;
+            }
+            if (dscNum + intervalNum - offset > MAX_INDEXED_DSC_NUM) {
+                ContactShieldLog.w(TAG, "Too many keys not ended, the rest are matched by the next diagnosis");
+                break;
+            }
+            dscNum += intervalNum - offset;
+            index.mKeyList.add(key);
+        }
+        index.build(fromInterval, (int) dscNum);
+        return index;
+    }
+
+    private static int getFirstOffset(PeriodicKey key, long fromInterval) {
+        return (int) Math.max(0, Math.min(fromInterval - key.getPeriodicKeyValidTime(), Integer.MAX_VALUE));
+    }
+
+    private static int getIntervalNum(PeriodicKey key) {
+        return (int) Math.max(0, Math.min(GlobalSettings.PDK_ROLLING_PERIOD, key.getPeriodicKeyLifeTime()));
+    }
+
+    private void build(long fromInterval, int dscNum) {
+        // The smallest power of 2 not below dscNum * LOAD_FACTOR_INVERSE.
+        int capacity = Integer.highestOneBit(Math.max(1, dscNum * LOAD_FACTOR_INVERSE - 1)) << 1;
+        mHighs = new long[capacity];
+        mLows = new long[capacity];
+        mKeyIndexes = new int[capacity];
+        mMask = capacity - 1;
+        DscDerivationEngine engine = new DscDerivationEngine();
+        for (int i = 0; i < mKeyList.size(); i++) {
+            PeriodicKey key = mKeyList.get(i);
+            int offset = getFirstOffset(key, fromInterval);
+            byte[] dscKey;
+            try {
+                dscKey = Hkdf.get16ByteHkdfWithoutSalt(key.getContent(), DSC_KEY_INFO);
+            } catch (GeneralSecurityException e) {
+                ContactShieldLog.e(TAG, "Hkdf derive exception: " + e.getMessage());
+                continue;
+            }
+            int derivedNum = engine.derive(dscKey, key.getPeriodicKeyValidTime() + offset,
+                getIntervalNum(key) - offset);
+            byte[] dscData = engine.getDscData();
+            for (int j = 0; j < derivedNum; j++) {
+                put(dscData, j * ContactBeacon.DSC_LENGTH, i);
+            }
+            mDscNum += derivedNum;
+            mEndInterval = Math.max(mEndInterval, key.getPeriodicKeyValidTime() + getIntervalNum(key));
+        }
+    }
+
+    private void put(byte[] dscData, int offset, int keyIndex) {
+        long high = DscUtil.getHigh(dscData, offset);
+        long low = DscUtil.getLow(dscData, offset);
+        int slot = DscUtil.hash(high, low) & mMask;
+        while (mKeyIndexes[slot] != 0) {
+            slot = (slot + 1) & mMask;
+        }
+        mHighs[slot] = high;
+        mLows[slot] = low;
+        mKeyIndexes[slot] = keyIndex + 1;
+    }
+
+    /**
+     * Find the keys which match the flushed scan data
+     *
+     * @param scanDataList flushed ScanData list
+     * @return keys whose DSCs were scanned within their life time, each key once
+     */
+    public List<PeriodicKey> match(List<ScanData> scanDataList) {
+        List<PeriodicKey> matchedKeyList = new ArrayList<>();
+        boolean[] isMatched = new boolean[mKeyList.size()];
+        for (ScanData scanData : scanDataList) {
+            byte[] dsc = scanData.getDscReadOnly();
+            if (dsc == null || dsc.length != ContactBeacon.DSC_LENGTH) {
+                continue;
+            }
+            long high = DscUtil.getHigh(dsc, 0);
+            long low = DscUtil.getLow(dsc, 0);
+            int slot = DscUtil.hash(high, low) & mMask;
+            while (mKeyIndexes[slot] != 0) {
+                int keyIndex = mKeyIndexes[slot] - 1;
+                if (mHighs[slot] == high && mLows[slot] == low && !isMatched[keyIndex]
+                    && isWithinLifeTime(mKeyList.get(keyIndex), scanData.getIntervalNum())) {
+                    isMatched[keyIndex] = true;
+                    matchedKeyList.add(mKeyList.get(keyIndex));
+                }
+                slot = (slot + 1) & mMask;
+            }
+        }
+        return matchedKeyList;
+    }
+
+    private static boolean isWithinLifeTime(PeriodicKey key, long intervalNum) {
+        return intervalNum >= key.getPeriodicKeyValidTime()
+            && intervalNum < key.getPeriodicKeyValidTime() + key.getPeriodicKeyLifeTime();
+    }
+
+    /**
+     * Check whether all the keys have ended
+     *
+     * @param intervalNum interval number of the scan data to be matched
+     * @return true if no key is valid at or after intervalNum
+     */
+    public boolean isExpired(long intervalNum) {
+        return mEndInterval <= intervalNum;
+    }
+
+    /**
+     * Getter
+     */
+    public int getKeyNum() {
+        return mKeyList.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ENGLISH, "ContinuousKeyIndex<keys: %d, dscs: %d, end: %d>", mKeyList.size(),
+            mDscNum, mEndInterval);
+    }
+}
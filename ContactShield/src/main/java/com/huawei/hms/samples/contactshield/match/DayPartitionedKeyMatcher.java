@@ -0,0 +1,188 @@
+/*
+ * Copyright 2020. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huawei.hms.samples.contactshield.match;
+
+import com.huawei.hms.samples.contactshield.contact.PeriodicKey;
+import com.huawei.hms.samples.contactshield.util.ContactShieldLog;
+import com.huawei.hms.samples.contactshield.util.KeyGenUtil;
+import com.huawei.hms.samples.contactshield.util.threadpool.ThreadExec;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Match the keys day by day, each day against the scan data of that day only.
+ * The keys are sorted by valid time and grouped by day. While the keys of a day are matched, the scan data
+ * of the next day is loaded in background, so at most two days of scan data are held in memory.
+ *
+ * @since 2020-10-18
+ */
+public class DayPartitionedKeyMatcher {
+    private static final String TAG = "DayPartitionedKeyMatcher";
+
+    private DayPartitionedKeyMatcher() {
+    }
+
+    /**
+     * Analyze every key in keyList which is valid since validInterval
+     *
+     * @param keyList PeriodicKey list
+     * @param validInterval keys before this interval number are skipped
+     * @param matcherFactory factory to load the scan data of a day
+     * @param analyzerFactory factory to create the analyzers using the scan data of a day
+     * @param <T> type of the result
+     * @return results of all the keys, in the order of valid time
+     */
+    public static <T> List<T> match(List<PeriodicKey> keyList, long validInterval,
+        ScanDataMatcherFactory matcherFactory, PartitionAnalyzerFactory<T> analyzerFactory) {
+        List<Partition> partitions = split(keyList, validInterval);
+        List<T> resultList = new ArrayList<>();
+        if (partitions.isEmpty()) {
+            return resultList;
+        }
+        Future<IScanDataMatcher> nextMatcher = load(partitions.get(0), matcherFactory);
+        try {
+            for (int i = 0; i < partitions.size(); i++) {
+                Partition partition = partitions.get(i);
+                IScanDataMatcher matcher = getMatcher(nextMatcher, partition, matcherFactory);
+                nextMatcher = i + 1 < partitions.size() ? load(partitions.get(i + 1), matcherFactory) : null;
+                long startTime = System.currentTimeMillis();
+                try {
+                    resultList.addAll(ParallelKeyMatcher.match(partition.mKeys, analyzerFactory.create(matcher)));
+                } finally {
+                    matcher.release();
+                }
+                ContactShieldLog.d(TAG, "Match " + partition.mKeys.size() + " keys of day "
+                    + partition.mStartInterval / KeyGenUtil.INTERVAL_TO_DAY + " in "
+                    + (System.currentTimeMillis() - startTime) + " ms");
+            }
+        } finally {
+            if (nextMatcher != null) {
+                // Matching failed, wait for the prefetched scan data and drop it.
+                releaseQuietly(nextMatcher);
+            }
+        }
+        return resultList;
+    }
+
+    private static List<Partition> split(List<PeriodicKey> keyList, long validInterval) {
+        List<PeriodicKey> keys = new ArrayList<>(keyList.size());
+        for (PeriodicKey key : keyList) {
+            // The keys out of the incubation period are never matched, do not load their scan data.
+            if (key.getPeriodicKeyValidTime() >= validInterval) {
+                keys.add(key);
+            }
+        }
+        // Stable sort, the keys of the same valid time keep their order.
+        Collections.sort(keys, (left, right) -> Long.compare(left.getPeriodicKeyValidTime(),
+            right.getPeriodicKeyValidTime()));
+        List<Partition> partitions = new ArrayList<>();
+        Partition partition = null;
+        for (PeriodicKey key : keys) {
+            long startInterval = key.getPeriodicKeyValidTime();
+            long endInterval = startInterval + Math.max(1, key.getPeriodicKeyLifeTime()) - 1;
+            long day = startInterval / KeyGenUtil.INTERVAL_TO_DAY;
+            if (partition == null || partition.mDay != day) {
+                partition = new Partition(day, startInterval);
+                partitions.add(partition);
+            }
+            partition.mKeys.add(key);
+            // A key may run into the next day, the partition covers the whole life time of its keys.
+            partition.mEndInterval = Math.max(partition.mEndInterval, endInterval);
+        }
+        return partitions;
+    }
+
+    private static Future<IScanDataMatcher> load(Partition partition, ScanDataMatcherFactory matcherFactory) {
+        // Not on the core threads, which handle the scans and the flushes, so the next day is loaded while the
+        // current day is matched.
+        return ThreadExec.submitIoTask(TAG,
+            () -> matcherFactory.create(partition.mStartInterval, partition.mEndInterval));
+    }
+
+    private static IScanDataMatcher getMatcher(Future<IScanDataMatcher> future, Partition partition,
+        ScanDataMatcherFactory matcherFactory) {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            ContactShieldLog.e(TAG, "Load scan data exception: " + e.getMessage());
+        } catch (InterruptedException e) {
+            ContactShieldLog.e(TAG, "Load scan data interrupted");
+            Thread.currentThread().interrupt();
+        }
+        // Load it again on the calling thread.
+        return matcherFactory.create(partition.mStartInterval, partition.mEndInterval);
+    }
+
+    private static void releaseQuietly(Future<IScanDataMatcher> future) {
+        try {
+            future.get().release();
+        } catch (ExecutionException e) {
+            ContactShieldLog.e(TAG, "Load scan data exception: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Create the matcher of the scan data between startInterval and endInterval
+     */
+    public interface ScanDataMatcherFactory {
+        /**
+         * Create IScanDataMatcher
+         *
+         * @param startInterval starting interval number
+         * @param endInterval ending interval number
+         * @return new IScanDataMatcher
+         */
+        IScanDataMatcher create(long startInterval, long endInterval);
+    }
+
+    /**
+     * Create the KeyAnalyzerFactory using the scan data of a day
+     *
+     * @param <T> type of the result
+     */
+    public interface PartitionAnalyzerFactory<T> {
+        /**
+         * Create KeyAnalyzerFactory
+         *
+         * @param matcher matcher of the scan data of the day
+         * @return new KeyAnalyzerFactory
+         */
+        ParallelKeyMatcher.KeyAnalyzerFactory<T> create(IScanDataMatcher matcher);
+    }
+
+    private static class Partition {
+        private final long mDay;
+
+        private final long mStartInterval;
+
+        private long mEndInterval;
+
+        private final List<PeriodicKey> mKeys = new ArrayList<>();
+
+        Partition(long day, long startInterval) {
+            mDay = day;
+            mStartInterval = startInterval;
+            mEndInterval = startInterval;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2020. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huawei.hms.samples.contactshield.match;
+
+import com.huawei.hms.samples.contactshield.ContactDataManage;
+import com.huawei.hms.samples.contactshield.ble.ContactBeacon;
+import com.huawei.hms.samples.contactshield.database.table.ScanData;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Matcher which probes the database once for every target DSC.
+ * No memory is needed, so it is used when the scan data is too large to be indexed.
+ *
+ * @since 2020-10-12
+ */
+public class DbScanDataMatcher implements IScanDataMatcher {
+    @Override
+    public List<ScanData> searchScanData(byte[] dscData, int offset, long startInterval, long endInterval) {
+        byte[] dscTarget = Arrays.copyOfRange(dscData, offset, offset + ContactBeacon.DSC_LENGTH);
+        return ContactDataManage.getInstance().searchScanDataWithGivenDsc(dscTarget, startInterval, endInterval);
+    }
+
+    @Override
+    public void release() {
+    }
+}
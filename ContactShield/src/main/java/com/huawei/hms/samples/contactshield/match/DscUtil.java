@@ -0,0 +1,90 @@
+/*
+ * Copyright 2020. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huawei.hms.samples.contactshield.match;
+
+/**
+ * Helpers to handle a 16-byte DSC as two primitive longs.
+ *
+ * @since 2020-10-12
+ */
+public class DscUtil {
+    private static final int LONG_BYTES = 8;
+
+    private static final int BITS_PER_BYTE = 8;
+
+    private DscUtil() {
+    }
+
+    /**
+     * Get the first 8 bytes of the DSC as a big-endian long
+     *
+     * @param data byte array containing the DSC
+     * @param offset offset of the DSC in data
+     * @return high part of the DSC
+     */
+    public static long getHigh(byte[] data, int offset) {
+        return toLong(data, offset);
+    }
+
+    /**
+     * Get the last 8 bytes of the DSC as a big-endian long
+     *
+     * @param data byte array containing the DSC
+     * @param offset offset of the DSC in data
+     * @return low part of the DSC
+     */
+    public static long getLow(byte[] data, int offset) {
+        return toLong(data, offset + LONG_BYTES);
+    }
+
+    /**
+     * Hash of the DSC. DSCs are AES outputs and are uniformly distributed already,
+     * so folding both halves together is enough.
+     *
+     * @param high high part of the DSC
+     * @param low low part of the DSC
+     * @return hash value
+     */
+    public static int hash(long high, long low) {
+        long value = high ^ low;
+        return (int) (value ^ (value >>> 32));
+    }
+
+    /**
+     * Compare two DSCs as unsigned byte strings, which is the order of the DSC column in database
+     *
+     * @param high1 high part of the first DSC
+     * @param low1 low part of the first DSC
+     * @param high2 high part of the second DSC
+     * @param low2 low part of the second DSC
+     * @return negative, zero or positive if the first DSC is less than, equal to or greater than the second
+     */
+    public static int compare(long high1, long low1, long high2, long low2) {
+        if (high1 != high2) {
+            return Long.compare(high1 + Long.MIN_VALUE, high2 + Long.MIN_VALUE);
+        }
+        return Long.compare(low1 + Long.MIN_VALUE, low2 + Long.MIN_VALUE);
+    }
+
+    private static long toLong(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 0; i < LONG_BYTES; i++) {
+            value = (value << BITS_PER_BYTE) | (data[offset + i] & 0xff);
+        }
+        return value;
+    }
+}
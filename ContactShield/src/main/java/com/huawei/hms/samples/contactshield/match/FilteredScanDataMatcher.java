@@ -0,0 +1,57 @@
+/*
+ * Copyright 2020. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huawei.hms.samples.contactshield.match;
+
+import com.huawei.hms.samples.contactshield.database.table.ScanData;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Matcher which checks the DSC against the bloom filter before the exact lookup.
+ *
+ * @since 2020-10-14
+ */
+public class FilteredScanDataMatcher implements IScanDataMatcher {
+    private final ScanDscBloomFilter mFilter;
+
+    private final IScanDataMatcher mMatcher;
+
+    /**
+     * Constructor
+     *
+     * @param filter bloom filter of the scanned DSCs
+     * @param matcher matcher for the exact lookup
+     */
+    public FilteredScanDataMatcher(ScanDscBloomFilter filter, IScanDataMatcher matcher) {
+        mFilter = filter;
+        mMatcher = matcher;
+    }
+
+    @Override
+    public List<ScanData> searchScanData(byte[] dscData, int offset, long startInterval, long endInterval) {
+        if (!mFilter.mightContain(dscData, offset)) {
+            return Collections.emptyList();
+        }
+        return mMatcher.searchScanData(dscData, offset, startInterval, endInterval);
+    }
+
+    @Override
+    public void release() {
+        mMatcher.release();
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2020. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huawei.hms.samples.contactshield.match;
+
+import com.huawei.hms.samples.contactshield.ContactDataManage;
+import com.huawei.hms.samples.contactshield.ble.ContactBeacon;
+import com.huawei.hms.samples.contactshield.database.table.ScanData;
+import com.huawei.hms.samples.contactshield.util.ContactShieldLog;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Matcher which loads the scan data once and indexes it in memory by DSC.
+ * The DSC is kept as two primitive longs in an open addressing hash table, and the ScanData with
+ * the same DSC are chained in the order they were loaded.
+ *
+ * @since 2020-10-12
+ */
+public class HashScanDataMatcher implements IScanDataMatcher {
+    /**
+     * Max number of ScanData to be indexed in memory, around 150 MB of heap.
+     */
+    public static final long MAX_INDEXED_SCAN_DATA = 1024L * 1024;
+
+    private static final String TAG = "HashScanDataMatcher";
+
+    private static final int NO_RECORD = -1;
+
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] mDscHigh;
+
+    private long[] mDscLow;
+
+    // Index of the first record for each slot, NO_RECORD for empty slot.
+    private int[] mSlotHead;
+
+    // Index of the next record with the same DSC.
+    private int[] mRecordNext;
+
+    private ScanData[] mRecords;
+
+    private int mMask;
+
+    /**
+     * Constructor
+     *
+     * @param scanDataList scan data to be indexed
+     */
+    public HashScanDataMatcher(List<ScanData> scanDataList) {
+        build(scanDataList);
+    }
+
+    /**
+     * Load the ScanData between startInterval and endInterval from database and index them.
+     *
+     * @param startInterval starting interval number
+     * @param endInterval ending interval number
+     * @return matcher
+     */
+    public static HashScanDataMatcher create(long startInterval, long endInterval) {
+        long startTime = System.currentTimeMillis();
+        List<ScanData> scanDataList = ContactDataManage.getInstance()
+                .searchScanDataInRange(startInterval, endInterval);
+        HashScanDataMatcher matcher = new HashScanDataMatcher(scanDataList);
+        ContactShieldLog.d(TAG, "Index " + scanDataList.size() + " scan data in "
+                + (System.currentTimeMillis() - startTime) + " ms");
+        return matcher;
+    }
+
+    private void build(List<ScanData> scanDataList) {
+        int size = scanDataList.size();
+        int capacity = MIN_CAPACITY;
+        // Keep the load factor under 0.5 so that the linear probing stays short.
+        while (capacity < size * 2) {
+            capacity <<= 1;
+        }
+        mMask = capacity - 1;
+        mDscHigh = new long[capacity];
+        mDscLow = new long[capacity];
+        mSlotHead = new int[capacity];
+        Arrays.fill(mSlotHead, NO_RECORD);
+        int[] slotTail = new int[capacity];
+        mRecords = new ScanData[size];
+        mRecordNext = new int[size];
+
+        int index = 0;
+        for (ScanData scanData : scanDataList) {
+            byte[] dsc = scanData.getDscReadOnly();
+            if (dsc.length != ContactBeacon.DSC_LENGTH) {
+                continue;
+            }
+            long high = DscUtil.getHigh(dsc, 0);
+            long low = DscUtil.getLow(dsc, 0);
+            int slot = findSlot(high, low);
+            mRecords[index] = scanData;
+            mRecordNext[index] = NO_RECORD;
+            if (mSlotHead[slot] == NO_RECORD) {
+                mDscHigh[slot] = high;
+                mDscLow[slot] = low;
+                mSlotHead[slot] = index;
+            } else {
+                mRecordNext[slotTail[slot]] = index;
+            }
+            slotTail[slot] = index;
+            index++;
+        }
+    }
+
+    private int findSlot(long high, long low) {
+        int slot = DscUtil.hash(high, low) & mMask;
+        while (mSlotHead[slot] != NO_RECORD && (mDscHigh[slot] != high || mDscLow[slot] != low)) {
+            slot = (slot + 1) & mMask;
+        }
+        return slot;
+    }
+
+    @Override
+    public List<ScanData> searchScanData(byte[] dscData, int offset, long startInterval, long endInterval) {
+        if (mSlotHead == null || dscData == null || dscData.length < offset + ContactBeacon.DSC_LENGTH) {
+            return Collections.emptyList();
+        }
+        int record = mSlotHead[findSlot(DscUtil.getHigh(dscData, offset), DscUtil.getLow(dscData, offset))];
+        List<ScanData> scanDataList = null;
+        for (; record != NO_RECORD; record = mRecordNext[record]) {
+            ScanData scanData = mRecords[record];
+            if (scanData.getIntervalNum() < startInterval || scanData.getIntervalNum() > endInterval) {
+                continue;
+            }
+            if (scanDataList == null) {
+                scanDataList = new ArrayList<>();
+            }
+            scanDataList.add(scanData);
+        }
+        return scanDataList == null ? Collections.<ScanData>emptyList() : scanDataList;
+    }
+
+    @Override
+    public void release() {
+        mDscHigh = null;
+        mDscLow = null;
+        mSlotHead = null;
+        mRecordNext = null;
+        mRecords = null;
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2020. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huawei.hms.samples.contactshield.match;
+
+import com.huawei.hms.samples.contactshield.database.table.ScanData;
+
+import java.util.List;
+
+/**
+ * Strategy to find the local ScanData which matches a target DSC.
+ *
+ * @since 2020-10-12
+ */
+public interface IScanDataMatcher {
+    /**
+     * Search ScanData with given DSC and between startInterval ~ endInterval
+     *
+     * @param dscData byte array containing the target DSC
+     * @param offset offset of the target DSC in dscData
+     * @param startInterval starting interval number
+     * @param endInterval ending interval number
+     * @return matched ScanData list in any order, never null
+     */
+    List<ScanData> searchScanData(byte[] dscData, int offset, long startInterval, long endInterval);
+
+    /**
+     * Release the resources held by this matcher. The matcher must not be used afterwards.
+     */
+    void release();
+}
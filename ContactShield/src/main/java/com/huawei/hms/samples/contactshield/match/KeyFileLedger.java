@@ -0,0 +1,432 @@
+/*
+ * Copyright 2020. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huawei.hms.samples.contactshield.match;
+
+import com.huawei.hms.samples.contactshield.ContactDataManage;
+import com.huawei.hms.samples.contactshield.ble.ContactBeacon;
+import com.huawei.hms.samples.contactshield.contact.PeriodicKey;
+import com.huawei.hms.samples.contactshield.database.table.KeyFileLedgerData;
+import com.huawei.hms.samples.contactshield.util.ContactShieldLog;
+import com.huawei.hms.samples.contactshield.util.KeyFileParser;
+import com.huawei.hms.samples.contactshield.util.KeyFileVerifier;
+import com.huawei.hms.samples.contactshield.util.KeyGenUtil;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Ledger of the key files diagnosed by a package. Apps diagnose the files of the whole incubation period every
+ * day, and only one of them is new.
+ * Scan data flushed after a file is diagnosed is scanned at a later interval, so it can only match the keys which
+ * have not ended yet. Once a file is diagnosed, only its keys which matched or have not ended before the watermark
+ * can contribute to the result, and they are kept in the ledger. The next diagnoses match these candidate keys
+ * instead of the whole file. They are matched again rather than the results being reused, because the risk
+ * scores depend on the configuration and the day of the diagnosis.
+ * The revised keys of the files are kept as well, the results of the revised keys are patched by every diagnosis.
+ * The ledger also keeps the key which verified the signature of each file, the files are not verified again as
+ * long as the key is trusted.
+ *
+ * @since 2020-10-25
+ */
+public class KeyFileLedger {
+    private static final String TAG = "KeyFileLedger";
+
+    // Scan data is buffered for a scan cycle before it is flushed, which is far shorter than an hour.
+    private static final long FLUSH_MARGIN_INTERVALS = 6;
+
+    private static final int INTERVAL_BYTES = 4;
+
+    // Content, valid time, life time, risk level and report type
+    private static final int KEY_RECORD_SIZE = ContactBeacon.DSC_LENGTH + INTERVAL_BYTES * 2 + 2;
+
+    private static final long INT_MASK = 0xffffffffL;
+
+    private static final long HASH_MULTIPLIER = 0x100000001b3L;
+
+    private static final int MIN_HASH_CAPACITY = 1024;
+
+    private final ContactDataManage mContactDataManage = ContactDataManage.getInstance();
+
+    private final String mPkgName;
+
+    private final List<File> mFileList;
+
+    // Keys ending from this interval on may still match the scan data flushed later.
+    private final long mWatermark;
+
+    // Null for the invalid files.
+    private final byte[][] mFingerprints;
+
+    // Null for the files not in the ledger.
+    private final List<List<PeriodicKey>> mCandidateKeys;
+
+    private final long[] mKeyNums;
+
+    // Null for the files not in the ledger.
+    private final List<List<PeriodicKey>> mRevisedKeys;
+
+    // Null for the files not verified by the diagnosis nor in the ledger, they are not saved.
+    private final String[] mVerifiedKeyIds;
+
+    // Null for the files not parsed by the diagnosis.
+    private final ParsedFile[] mParsedFiles;
+
+    // Keys which matched scan data by fingerprint, see PeriodicKeyUtil.getFingerprint().
+    private final Map<ByteBuffer, PeriodicKey> mMatchedKeys = new ConcurrentHashMap<>();
+
+    // Keys of the saved files which have not ended before the watermark, collected by save().
+    private final List<PeriodicKey> mLiveKeys = new ArrayList<>();
+
+    private KeyFileLedger(String pkgName, List<File> fileList, long watermark) {
+        mPkgName = pkgName;
+        mFileList = fileList;
+        mWatermark = watermark;
+        mFingerprints = new byte[fileList.size()][];
+        mCandidateKeys = new ArrayList<>(Collections.nCopies(fileList.size(), (List<PeriodicKey>) null));
+        mKeyNums = new long[fileList.size()];
+        mRevisedKeys = new ArrayList<>(Collections.nCopies(fileList.size(), (List<PeriodicKey>) null));
+        mVerifiedKeyIds = new String[fileList.size()];
+        mParsedFiles = new ParsedFile[fileList.size()];
+    }
+
+    /**
+     * Look up the key files in the ledger of the package
+     *
+     * @param pkgName package name
+     * @param fileList key files of the diagnosis
+     * @param verifier verifier of the diagnosis, the entries verified by the keys it does not trust are ignored
+     * @return ledger of the diagnosis
+     */
+    public static KeyFileLedger load(String pkgName, List<File> fileList, KeyFileVerifier verifier) {
+        KeyFileLedger ledger = new KeyFileLedger(pkgName, fileList,
+            KeyGenUtil.getIntervalNumber() - FLUSH_MARGIN_INTERVALS);
+        ledger.loadEntries(verifier);
+        return ledger;
+    }
+
+    private void loadEntries(KeyFileVerifier verifier) {
+        List<byte[]> fingerprints = new ArrayList<>();
+        for (int i = 0; i < mFileList.size(); i++) {
+            mFingerprints[i] = KeyFileParser.getFileFingerprint(mFileList.get(i));
+            if (mFingerprints[i] != null) {
+                fingerprints.add(mFingerprints[i]);
+            }
+        }
+        for (KeyFileLedgerData data : mContactDataManage.searchKeyFileLedgerData(mPkgName, fingerprints)) {
+            if (data.getWatermarkInterval() > mWatermark) {
+                // The clock was set back, the scan data may not be in the order of the watermark.
+                continue;
+            }
+            if (!verifier.isTrusted(data.getVerifiedKeyId())) {
+                continue;
+            }
+            List<PeriodicKey> keys = decodeKeys(data.getCandidateKeys());
+            List<PeriodicKey> revisedKeys = decodeKeys(data.getRevisedKeys());
+            if (keys == null || revisedKeys == null) {
+                continue;
+            }
+            byte[] fingerprint = data.getFingerprint();
+            for (int i = 0; i < mFileList.size(); i++) {
+                if (Arrays.equals(mFingerprints[i], fingerprint)) {
+                    mCandidateKeys.set(i, keys);
+                    mRevisedKeys.set(i, revisedKeys);
+                    mKeyNums[i] = data.getKeyNum();
+                    mVerifiedKeyIds[i] = data.getVerifiedKeyId();
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the candidate keys of a file in the ledger
+     *
+     * @param index index of the file
+     * @return keys to be matched instead of the file, null if the file has to be parsed
+     */
+    public List<PeriodicKey> getCandidateKeys(int index) {
+        return mCandidateKeys.get(index);
+    }
+
+    /**
+     * Get the revised keys of a file in the ledger
+     *
+     * @param index index of the file
+     * @return revised keys of the file, null if the file has to be parsed
+     */
+    public List<PeriodicKey> getRevisedKeys(int index) {
+        return mRevisedKeys.get(index);
+    }
+
+    /**
+     * Getter
+     */
+    public long getWatermark() {
+        return mWatermark;
+    }
+
+    /**
+     * Get the keys of the saved files which may still match the scan data flushed later
+     *
+     * @return keys not ended before the watermark, in the order of the files, empty before save()
+     */
+    public List<PeriodicKey> getLiveKeys() {
+        return mLiveKeys;
+    }
+
+    /**
+     * Record the verification of a file fully parsed by the diagnosis, only the trusted files are saved.
+     *
+     * @param index index of the file
+     * @param verifiedKeyId id of the key which verified the file, empty if the file was not verified
+     */
+    public void setVerifiedKeyId(int index, String verifiedKeyId) {
+        getParsedFile(index);
+        mVerifiedKeyIds[index] = verifiedKeyId;
+    }
+
+    /**
+     * Record the verified keys of a file parsed by the diagnosis, called by the single thread parsing the files.
+     * The keys not ended are kept as candidates, the other keys are only kept as hashes until the matched ones are
+     * known.
+     *
+     * @param index index of the file
+     * @param keyList keys of the file, decoded from the verified content
+     */
+    public void recordParsedKeys(int index, List<PeriodicKey> keyList) {
+        ParsedFile parsedFile = getParsedFile(index);
+        parsedFile.mKeyNum += keyList.size();
+        for (PeriodicKey key : keyList) {
+            if (isLive(key)) {
+                parsedFile.mLiveKeys.add(key);
+            } else {
+                parsedFile.addKeyHash(getKeyHash(PeriodicKeyUtil.getFingerprint(key)));
+            }
+        }
+    }
+
+    /**
+     * Record a verified revised key of a file parsed by the diagnosis
+     *
+     * @param index index of the file
+     * @param revisedKey revised key of the file
+     */
+    public void recordParsedRevisedKey(int index, PeriodicKey revisedKey) {
+        getParsedFile(index).mRevisedKeys.add(revisedKey);
+    }
+
+    private ParsedFile getParsedFile(int index) {
+        if (mParsedFiles[index] == null) {
+            mParsedFiles[index] = new ParsedFile();
+        }
+        return mParsedFiles[index];
+    }
+
+    /**
+     * Record a key which matched scan data, called by the workers of the diagnosis
+     *
+     * @param keyFingerprint fingerprint of the key, see PeriodicKeyUtil.getFingerprint()
+     * @param key the key matched
+     */
+    public void recordMatchedKey(byte[] keyFingerprint, PeriodicKey key) {
+        mMatchedKeys.putIfAbsent(ByteBuffer.wrap(keyFingerprint), key);
+    }
+
+    /**
+     * Getter
+     *
+     * @return keys which matched scan data by fingerprint, complete once all the keys of the diagnosis are matched
+     */
+    public Map<ByteBuffer, PeriodicKey> getMatchedKeys() {
+        return Collections.unmodifiableMap(mMatchedKeys);
+    }
+
+    /**
+     * Save the candidate keys of all the files once they are diagnosed. The candidates of the new files are
+     * collected while they are parsed, the files are not read again.
+     */
+    public void save() {
+        List<KeyFileLedgerData> dataList = new ArrayList<>();
+        long usedInterval = KeyGenUtil.getIntervalNumber();
+        for (int i = 0; i < mFileList.size(); i++) {
+            if (mFingerprints[i] == null || mVerifiedKeyIds[i] == null || isSavedBefore(i)) {
+                continue;
+            }
+            List<PeriodicKey> candidateKeys = new ArrayList<>();
+            List<PeriodicKey> revisedKeys;
+            long keyNum;
+            if (mCandidateKeys.get(i) != null) {
+                selectCandidateKeys(mCandidateKeys.get(i), candidateKeys);
+                revisedKeys = mRevisedKeys.get(i);
+                keyNum = mKeyNums[i];
+            } else if (mParsedFiles[i] != null) {
+                selectCandidateKeys(mParsedFiles[i], candidateKeys);
+                revisedKeys = mParsedFiles[i].mRevisedKeys;
+                keyNum = mParsedFiles[i].mKeyNum;
+            } else {
+                continue;
+            }
+            KeyFileLedgerData data = new KeyFileLedgerData();
+            data.setPkgName(mPkgName);
+            data.setFingerprint(mFingerprints[i]);
+            data.setWatermarkInterval(mWatermark);
+            data.setKeyNum(keyNum);
+            data.setCandidateKeys(encodeKeys(candidateKeys));
+            data.setRevisedKeys(encodeKeys(revisedKeys));
+            data.setVerifiedKeyId(mVerifiedKeyIds[i]);
+            data.setLastUsedInterval(usedInterval);
+            dataList.add(data);
+        }
+        mContactDataManage.addKeyFileLedgerData(dataList);
+        ContactShieldLog.d(TAG, "Save " + dataList.size() + " ledger entries, matched keys: " + mMatchedKeys.size());
+    }
+
+    private boolean isSavedBefore(int index) {
+        for (int i = 0; i < index; i++) {
+            if (Arrays.equals(mFingerprints[i], mFingerprints[index])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void selectCandidateKeys(List<PeriodicKey> keyList, List<PeriodicKey> candidateKeys) {
+        for (PeriodicKey key : keyList) {
+            if (isLive(key)) {
+                candidateKeys.add(key);
+                mLiveKeys.add(key);
+            } else if (mMatchedKeys.containsKey(ByteBuffer.wrap(PeriodicKeyUtil.getFingerprint(key)))) {
+                candidateKeys.add(key);
+            }
+        }
+    }
+
+    private void selectCandidateKeys(ParsedFile parsedFile, List<PeriodicKey> candidateKeys) {
+        candidateKeys.addAll(parsedFile.mLiveKeys);
+        mLiveKeys.addAll(parsedFile.mLiveKeys);
+        if (mMatchedKeys.isEmpty()) {
+            return;
+        }
+        // A copy dropped by the deduplicator is matched as the first copy. A hash collision only adds a key which
+        // is matched again by the next diagnoses.
+        parsedFile.sortKeyHashes();
+        for (Map.Entry<ByteBuffer, PeriodicKey> entry : mMatchedKeys.entrySet()) {
+            if (!isLive(entry.getValue()) && parsedFile.containsKeyHash(getKeyHash(entry.getKey().array()))) {
+                candidateKeys.add(entry.getValue());
+            }
+        }
+    }
+
+    private boolean isLive(PeriodicKey key) {
+        return key.getPeriodicKeyValidTime() + key.getPeriodicKeyLifeTime() > mWatermark;
+    }
+
+    private static long getKeyHash(byte[] keyFingerprint) {
+        long hash = 0;
+        for (byte value : keyFingerprint) {
+            hash = hash * HASH_MULTIPLIER + value;
+        }
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        int reusedNum = 0;
+        long candidateNum = 0;
+        for (List<PeriodicKey> keys : mCandidateKeys) {
+            if (keys != null) {
+                reusedNum++;
+                candidateNum += keys.size();
+            }
+        }
+        return String.format(Locale.ENGLISH, "KeyFileLedger<files: %d, reused: %d, candidates: %d>",
+            mFileList.size(), reusedNum, candidateNum);
+    }
+
+    /**
+     * Keys of a file parsed by the diagnosis, about 8 bytes for each key ended
+     */
+    private static class ParsedFile {
+        private final List<PeriodicKey> mLiveKeys = new ArrayList<>();
+
+        private final List<PeriodicKey> mRevisedKeys = new ArrayList<>();
+
+        private long[] mKeyHashes = new long[MIN_HASH_CAPACITY];
+
+        private int mKeyHashNum;
+
+        private long mKeyNum;
+
+        private void addKeyHash(long hash) {
+            if (mKeyHashNum == mKeyHashes.length) {
+                mKeyHashes = Arrays.copyOf(mKeyHashes, mKeyHashNum * 2);
+            }
+            mKeyHashes[mKeyHashNum++] = hash;
+        }
+
+        private void sortKeyHashes() {
+            Arrays.sort(mKeyHashes, 0, mKeyHashNum);
+        }
+
+        private boolean containsKeyHash(long hash) {
+            return Arrays.binarySearch(mKeyHashes, 0, mKeyHashNum, hash) >= 0;
+        }
+    }
+
+    private static byte[] encodeKeys(List<PeriodicKey> keys) {
+        ByteBuffer buffer = ByteBuffer.allocate(keys.size() * KEY_RECORD_SIZE);
+        for (PeriodicKey key : keys) {
+            byte[] content = key.getContent();
+            if (content.length != ContactBeacon.DSC_LENGTH) {
+                continue;
+            }
+            buffer.put(content);
+            buffer.putInt((int) key.getPeriodicKeyValidTime());
+            buffer.putInt((int) key.getPeriodicKeyLifeTime());
+            buffer.put((byte) key.getInitialRiskLevel());
+            buffer.put((byte) key.getReportType());
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private static List<PeriodicKey> decodeKeys(byte[] data) {
+        if (data.length % KEY_RECORD_SIZE != 0) {
+            ContactShieldLog.w(TAG, "Invalid encoded keys of " + data.length + " bytes");
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        List<PeriodicKey> keys = new ArrayList<>(data.length / KEY_RECORD_SIZE);
+        while (buffer.hasRemaining()) {
+            byte[] content = new byte[ContactBeacon.DSC_LENGTH];
+            buffer.get(content);
+            keys.add(new PeriodicKey.Builder()
+                .setContent(content)
+                .setPeriodicKeyValidTime(buffer.getInt() & INT_MASK)
+                .setPeriodicKeyLifeTime(buffer.getInt() & INT_MASK)
+                .setInitialRiskLevel(buffer.get())
+                .setReportType(buffer.get())
+                .build());
+        }
+        return keys;
+    }
+}
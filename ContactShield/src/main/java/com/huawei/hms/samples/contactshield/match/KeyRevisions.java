@@ -0,0 +1,239 @@
+/*
+ * Copyright 2020. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huawei.hms.samples.contactshield.match;
+
+import com.huawei.hms.samples.contactshield.ContactDataManage;
+import com.huawei.hms.samples.contactshield.contact.ContactDetail;
+import com.huawei.hms.samples.contactshield.contact.DiagnosisConfiguration;
+import com.huawei.hms.samples.contactshield.contact.PeriodicKey;
+import com.huawei.hms.samples.contactshield.database.table.ContactDetailData;
+import com.huawei.hms.samples.contactshield.database.table.ContactWindowBase;
+import com.huawei.hms.samples.contactshield.util.ContactShieldLog;
+import com.huawei.hms.samples.contactshield.util.KeyGenUtil;
+import com.huawei.hms.samples.contactshield.util.RiskScoreCalculator;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Revised keys published by the key files of a diagnosis. A key revoked or whose report type or risk level changed
+ * is published again in revised_keys of a later file.
+ * The stored results are linked to the fingerprints of their keys, so a revision only patches the ContactDetails
+ * and ContactWindows of the revised keys instead of diagnosing all the keys again. A revoked key removes its
+ * results, another risk level or report type replaces the one of its results. A key which matched without any
+ * result is matched again with its revised risk level. Revisions are replayed by every diagnosis with their files,
+ * applying one again changes nothing.
+ *
+ * @since 2020-10-28
+ */
+public class KeyRevisions {
+    private static final String TAG = "KeyRevisions";
+
+    // By fingerprint, the revision of the later file wins.
+    private final Map<ByteBuffer, PeriodicKey> mRevisedKeys = new LinkedHashMap<>();
+
+    private final ContactDataManage mContactDataManage = ContactDataManage.getInstance();
+
+    /**
+     * Add a revised key, in the order of the files
+     *
+     * @param key revised PeriodicKey
+     */
+    public synchronized void add(PeriodicKey key) {
+        mRevisedKeys.put(ByteBuffer.wrap(PeriodicKeyUtil.getFingerprint(key)), key);
+    }
+
+    /**
+     * Add revised keys, in the order of the files
+     *
+     * @param keyList revised PeriodicKey list
+     */
+    public synchronized void addAll(List<PeriodicKey> keyList) {
+        for (PeriodicKey key : keyList) {
+            add(key);
+        }
+    }
+
+    /**
+     * Apply the revisions to keys which are matched later, such as the keys matched by the continuous diagnosis
+     *
+     * @param keyList PeriodicKey list
+     * @return keys of keyList replaced by their revisions, without the revoked keys, in the same order
+     */
+    public synchronized List<PeriodicKey> reviseKeys(List<PeriodicKey> keyList) {
+        if (mRevisedKeys.isEmpty()) {
+            return keyList;
+        }
+        List<PeriodicKey> revisedKeyList = new ArrayList<>(keyList.size());
+        for (PeriodicKey key : keyList) {
+            PeriodicKey revisedKey = mRevisedKeys.get(ByteBuffer.wrap(PeriodicKeyUtil.getFingerprint(key)));
+            if (revisedKey == null) {
+                revisedKeyList.add(key);
+            } else if (revisedKey.getReportType() != PeriodicKey.REPORT_TYPE_REVOKED) {
+                revisedKeyList.add(revisedKey);
+            }
+        }
+        return revisedKeyList;
+    }
+
+    /**
+     * Apply the revisions to the ContactDetails of a diagnosis. The risk values are calculated again with the
+     * configuration of the diagnosis, and the details falling below its threshold are removed.
+     *
+     * @param pkgName package name
+     * @param token token of the diagnosis
+     * @param configuration configuration of the diagnosis
+     * @return true if any ContactDetail is changed or removed
+     */
+    public synchronized boolean reviseContactDetails(String pkgName, String token,
+        DiagnosisConfiguration configuration) {
+        if (mRevisedKeys.isEmpty()) {
+            return false;
+        }
+        List<ContactDetailData> dataList = mContactDataManage.searchContactDetailData(pkgName, token,
+            getFingerprints());
+        RiskScoreCalculator calculator = new RiskScoreCalculator(configuration);
+        List<ContactDetailData> updatedList = new ArrayList<>();
+        List<ContactDetailData> deletedList = new ArrayList<>();
+        for (ContactDetailData data : dataList) {
+            PeriodicKey key = mRevisedKeys.get(ByteBuffer.wrap(data.getKeyFingerprint()));
+            ContactDetail detail = data.getContactDetail();
+            if (key == null || detail == null) {
+                continue;
+            }
+            if (key.getReportType() == PeriodicKey.REPORT_TYPE_REVOKED) {
+                deletedList.add(data);
+                continue;
+            }
+            if (key.getInitialRiskLevel() == detail.getInitialRiskLevel()) {
+                // The report type is not part of a ContactDetail.
+                continue;
+            }
+            long daysSinceExposure = Math.max(KeyGenUtil.getDayNumber() - detail.getDayNumber(), 0);
+            int totalRiskValue = calculator.calcTotalRiskValue(detail.getAttenuationRiskValue(),
+                (int) daysSinceExposure, detail.getDurationMinutes(), key.getInitialRiskLevel());
+            if (totalRiskValue < configuration.getMinimumRiskValueThreshold()) {
+                deletedList.add(data);
+                continue;
+            }
+            data.setContactDetail(new ContactDetail.Builder()
+                .setDayNumber(detail.getDayNumber())
+                .setAttenuationRiskValue(detail.getAttenuationRiskValue())
+                .setDurationMinutes(detail.getDurationMinutes())
+                .setTotalRiskValue(totalRiskValue)
+                .setInitialRiskLevel(key.getInitialRiskLevel())
+                .setAttenuationDurations(detail.getAttenuationDurations())
+                .build());
+            updatedList.add(data);
+        }
+        mContactDataManage.updateContactDetailData(updatedList);
+        mContactDataManage.deleteContactDetailData(deletedList);
+        ContactShieldLog.i(TAG, "Revise contact details, updated: " + updatedList.size() + ", deleted: "
+            + deletedList.size());
+        return !updatedList.isEmpty() || !deletedList.isEmpty();
+    }
+
+    /**
+     * Get the revised keys whose risk level changed after they matched scan data without any ContactDetail, such as
+     * a key scored below the threshold before a later file raised its risk level. There is no detail to patch, the
+     * revised keys have to be matched again.
+     *
+     * @param pkgName package name
+     * @param token token of the diagnosis
+     * @param matchedKeys keys which matched scan data in the diagnosis, by fingerprint
+     * @return revised keys to be matched again, none of them revoked
+     */
+    public synchronized List<PeriodicKey> getRevisedKeysWithoutDetail(String pkgName, String token,
+        Map<ByteBuffer, PeriodicKey> matchedKeys) {
+        List<byte[]> fingerprints = new ArrayList<>();
+        for (Map.Entry<ByteBuffer, PeriodicKey> entry : mRevisedKeys.entrySet()) {
+            PeriodicKey matchedKey = matchedKeys.get(entry.getKey());
+            PeriodicKey key = entry.getValue();
+            if (matchedKey != null && key.getReportType() != PeriodicKey.REPORT_TYPE_REVOKED
+                && key.getInitialRiskLevel() != matchedKey.getInitialRiskLevel()) {
+                fingerprints.add(entry.getKey().array());
+            }
+        }
+        if (fingerprints.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Set<ByteBuffer> detailedKeys = new HashSet<>();
+        for (ContactDetailData data : mContactDataManage.searchContactDetailData(pkgName, token, fingerprints)) {
+            detailedKeys.add(ByteBuffer.wrap(data.getKeyFingerprint()));
+        }
+        List<PeriodicKey> keyList = new ArrayList<>();
+        for (byte[] fingerprint : fingerprints) {
+            if (!detailedKeys.contains(ByteBuffer.wrap(fingerprint))) {
+                keyList.add(mRevisedKeys.get(ByteBuffer.wrap(fingerprint)));
+            }
+        }
+        return keyList;
+    }
+
+    /**
+     * Apply the revisions to the ContactWindows of the package
+     *
+     * @param pkgName package name
+     * @return true if any ContactWindow is changed or removed
+     */
+    public synchronized boolean reviseContactWindows(String pkgName) {
+        if (mRevisedKeys.isEmpty()) {
+            return false;
+        }
+        List<ContactWindowBase> baseList = mContactDataManage.searchContactWindowBase(pkgName, getFingerprints());
+        List<ContactWindowBase> updatedList = new ArrayList<>();
+        List<ContactWindowBase> deletedList = new ArrayList<>();
+        for (ContactWindowBase base : baseList) {
+            PeriodicKey key = mRevisedKeys.get(ByteBuffer.wrap(base.getKeyFingerprint()));
+            if (key == null) {
+                continue;
+            }
+            if (key.getReportType() == PeriodicKey.REPORT_TYPE_REVOKED) {
+                deletedList.add(base);
+            } else if (key.getReportType() != base.getReportType()) {
+                base.setReportType(key.getReportType());
+                base.setLastUpdateTimestamp(KeyGenUtil.getIntervalNumber());
+                updatedList.add(base);
+            }
+        }
+        mContactDataManage.updateContactWindowBase(updatedList);
+        mContactDataManage.deleteContactWindows(deletedList);
+        ContactShieldLog.i(TAG, "Revise contact windows, updated: " + updatedList.size() + ", deleted: "
+            + deletedList.size());
+        return !updatedList.isEmpty() || !deletedList.isEmpty();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.ENGLISH, "KeyRevisions<keys: %d>", mRevisedKeys.size());
+    }
+
+    private List<byte[]> getFingerprints() {
+        List<byte[]> fingerprints = new ArrayList<>(mRevisedKeys.size());
+        for (ByteBuffer fingerprint : mRevisedKeys.keySet()) {
+            fingerprints.add(fingerprint.array());
+        }
+        return fingerprints;
+    }
+}
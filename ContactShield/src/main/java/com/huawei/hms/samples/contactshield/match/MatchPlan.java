@@ -0,0 +1,174 @@
+/*
+ * Copyright 2020. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huawei.hms.samples.contactshield.match;
+
+import com.huawei.hms.samples.contactshield.util.GlobalSettings;
+
+import java.util.Locale;
+
+/**
+ * Strategy to match the keys of a diagnosis against the local scan data, chosen by the estimated cost.
+ * The costs are rough per-operation timings. They only need to be right relative to each other, and can be
+ * tuned with the plans and timings logged by the diagnoses.
+ *
+ * @since 2020-10-20
+ */
+public final class MatchPlan {
+    /**
+     * Probe the database once for every DSC, no memory needed.
+     */
+    public static final int STRATEGY_DB_PROBE = 0;
+
+    /**
+     * Index all the scan data of the incubation period in memory.
+     */
+    public static final int STRATEGY_HASH_JOIN = 1;
+
+    /**
+     * Index the scan data of one day at a time, see DayPartitionedKeyMatcher.
+     */
+    public static final int STRATEGY_DAY_PARTITION = 2;
+
+    /**
+     * Join the sorted DSCs with the scan data read in DSC order, see SortMergeKeyMatcher.
+     */
+    public static final int STRATEGY_SORT_MERGE = 3;
+
+    // Heap used for each indexed ScanData, see HashScanDataMatcher.MAX_INDEXED_SCAN_DATA.
+    private static final long INDEXED_SCAN_DATA_SIZE = 150;
+
+    private static final long DB_PROBE_COST_NS = 50000L;
+
+    // Only the false positives of the bloom filter reach the database.
+    private static final long FILTERED_DB_PROBE_COST_NS = 1000L;
+
+    private static final long SCAN_DATA_LOAD_COST_NS = 2000L;
+
+    private static final long INDEX_LOOKUP_COST_NS = 100L;
+
+    // Sort, write and merge a (DSC, key index) tuple.
+    private static final long SPILL_COST_NS = 300L;
+
+    private static final long NS_TO_MS = 1000L * 1000;
+
+    private final int mStrategy;
+
+    private final long mKeyNum;
+
+    private final long mScanDataNum;
+
+    private final long mCost;
+
+    private MatchPlan(int strategy, long keyNum, long scanDataNum, long cost) {
+        mStrategy = strategy;
+        mKeyNum = keyNum;
+        mScanDataNum = scanDataNum;
+        mCost = cost;
+    }
+
+    /**
+     * Choose the cheapest strategy which fits in the available heap.
+     *
+     * @param keyNum estimated number of keys to be matched
+     * @param scanDataNum number of ScanData in the incubation period
+     * @param dayNum number of days in the incubation period
+     * @param availableHeap heap which can still be allocated, in bytes
+     * @param availableStorage storage which can be used by the spill of the sort merge join, in bytes
+     * @param hasFilter whether the DSC bloom filter is ready to skip the DSCs never scanned
+     * @return plan of the diagnosis
+     */
+    public static MatchPlan create(long keyNum, long scanDataNum, int dayNum, long availableHeap,
+        long availableStorage, boolean hasFilter) {
+        // Upper bound, the intervals without scans nearby are not derived.
+        long dscNum = keyNum * GlobalSettings.PDK_ROLLING_PERIOD;
+        // Keep half of the heap for the derivation and the results.
+        long indexHeap = availableHeap / 2;
+
+        MatchPlan plan = new MatchPlan(STRATEGY_DB_PROBE, keyNum, scanDataNum,
+            dscNum * (hasFilter ? FILTERED_DB_PROBE_COST_NS : DB_PROBE_COST_NS));
+        long indexCost = scanDataNum * SCAN_DATA_LOAD_COST_NS + dscNum * INDEX_LOOKUP_COST_NS;
+        if (scanDataNum <= HashScanDataMatcher.MAX_INDEXED_SCAN_DATA
+            && scanDataNum * INDEXED_SCAN_DATA_SIZE <= indexHeap) {
+            plan = cheaper(plan, new MatchPlan(STRATEGY_HASH_JOIN, keyNum, scanDataNum, indexCost));
+        } else {
+            // Two days are held at the same time, each in half of the index limit.
+            long dayScanDataNum = scanDataNum / Math.max(1, dayNum);
+            if (dayScanDataNum <= HashScanDataMatcher.MAX_INDEXED_SCAN_DATA / 2
+                && dayScanDataNum * 2 * INDEXED_SCAN_DATA_SIZE <= indexHeap) {
+                plan = cheaper(plan, new MatchPlan(STRATEGY_DAY_PARTITION, keyNum, scanDataNum, indexCost));
+            }
+        }
+        // The memory of the sort merge join is fixed, but all the DSCs are spilled to storage.
+        if (SortMergeKeyMatcher.estimateSpillSize(dscNum) > availableStorage) {
+            return plan;
+        }
+        return cheaper(plan, new MatchPlan(STRATEGY_SORT_MERGE, keyNum, scanDataNum,
+            dscNum * SPILL_COST_NS + scanDataNum * SCAN_DATA_LOAD_COST_NS));
+    }
+
+    private static MatchPlan cheaper(MatchPlan plan, MatchPlan other) {
+        return other.mCost < plan.mCost ? other : plan;
+    }
+
+    /**
+     * Get the name of the strategy
+     *
+     * @param strategy strategy
+     * @return name of the strategy
+     */
+    public static String getStrategyName(int strategy) {
+        switch (strategy) {
+            case STRATEGY_DB_PROBE:
+                return "DB_PROBE";
+            case STRATEGY_HASH_JOIN:
+                return "HASH_JOIN";
+            case STRATEGY_DAY_PARTITION:
+                return "DAY_PARTITION";
+            case STRATEGY_SORT_MERGE:
+                return "SORT_MERGE";
+            default:
+                return "UNKNOWN";
+        }
+    }
+
+    /**
+     * Getter
+     */
+    public int getStrategy() {
+        return mStrategy;
+    }
+
+    /**
+     * Getter
+     */
+    public long getKeyNum() {
+        return mKeyNum;
+    }
+
+    /**
+     * Getter
+     */
+    public long getScanDataNum() {
+        return mScanDataNum;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ENGLISH, "MatchPlan<strategy: %s, keyNum: %d, scanDataNum: %d, cost: %d ms>",
+            getStrategyName(mStrategy), mKeyNum, mScanDataNum, mCost / NS_TO_MS);
+    }
+}
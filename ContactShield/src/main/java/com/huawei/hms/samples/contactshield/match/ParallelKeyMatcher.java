@@ -0,0 +1,136 @@
+/*
+ * Copyright 2020. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huawei.hms.samples.contactshield.match;
+
+import com.huawei.hms.samples.contactshield.contact.PeriodicKey;
+import com.huawei.hms.samples.contactshield.util.threadpool.ThreadExec;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Split a PeriodicKey list across the fork/join pool and analyze the keys in parallel.
+ * The results are merged in the order of the key list, so the output is the same as a sequential run.
+ *
+ * @since 2020-10-15
+ */
+public class ParallelKeyMatcher {
+    /**
+     * Key lists shorter than this are analyzed on the calling thread.
+     */
+    private static final int MIN_KEYS_PER_TASK = 64;
+
+    // Split into more tasks than workers so that an unlucky worker does not hold up the others.
+    private static final int TASKS_PER_WORKER = 4;
+
+    private ParallelKeyMatcher() {
+    }
+
+    /**
+     * Analyze every key in keyList
+     *
+     * @param keyList PeriodicKey list
+     * @param factory factory to create the analyzer of each worker
+     * @param <T> type of the result
+     * @return results of all the keys, in the order of keyList
+     */
+    public static <T> List<T> match(List<PeriodicKey> keyList, KeyAnalyzerFactory<T> factory) {
+        // Indexed access is needed to split the list.
+        List<PeriodicKey> keys = keyList instanceof ArrayList ? keyList : new ArrayList<>(keyList);
+        int parallelism = ThreadExec.getParallelism();
+        if (parallelism <= 1 || keys.size() < MIN_KEYS_PER_TASK * 2) {
+            return analyzeRange(keys, 0, keys.size(), factory);
+        }
+        int threshold = Math.max(MIN_KEYS_PER_TASK, keys.size() / (parallelism * TASKS_PER_WORKER));
+        return ThreadExec.invokeParallelTask(new KeyMatchTask<>(keys, 0, keys.size(), threshold, factory));
+    }
+
+    private static <T> List<T> analyzeRange(List<PeriodicKey> keys, int from, int to, KeyAnalyzerFactory<T> factory) {
+        List<T> resultList = new ArrayList<>();
+        factory.create().analyze(keys, from, to, resultList);
+        return resultList;
+    }
+
+    /**
+     * Analyze a contiguous range of keys. It is only used by one worker, so it can hold scratch buffers and
+     * cipher state, and process several keys at once.
+     *
+     * @param <T> type of the result
+     */
+    public interface KeyAnalyzer<T> {
+        /**
+         * Analyze keys[from] ~ keys[to - 1] and append the results to resultList in the order of the keys
+         *
+         * @param keys PeriodicKey list
+         * @param from index of the first key
+         * @param to index after the last key
+         * @param resultList list to save the results
+         */
+        void analyze(List<PeriodicKey> keys, int from, int to, List<T> resultList);
+    }
+
+    /**
+     * Create a KeyAnalyzer for each worker
+     *
+     * @param <T> type of the result
+     */
+    public interface KeyAnalyzerFactory<T> {
+        /**
+         * Create KeyAnalyzer
+         *
+         * @return new KeyAnalyzer
+         */
+        KeyAnalyzer<T> create();
+    }
+
+    private static class KeyMatchTask<T> extends RecursiveTask<List<T>> {
+        private final List<PeriodicKey> mKeys;
+
+        private final int mFrom;
+
+        private final int mTo;
+
+        private final int mThreshold;
+
+        private final KeyAnalyzerFactory<T> mFactory;
+
+        KeyMatchTask(List<PeriodicKey> keys, int from, int to, int threshold, KeyAnalyzerFactory<T> factory) {
+            mKeys = keys;
+            mFrom = from;
+            mTo = to;
+            mThreshold = threshold;
+            mFactory = factory;
+        }
+
+        @Override
+        protected List<T> compute() {
+            if (mTo - mFrom <= mThreshold) {
+                return analyzeRange(mKeys, mFrom, mTo, mFactory);
+            }
+            int middle = (mFrom + mTo) >>> 1;
+            KeyMatchTask<T> left = new KeyMatchTask<>(mKeys, mFrom, middle, mThreshold, mFactory);
+            KeyMatchTask<T> right = new KeyMatchTask<>(mKeys, middle, mTo, mThreshold, mFactory);
+            left.fork();
+            List<T> rightResult = right.compute();
+            List<T> result = left.join();
+            // Left half first, to keep the order of the key list.
+            result.addAll(rightResult);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2020. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huawei.hms.samples.contactshield.match;
+
+import com.huawei.hms.samples.contactshield.ble.ContactBeacon;
+import com.huawei.hms.samples.contactshield.contact.PeriodicKey;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Drop the PeriodicKeys already seen by the diagnosis. The same key is often published in several files, such as
+ * overlapping daily and weekly files or the files of several regions, and each copy would be derived, matched
+ * and counted in the sketch again.
+ * Keys are identified by the key content, valid time and life time, which determine the DSCs. The first copy in
+ * the order of the files wins, a later copy with another risk level or report type is dropped as a conflict.
+ * Each key takes a 128 bits fingerprint in an open addressing table. The intervals are mixed into the fingerprint
+ * with a random seed, so a published key can hardly be crafted to collide with another one.
+ * Not thread safe, the keys are filtered by a single stage.
+ *
+ * @since 2020-10-24
+ */
+public class PeriodicKeyDeduplicator {
+    private static final int MIN_CAPACITY = 1024;
+
+    // The table may be allocated before the keys are parsed, do not trust a huge estimate.
+    private static final int MAX_INITIAL_CAPACITY = 1 << 18;
+
+    // The table grows when it is 3/4 full.
+    private static final int LOAD_FACTOR_NUMERATOR = 3;
+
+    private static final int LOAD_FACTOR_DENOMINATOR = 4;
+
+    private static final int INTERVAL_SHIFT = 32;
+
+    private static final int ATTRIBUTE_SHIFT = 4;
+
+    private static final int ATTRIBUTE_MASK = 0x0f;
+
+    private static final long MIX_MULTIPLIER_1 = 0xff51afd7ed558ccdL;
+
+    private static final long MIX_MULTIPLIER_2 = 0xc4ceb9fe1a85ec53L;
+
+    private static final int MIX_SHIFT = 33;
+
+    private final long mSeed = new SecureRandom().nextLong();
+
+    // An empty slot has both parts 0, no fingerprint is allowed to be 0.
+    private long[] mHighs;
+
+    private long[] mLows;
+
+    // Risk level and report type of the first copy.
+    private byte[] mAttributes;
+
+    private int mMask;
+
+    private int mSize;
+
+    private long mDuplicateNum;
+
+    private long mConflictNum;
+
+    /**
+     * Constructor
+     *
+     * @param expectedNum expected number of keys
+     */
+    public PeriodicKeyDeduplicator(long expectedNum) {
+        long capacity = Math.min(Math.max(expectedNum, MIN_CAPACITY), MAX_INITIAL_CAPACITY);
+        allocate(Integer.highestOneBit((int) (capacity * LOAD_FACTOR_DENOMINATOR / LOAD_FACTOR_NUMERATOR)) << 1);
+    }
+
+    /**
+     * Filter the keys not seen before
+     *
+     * @param keyList PeriodicKey list
+     * @return keys of keyList not seen before, in the same order
+     */
+    public List<PeriodicKey> filter(List<PeriodicKey> keyList) {
+        List<PeriodicKey> newKeyList = new ArrayList<>(keyList.size());
+        for (PeriodicKey key : keyList) {
+            if (add(key)) {
+                newKeyList.add(key);
+            }
+        }
+        return newKeyList;
+    }
+
+    /**
+     * Add the key to the set
+     *
+     * @param key PeriodicKey
+     * @return true if the key was not seen before
+     */
+    public boolean add(PeriodicKey key) {
+        byte[] content = key.getContent();
+        if (content == null || content.length != ContactBeacon.DSC_LENGTH) {
+            // Not a valid key, it is left to the matcher.
+            return true;
+        }
+        long intervals = (key.getPeriodicKeyValidTime() << INTERVAL_SHIFT) ^ key.getPeriodicKeyLifeTime();
+        long high = DscUtil.getHigh(content, 0);
+        long low = DscUtil.getLow(content, 0) ^ mix(intervals ^ mSeed);
+        if (high == 0 && low == 0) {
+            low = 1;
+        }
+        byte attributes = (byte) ((key.getInitialRiskLevel() & ATTRIBUTE_MASK) << ATTRIBUTE_SHIFT
+            | (key.getReportType() & ATTRIBUTE_MASK));
+        int slot = (int) mix(high ^ low) & mMask;
+        while (mHighs[slot] != 0 || mLows[slot] != 0) {
+            if (mHighs[slot] == high && mLows[slot] == low) {
+                mDuplicateNum++;
+                if (mAttributes[slot] != attributes) {
+                    mConflictNum++;
+                }
+                return false;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        mHighs[slot] = high;
+        mLows[slot] = low;
+        mAttributes[slot] = attributes;
+        mSize++;
+        if (mSize * (long) LOAD_FACTOR_DENOMINATOR > mHighs.length * (long) LOAD_FACTOR_NUMERATOR) {
+            grow();
+        }
+        return true;
+    }
+
+    /**
+     * Getter
+     */
+    public long getDuplicateNum() {
+        return mDuplicateNum;
+    }
+
+    /**
+     * Getter
+     */
+    public long getConflictNum() {
+        return mConflictNum;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ENGLISH, "PeriodicKeyDeduplicator<keys: %d, duplicates: %d, conflicts: %d>",
+            mSize, mDuplicateNum, mConflictNum);
+    }
+
+    private void allocate(int capacity) {
+        mHighs = new long[capacity];
+        mLows = new long[capacity];
+        mAttributes = new byte[capacity];
+        mMask = capacity - 1;
+    }
+
+    private void grow() {
+        long[] highs = mHighs;
+        long[] lows = mLows;
+        byte[] attributes = mAttributes;
+        allocate(highs.length * 2);
+        for (int i = 0; i < highs.length; i++) {
+            if (highs[i] == 0 && lows[i] == 0) {
+                continue;
+            }
+            int slot = (int) mix(highs[i] ^ lows[i]) & mMask;
+            while (mHighs[slot] != 0 || mLows[slot] != 0) {
+                slot = (slot + 1) & mMask;
+            }
+            mHighs[slot] = highs[i];
+            mLows[slot] = lows[i];
+            mAttributes[slot] = attributes[i];
+        }
+    }
+
+    private static long mix(long value) {
+        // Finalizer of MurmurHash3, every bit of the input affects every bit of the output.
+        long mixed = (value ^ (value >>> MIX_SHIFT)) * MIX_MULTIPLIER_1;
+        mixed = (mixed ^ (mixed >>> MIX_SHIFT)) * MIX_MULTIPLIER_2;
+        return mixed ^ (mixed >>> MIX_SHIFT);
+    }
+}
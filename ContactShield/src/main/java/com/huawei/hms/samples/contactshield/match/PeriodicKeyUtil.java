@@ -0,0 +1,53 @@
+/*
+ * Copyright 2020. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huawei.hms.samples.contactshield.match;
+
+import com.huawei.hms.samples.contactshield.contact.PeriodicKey;
+
+import java.util.Arrays;
+
+/**
+ * Helpers to identify a PeriodicKey across key files and diagnoses.
+ *
+ * @since 2020-10-18
+ */
+public class PeriodicKeyUtil {
+    private static final int INTERVAL_BYTES = 4;
+
+    private PeriodicKeyUtil() {
+    }
+
+    /**
+     * Fingerprint of the PeriodicKey: the key content, valid time and life time, which determine the DSCs.
+     *
+     * @param key PeriodicKey
+     * @return fingerprint
+     */
+    public static byte[] getFingerprint(PeriodicKey key) {
+        byte[] content = key.getContent();
+        byte[] fingerprint = Arrays.copyOf(content, content.length + INTERVAL_BYTES * 2);
+        putInt(fingerprint, content.length, key.getPeriodicKeyValidTime());
+        putInt(fingerprint, content.length + INTERVAL_BYTES, key.getPeriodicKeyLifeTime());
+        return fingerprint;
+    }
+
+    private static void putInt(byte[] data, int offset, long value) {
+        for (int i = 0; i < INTERVAL_BYTES; i++) {
+            data[offset + i] = (byte) (value >>> (Byte.SIZE * (INTERVAL_BYTES - 1 - i)));
+        }
+    }
+}
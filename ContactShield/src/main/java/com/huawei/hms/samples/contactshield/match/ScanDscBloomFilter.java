@@ -0,0 +1,126 @@
+/*
+ * Copyright 2020. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huawei.hms.samples.contactshield.match;
+
+import com.huawei.hms.samples.contactshield.ble.ContactBeacon;
+
+/**
+ * Bloom filter over the locally scanned DSCs.
+ * A DSC which is not contained by the filter was never scanned, so the exact lookup can be skipped.
+ * With 10 bits per DSC and 7 hash functions, the false positive rate is under 1%. The filter is held as long as the
+ * process runs, so its size is capped at 8 MB, about 6.7M DSCs. Beyond that the false positive rate grows, the
+ * filter then only lets more DSCs through.
+ *
+ * @since 2020-10-14
+ */
+public class ScanDscBloomFilter {
+    private static final int BITS_PER_DSC = 10;
+
+    private static final int HASH_FUNCTIONS = 7;
+
+    private static final int MIN_CAPACITY = 1024;
+
+    private static final int LONG_BITS_SHIFT = 6;
+
+    private static final long MAX_BIT_SIZE = 1L << 26;
+
+    private final long[] mBits;
+
+    private final long mBitMask;
+
+    private final long mCapacity;
+
+    private final long mStartInterval;
+
+    private long mCount;
+
+    /**
+     * Constructor
+     *
+     * @param capacity expected number of DSCs
+     * @param startInterval the filter contains all the DSCs scanned since this interval number
+     */
+    public ScanDscBloomFilter(long capacity, long startInterval) {
+        mCapacity = Math.max(capacity, MIN_CAPACITY);
+        long bitSize = Math.min(Long.highestOneBit(mCapacity * BITS_PER_DSC - 1) << 1, MAX_BIT_SIZE);
+        mBits = new long[(int) (bitSize >>> LONG_BITS_SHIFT)];
+        mBitMask = bitSize - 1;
+        mStartInterval = startInterval;
+    }
+
+    /**
+     * Add DSC to the filter
+     *
+     * @param dsc DSC
+     */
+    public synchronized void put(byte[] dsc) {
+        if (dsc == null || dsc.length != ContactBeacon.DSC_LENGTH) {
+            return;
+        }
+        long high = DscUtil.getHigh(dsc, 0);
+        long low = DscUtil.getLow(dsc, 0);
+        for (int i = 0; i < HASH_FUNCTIONS; i++) {
+            long bit = bitIndex(high, low, i);
+            mBits[(int) (bit >>> LONG_BITS_SHIFT)] |= 1L << bit;
+        }
+        mCount++;
+    }
+
+    /**
+     * Check if the DSC might have been scanned.
+     *
+     * @param dscData byte array containing the DSC
+     * @param offset offset of the DSC in dscData
+     * @return false if the DSC is definitely not scanned
+     */
+    public boolean mightContain(byte[] dscData, int offset) {
+        if (dscData == null || dscData.length < offset + ContactBeacon.DSC_LENGTH) {
+            return false;
+        }
+        long high = DscUtil.getHigh(dscData, offset);
+        long low = DscUtil.getLow(dscData, offset);
+        for (int i = 0; i < HASH_FUNCTIONS; i++) {
+            long bit = bitIndex(high, low, i);
+            if ((mBits[(int) (bit >>> LONG_BITS_SHIFT)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long bitIndex(long high, long low, int i) {
+        // Double hashing, the low part is forced odd so every step is different.
+        long combined = high + i * (low | 1L);
+        return (combined ^ (combined >>> 32)) & mBitMask;
+    }
+
+    /**
+     * Check if the filter is too full to keep the expected false positive rate.
+     *
+     * @return true if the filter should be rebuilt with larger capacity, the size cap does not change the capacity
+     */
+    public synchronized boolean isSaturated() {
+        return mCount > mCapacity;
+    }
+
+    /**
+     * Getter
+     */
+    public long getStartInterval() {
+        return mStartInterval;
+    }
+}
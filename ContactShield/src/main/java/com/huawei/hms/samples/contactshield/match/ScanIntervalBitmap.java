@@ -0,0 +1,137 @@
+/*
+ * Copyright 2020. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huawei.hms.samples.contactshield.match;
+
+import java.util.Arrays;
+
+/**
+ * Bitmap of the intervals in which any scan data was saved.
+ * The DSC of an interval can only be matched by the scan data around that interval, so the DSCs of the
+ * intervals without any scan nearby do not need to be derived at all.
+ *
+ * @since 2020-10-18
+ */
+public class ScanIntervalBitmap {
+    /**
+     * Clock skew tolerated between the advertiser and the scanner, 2 hours in intervals
+     */
+    public static final int SKEW_TOLERANCE_INTERVALS = 12;
+
+    private static final int LONG_BITS_SHIFT = 6;
+
+    private static final int MIN_WORDS = 64;
+
+    private final long mStartInterval;
+
+    private long[] mBits;
+
+    /**
+     * Constructor
+     *
+     * @param startInterval the bitmap contains all the intervals scanned since this interval number
+     */
+    public ScanIntervalBitmap(long startInterval) {
+        this(startInterval, new long[MIN_WORDS]);
+    }
+
+    private ScanIntervalBitmap(long startInterval, long[] bits) {
+        mStartInterval = startInterval;
+        mBits = bits;
+    }
+
+    /**
+     * Mark the interval as scanned
+     *
+     * @param interval interval number
+     */
+    public synchronized void set(long interval) {
+        long bit = interval - mStartInterval;
+        if (bit < 0) {
+            return;
+        }
+        int word = (int) (bit >>> LONG_BITS_SHIFT);
+        if (word >= mBits.length) {
+            mBits = Arrays.copyOf(mBits, Math.max(word + 1, mBits.length * 2));
+        }
+        mBits[word] |= 1L << bit;
+    }
+
+    /**
+     * Copy the bitmap, the copy can be read by several threads without locking.
+     *
+     * @return snapshot of the bitmap
+     */
+    public synchronized ScanIntervalBitmap copy() {
+        return new ScanIntervalBitmap(mStartInterval, mBits.clone());
+    }
+
+    /**
+     * Check if any scan data might be saved in the interval. The intervals before the bitmap are unknown.
+     *
+     * @param interval interval number
+     * @return true if the interval is scanned or unknown
+     */
+    public boolean isScanned(long interval) {
+        long bit = interval - mStartInterval;
+        if (bit < 0) {
+            return true;
+        }
+        int word = (int) (bit >>> LONG_BITS_SHIFT);
+        return word < mBits.length && (mBits[word] & (1L << bit)) != 0;
+    }
+
+    /**
+     * Find the intervals within [startInterval, startInterval + intervalNum) which have scans within
+     * SKEW_TOLERANCE_INTERVALS, so their DSCs might be matched.
+     *
+     * @param startInterval starting interval number
+     * @param intervalNum number of intervals
+     * @param offsets array to save the offsets of the candidate intervals to startInterval, in ascending order
+     * @return number of candidate intervals
+     */
+    public int getCandidateOffsets(long startInterval, int intervalNum, int[] offsets) {
+        // Sliding window over the scanned intervals in [interval - tolerance, interval + tolerance].
+        int scannedInWindow = 0;
+        for (long interval = startInterval - SKEW_TOLERANCE_INTERVALS;
+            interval < startInterval + SKEW_TOLERANCE_INTERVALS; interval++) {
+            if (isScanned(interval)) {
+                scannedInWindow++;
+            }
+        }
+        int count = 0;
+        for (int i = 0; i < intervalNum; i++) {
+            long interval = startInterval + i;
+            if (isScanned(interval + SKEW_TOLERANCE_INTERVALS)) {
+                scannedInWindow++;
+            }
+            if (scannedInWindow > 0) {
+                offsets[count++] = i;
+            }
+            if (isScanned(interval - SKEW_TOLERANCE_INTERVALS)) {
+                scannedInWindow--;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Getter
+     */
+    public long getStartInterval() {
+        return mStartInterval;
+    }
+}
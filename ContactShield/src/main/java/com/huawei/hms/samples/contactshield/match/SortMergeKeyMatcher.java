@@ -0,0 +1,535 @@
+/*
+ * Copyright 2020. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huawei.hms.samples.contactshield.match;
+
+import com.huawei.hms.samples.contactshield.ContactDataManage;
+import com.huawei.hms.samples.contactshield.ble.ContactBeacon;
+import com.huawei.hms.samples.contactshield.contact.PeriodicKey;
+import com.huawei.hms.samples.contactshield.crypto.DscDerivationEngine;
+import com.huawei.hms.samples.contactshield.database.table.ScanData;
+import com.huawei.hms.samples.contactshield.util.ContactShieldLog;
+import com.huawei.hms.samples.contactshield.util.GlobalSettings;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Match the keys against scan data which is too large to be indexed in memory, with fixed memory.
+ * The DSCs of all the keys are derived first and spilled to a temporary file as sorted runs of (DSC, key index)
+ * tuples. The runs are merged and joined with the scan data read from database in the order of DSC, so both
+ * sides are read sequentially only once. At last, only the joined keys are analyzed, against an in-memory index
+ * of the joined scan data.
+ *
+ * @since 2020-10-19
+ */
+public class SortMergeKeyMatcher {
+    private static final String TAG = "SortMergeKeyMatcher";
+
+    private static final int INT_BYTES = 4;
+
+    // DSC followed by the index of the key.
+    private static final int TUPLE_SIZE = ContactBeacon.DSC_LENGTH + INT_BYTES;
+
+    // Tuples sorted in memory by each worker before they are spilled as a run, 1.25 MB.
+    private static final int RUN_TUPLES = 64 * 1024;
+
+    private static final int WRITE_BUFFER_TUPLES = 4 * 1024;
+
+    private static final int SCAN_PAGE_SIZE = 1024;
+
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    // Initial capacity for the keys sharing a DSC.
+    private static final int GROUP_CAPACITY = 4;
+
+    private final List<PeriodicKey> mKeys;
+
+    private final long mStartInterval;
+
+    private final long mEndInterval;
+
+    private final File mFile;
+
+    private final RandomAccessFile mRandomAccessFile;
+
+    private final FileChannel mChannel;
+
+    // Position in file and number of tuples of each run.
+    private final List<long[]> mRuns = new ArrayList<>();
+
+    // The spill fails once the file would leave less than GlobalSettings.MINIMUM_STORAGE_SPACE free.
+    private final long mMaxFileSize;
+
+    private long mFileSize;
+
+    private long mTupleNum;
+
+    private volatile IOException mSpillException;
+
+    private SortMergeKeyMatcher(List<PeriodicKey> keys, long startInterval, long endInterval) throws IOException {
+        mKeys = keys;
+        mStartInterval = startInterval;
+        mEndInterval = endInterval;
+        mFile = File.createTempFile(TAG, null);
+        mMaxFileSize = mFile.getUsableSpace() - GlobalSettings.MINIMUM_STORAGE_SPACE;
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        mChannel = mRandomAccessFile.getChannel();
+    }
+
+    /**
+     * Analyze every key in keyList against the scan data between startInterval and endInterval
+     *
+     * @param keyList PeriodicKey list
+     * @param startInterval starting interval number of the scan data
+     * @param endInterval ending interval number of the scan data
+     * @param deriverFactory factory to create the deriver of each worker
+     * @param analyzerFactory factory to create the analyzers using the joined scan data
+     * @param <T> type of the result
+     * @return results of all the keys, in the order of keyList
+     * @throws IOException if the temporary file can not be written, or the storage is not enough
+     */
+    public static <T> List<T> match(List<PeriodicKey> keyList, long startInterval, long endInterval,
+        DscDeriverFactory deriverFactory, DayPartitionedKeyMatcher.PartitionAnalyzerFactory<T> analyzerFactory)
+        throws IOException {
+        // The tuples refer to the keys by index.
+        List<PeriodicKey> keys = new ArrayList<>(keyList);
+        BitSet joinedKeys = new BitSet(keys.size());
+        List<ScanData> joinedScanData = new ArrayList<>();
+        long startTime = System.currentTimeMillis();
+        SortMergeKeyMatcher keyMatcher = new SortMergeKeyMatcher(keys, startInterval, endInterval);
+        try {
+            keyMatcher.spill(deriverFactory);
+            long spillTime = System.currentTimeMillis();
+            keyMatcher.join(joinedKeys, joinedScanData);
+            ContactShieldLog.d(TAG, "Spill " + keyMatcher.mTupleNum + " DSCs in " + keyMatcher.mRuns.size()
+                + " runs in " + (spillTime - startTime) + " ms, join " + joinedScanData.size() + " scan data in "
+                + (System.currentTimeMillis() - spillTime) + " ms");
+        } finally {
+            keyMatcher.close();
+        }
+        if (joinedKeys.isEmpty()) {
+            return new ArrayList<>();
+        }
+        List<PeriodicKey> joinedKeyList = new ArrayList<>(joinedKeys.cardinality());
+        for (int i = joinedKeys.nextSetBit(0); i >= 0; i = joinedKeys.nextSetBit(i + 1)) {
+            joinedKeyList.add(keys.get(i));
+        }
+        IScanDataMatcher matcher = new HashScanDataMatcher(joinedScanData);
+        try {
+            return ParallelKeyMatcher.match(joinedKeyList, analyzerFactory.create(matcher));
+        } finally {
+            matcher.release();
+        }
+    }
+
+    /**
+     * Estimate the size of the temporary file
+     *
+     * @param dscNum number of DSCs to be derived
+     * @return size in bytes
+     */
+    public static long estimateSpillSize(long dscNum) {
+        return dscNum * TUPLE_SIZE;
+    }
+
+    /**
+     * Get the storage which can be used by the temporary file, GlobalSettings.MINIMUM_STORAGE_SPACE is kept free
+     *
+     * @return size in bytes, 0 if the storage is not enough
+     */
+    public static long getAvailableSpillSpace() {
+        File tempDir = new File(System.getProperty("java.io.tmpdir", "."));
+        return Math.max(0, tempDir.getUsableSpace() - GlobalSettings.MINIMUM_STORAGE_SPACE);
+    }
+
+    private void spill(DscDeriverFactory deriverFactory) throws IOException {
+        ParallelKeyMatcher.<Void>match(mKeys, () -> {
+            DscDeriver deriver = deriverFactory.create();
+            return (keys, from, to, resultList) -> {
+                RunWriter writer = new RunWriter((int) Math.min(RUN_TUPLES,
+                    (long) (to - from) * DscDerivationEngine.MAX_DSC_NUM));
+                deriver.derive(keys, from, to, writer);
+                writer.flush();
+            };
+        });
+        if (mSpillException != null) {
+            throw mSpillException;
+        }
+    }
+
+    /**
+     * Reserve the space of a run in the file
+     *
+     * @return position of the run, -1 if the file would exceed mMaxFileSize
+     */
+    private synchronized long reserveRun(int tupleNum) {
+        long position = mFileSize;
+        if (position + (long) tupleNum * TUPLE_SIZE > mMaxFileSize) {
+            return -1;
+        }
+        mRuns.add(new long[] {position, tupleNum});
+        mFileSize += (long) tupleNum * TUPLE_SIZE;
+        mTupleNum += tupleNum;
+        return position;
+    }
+
+    private void join(BitSet joinedKeys, List<ScanData> joinedScanData) throws IOException {
+        PriorityQueue<RunCursor> runs = new PriorityQueue<>(Math.max(1, mRuns.size()),
+            (left, right) -> DscUtil.compare(left.mHigh, left.mLow, right.mHigh, right.mLow));
+        for (long[] run : mRuns) {
+            RunCursor cursor = new RunCursor(mChannel.map(FileChannel.MapMode.READ_ONLY, run[0],
+                run[1] * TUPLE_SIZE));
+            if (cursor.next()) {
+                runs.add(cursor);
+            }
+        }
+        TupleMerger tuples = new TupleMerger(runs);
+        ScanDataCursor scans = new ScanDataCursor();
+        boolean hasTuple = tuples.next();
+        boolean hasScan = scans.next();
+        int[] group = new int[GROUP_CAPACITY];
+        while (hasTuple && hasScan) {
+            int result = DscUtil.compare(tuples.mHigh, tuples.mLow, scans.mHigh, scans.mLow);
+            if (result < 0) {
+                hasTuple = tuples.next();
+                continue;
+            }
+            if (result > 0) {
+                hasScan = scans.next();
+                continue;
+            }
+            // Collect all the keys with this DSC, usually only one.
+            long high = tuples.mHigh;
+            long low = tuples.mLow;
+            int groupSize = 0;
+            do {
+                if (groupSize == group.length) {
+                    group = Arrays.copyOf(group, groupSize * 2);
+                }
+                group[groupSize++] = tuples.mKeyIndex;
+                hasTuple = tuples.next();
+            } while (hasTuple && tuples.mHigh == high && tuples.mLow == low);
+            do {
+                ScanData scanData = scans.mScanData;
+                boolean isJoined = false;
+                for (int i = 0; i < groupSize; i++) {
+                    if (isInLifeTime(mKeys.get(group[i]), scanData.getIntervalNum())) {
+                        joinedKeys.set(group[i]);
+                        isJoined = true;
+                    }
+                }
+                if (isJoined) {
+                    joinedScanData.add(scanData);
+                }
+                hasScan = scans.next();
+            } while (hasScan && scans.mHigh == high && scans.mLow == low);
+        }
+    }
+
+    private static boolean isInLifeTime(PeriodicKey key, long intervalNum) {
+        long startInterval = key.getPeriodicKeyValidTime();
+        return intervalNum >= startInterval && intervalNum <= startInterval + key.getPeriodicKeyLifeTime() - 1;
+    }
+
+    private void close() {
+        try {
+            mChannel.close();
+            mRandomAccessFile.close();
+        } catch (IOException e) {
+            ContactShieldLog.e(TAG, "Close temporary file exception: " + e.getMessage());
+        }
+        if (!mFile.delete()) {
+            ContactShieldLog.e(TAG, "Delete temporary file failed");
+        }
+    }
+
+    /**
+     * Receive the DSCs derived for the keys
+     */
+    public interface DscSink {
+        /**
+         * Add the DSCs of a key
+         *
+         * @param keyIndex index of the key in the key list
+         * @param dscData DSCs of the key, 16 bytes each
+         * @param dscNum number of DSCs in dscData
+         */
+        void add(int keyIndex, byte[] dscData, int dscNum);
+    }
+
+    /**
+     * Derive the DSCs of a contiguous range of keys. It is only used by one worker.
+     */
+    public interface DscDeriver {
+        /**
+         * Derive the DSCs of keys[from] ~ keys[to - 1] which need matching and add them to sink
+         *
+         * @param keys PeriodicKey list
+         * @param from index of the first key
+         * @param to index after the last key
+         * @param sink receiver of the DSCs
+         */
+        void derive(List<PeriodicKey> keys, int from, int to, DscSink sink);
+    }
+
+    /**
+     * Create a DscDeriver for each worker
+     */
+    public interface DscDeriverFactory {
+        /**
+         * Create DscDeriver
+         *
+         * @return new DscDeriver
+         */
+        DscDeriver create();
+    }
+
+    /**
+     * Buffer of a worker, the tuples are sorted and written as a run each time it is full.
+     */
+    private class RunWriter implements DscSink {
+        private final long[] mHigh;
+
+        private final long[] mLow;
+
+        private final int[] mKeyIndexes;
+
+        private int mSize;
+
+        RunWriter(int capacity) {
+            mHigh = new long[capacity];
+            mLow = new long[capacity];
+            mKeyIndexes = new int[capacity];
+        }
+
+        @Override
+        public void add(int keyIndex, byte[] dscData, int dscNum) {
+            for (int i = 0; i < dscNum; i++) {
+                if (mSize == mHigh.length) {
+                    flush();
+                }
+                int offset = i * ContactBeacon.DSC_LENGTH;
+                mHigh[mSize] = DscUtil.getHigh(dscData, offset);
+                mLow[mSize] = DscUtil.getLow(dscData, offset);
+                mKeyIndexes[mSize] = keyIndex;
+                mSize++;
+            }
+        }
+
+        private void flush() {
+            if (mSize == 0 || mSpillException != null) {
+                mSize = 0;
+                return;
+            }
+            sort(0, mSize - 1);
+            long position = reserveRun(mSize);
+            if (position < 0) {
+                ContactShieldLog.e(TAG, "Spill exceeds the storage available");
+                mSpillException = new IOException("Spill exceeds the storage available");
+                mSize = 0;
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(Math.min(mSize, WRITE_BUFFER_TUPLES) * TUPLE_SIZE);
+            try {
+                for (int i = 0; i < mSize; i++) {
+                    buffer.putLong(mHigh[i]).putLong(mLow[i]).putInt(mKeyIndexes[i]);
+                    if (!buffer.hasRemaining() || i == mSize - 1) {
+                        buffer.flip();
+                        while (buffer.hasRemaining()) {
+                            // Positional write, the workers write their own runs at the same time.
+                            position += mChannel.write(buffer, position);
+                        }
+                        buffer.clear();
+                    }
+                }
+            } catch (IOException e) {
+                ContactShieldLog.e(TAG, "Write run exception: " + e.getMessage());
+                mSpillException = e;
+            }
+            mSize = 0;
+        }
+
+        private void sort(int from, int to) {
+            int left = from;
+            int right = to;
+            while (right - left > INSERTION_SORT_THRESHOLD) {
+                int middle = (left + right) >>> 1;
+                long pivotHigh = mHigh[middle];
+                long pivotLow = mLow[middle];
+                int i = left;
+                int j = right;
+                while (i <= j) {
+                    while (DscUtil.compare(mHigh[i], mLow[i], pivotHigh, pivotLow) < 0) {
+                        i++;
+                    }
+                    while (DscUtil.compare(mHigh[j], mLow[j], pivotHigh, pivotLow) > 0) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        swap(i++, j--);
+                    }
+                }
+                // Recurse into the smaller part so that the stack depth stays logarithmic.
+                if (j - left < right - i) {
+                    sort(left, j);
+                    left = i;
+                } else {
+                    sort(i, right);
+                    right = j;
+                }
+            }
+            for (int i = left + 1; i <= right; i++) {
+                for (int j = i; j > left && DscUtil.compare(mHigh[j - 1], mLow[j - 1], mHigh[j], mLow[j]) > 0; j--) {
+                    swap(j - 1, j);
+                }
+            }
+        }
+
+        private void swap(int i, int j) {
+            long high = mHigh[i];
+            mHigh[i] = mHigh[j];
+            mHigh[j] = high;
+            long low = mLow[i];
+            mLow[i] = mLow[j];
+            mLow[j] = low;
+            int keyIndex = mKeyIndexes[i];
+            mKeyIndexes[i] = mKeyIndexes[j];
+            mKeyIndexes[j] = keyIndex;
+        }
+    }
+
+    /**
+     * Tuple at the head of a memory-mapped run
+     */
+    private static class RunCursor {
+        private final ByteBuffer mBuffer;
+
+        private long mHigh;
+
+        private long mLow;
+
+        private int mKeyIndex;
+
+        RunCursor(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        private boolean next() {
+            if (mBuffer.remaining() < TUPLE_SIZE) {
+                return false;
+            }
+            mHigh = mBuffer.getLong();
+            mLow = mBuffer.getLong();
+            mKeyIndex = mBuffer.getInt();
+            return true;
+        }
+    }
+
+    /**
+     * Merge the sorted runs into a single sequence of tuples in the order of DSC
+     */
+    private static class TupleMerger {
+        private final PriorityQueue<RunCursor> mRuns;
+
+        private long mHigh;
+
+        private long mLow;
+
+        private int mKeyIndex;
+
+        TupleMerger(PriorityQueue<RunCursor> runs) {
+            mRuns = runs;
+        }
+
+        private boolean next() {
+            RunCursor run = mRuns.poll();
+            if (run == null) {
+                return false;
+            }
+            mHigh = run.mHigh;
+            mLow = run.mLow;
+            mKeyIndex = run.mKeyIndex;
+            if (run.next()) {
+                mRuns.add(run);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Read the scan data from database page by page in the order of DSC
+     */
+    private class ScanDataCursor {
+        private List<ScanData> mPage = Collections.emptyList();
+
+        private int mIndex;
+
+        private boolean mIsLastPage;
+
+        private byte[] mLastDsc;
+
+        private int mLastId;
+
+        private ScanData mScanData;
+
+        private long mHigh;
+
+        private long mLow;
+
+        private boolean next() {
+            while (true) {
+                if (mIndex >= mPage.size()) {
+                    if (mIsLastPage || !loadPage()) {
+                        return false;
+                    }
+                }
+                ScanData scanData = mPage.get(mIndex++);
+                byte[] dsc = scanData.getDscReadOnly();
+                if (dsc.length != ContactBeacon.DSC_LENGTH) {
+                    continue;
+                }
+                mScanData = scanData;
+                mHigh = DscUtil.getHigh(dsc, 0);
+                mLow = DscUtil.getLow(dsc, 0);
+                return true;
+            }
+        }
+
+        private boolean loadPage() {
+            mPage = ContactDataManage.getInstance().searchScanDataOrderByDsc(mStartInterval, mEndInterval, mLastDsc,
+                mLastId, SCAN_PAGE_SIZE);
+            mIndex = 0;
+            mIsLastPage = mPage.size() < SCAN_PAGE_SIZE;
+            if (mPage.isEmpty()) {
+                return false;
+            }
+            ScanData last = mPage.get(mPage.size() - 1);
+            mLastDsc = last.getDsc();
+            mLastId = last.getId();
+            return true;
+        }
+    }
+}
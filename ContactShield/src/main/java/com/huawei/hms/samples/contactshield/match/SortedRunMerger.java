@@ -0,0 +1,164 @@
+/*
+ * Copyright 2020. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huawei.hms.samples.contactshield.match;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * K-way merge of sorted runs stored one after another in a list. The scan data of a key is matched DSC by DSC,
+ * and each run is usually already in time order, but a DSC may be scanned in the intervals around its own, so the
+ * runs overlap. The matchers do not promise any order, so a run out of order is sorted before the merge.
+ * The runs are merged with a binary heap of their heads in O(n log k), where k is at most the number of DSCs of a key.
+ * Not thread safe, the buffers are reused by the merges of a single worker.
+ *
+ * @since 2020-10-30
+ */
+public class SortedRunMerger {
+    // Start of each run in the list, plus the end of the last run.
+    private final int[] mRunOffsets;
+
+    // Heap of the runs not exhausted yet, ordered by their heads.
+    private final int[] mHeap;
+
+    // Next record of each run.
+    private final int[] mPositions;
+
+    private int mRunNum;
+
+    /**
+     * Constructor
+     *
+     * @param maxRunNum max number of runs
+     */
+    public SortedRunMerger(int maxRunNum) {
+        mRunOffsets = new int[maxRunNum + 1];
+        mHeap = new int[maxRunNum];
+        mPositions = new int[maxRunNum];
+    }
+
+    /**
+     * Forget the runs of the previous merge
+     */
+    public void reset() {
+        mRunNum = 0;
+        mRunOffsets[0] = 0;
+    }
+
+    /**
+     * Close the run ending at the given position, empty runs are ignored
+     *
+     * @param end end of the run in the list, the start of the next run
+     */
+    public void endRun(int end) {
+        if (end == mRunOffsets[mRunNum] || mRunNum == mHeap.length) {
+            return;
+        }
+        mRunNum++;
+        mRunOffsets[mRunNum] = end;
+    }
+
+    /**
+     * Merge the runs of the list
+     *
+     * @param records records of the runs, one run after another, the runs out of order are sorted in place
+     * @param comparator order of the records
+     * @return records in the order of the comparator, the list itself if it has a single run
+     */
+    public <T> List<T> merge(List<T> records, Comparator<? super T> comparator) {
+        if (mRunOffsets[mRunNum] != records.size()) {
+            // The runs do not cover the list, e.g. there were too many of them.
+            Collections.sort(records, comparator);
+            return records;
+        }
+        for (int run = 0; run < mRunNum; run++) {
+            sortRun(records, comparator, mRunOffsets[run], mRunOffsets[run + 1]);
+        }
+        if (mRunNum <= 1) {
+            return records;
+        }
+        int heapSize = 0;
+        for (int run = 0; run < mRunNum; run++) {
+            mPositions[run] = mRunOffsets[run];
+            mHeap[heapSize] = run;
+            siftUp(records, comparator, heapSize++);
+        }
+        List<T> merged = new ArrayList<>(records.size());
+        while (heapSize > 0) {
+            int run = mHeap[0];
+            merged.add(records.get(mPositions[run]++));
+            if (mPositions[run] == mRunOffsets[run + 1]) {
+                mHeap[0] = mHeap[--heapSize];
+            }
+            siftDown(records, comparator, heapSize);
+        }
+        return merged;
+    }
+
+    private static <T> void sortRun(List<T> records, Comparator<? super T> comparator, int start, int end) {
+        for (int i = start + 1; i < end; i++) {
+            if (comparator.compare(records.get(i - 1), records.get(i)) > 0) {
+                Collections.sort(records.subList(start, end), comparator);
+                return;
+            }
+        }
+    }
+
+    private <T> boolean isBefore(List<T> records, Comparator<? super T> comparator, int run, int other) {
+        int order = comparator.compare(records.get(mPositions[run]), records.get(mPositions[other]));
+        // The earlier run wins the ties, so the merge is stable.
+        return order < 0 || (order == 0 && run < other);
+    }
+
+    private <T> void siftUp(List<T> records, Comparator<? super T> comparator, int index) {
+        int run = mHeap[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (!isBefore(records, comparator, run, mHeap[parent])) {
+                break;
+            }
+            mHeap[index] = mHeap[parent];
+            index = parent;
+        }
+        mHeap[index] = run;
+    }
+
+    private <T> void siftDown(List<T> records, Comparator<? super T> comparator, int heapSize) {
+        if (heapSize == 0) {
+            return;
+        }
+        int run = mHeap[0];
+        int index = 0;
+        while (true) {
+            int child = index * 2 + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && isBefore(records, comparator, mHeap[child + 1], mHeap[child])) {
+                child++;
+            }
+            if (!isBefore(records, comparator, mHeap[child], run)) {
+                break;
+            }
+            mHeap[index] = mHeap[child];
+            index = child;
+        }
+        mHeap[index] = run;
+    }
+}
@@ -18,6 +18,11 @@ package com.huawei.hms.samples.contactshield.util;
 
 import com.huawei.hms.samples.contactshield.contact.ContactShieldSetting;
 
+import java.security.PublicKey;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * GlobalSettings
  *
@@ -159,6 +164,78 @@ public class GlobalSettings {
         return sCalibration;
     }
 
+    /**
+     * Public keys of the key servers by KeyFileVerifier.getKeyId(), the signatures of the key files are not
+     * verified if it is empty
+     */
+    private static volatile Map<String, PublicKey> sVerificationKeys = Collections.emptyMap();
+
+    /**
+     * set verification keys
+     *
+     * @param verificationKeys public keys of the key servers by KeyFileVerifier.getKeyId()
+     */
+    public static void setVerificationKeys(Map<String, PublicKey> verificationKeys) {
+        sVerificationKeys = Collections.unmodifiableMap(new HashMap<>(verificationKeys));
+    }
+
+    /**
+     * get verification keys
+     *
+     * @return sVerificationKeys
+     */
+    public static Map<String, PublicKey> getVerificationKeys() {
+        return sVerificationKeys;
+    }
+
+    /**
+     * Whether the scan data is matched against the keys of the last diagnoses when it is flushed, see
+     * ContactAnalyze.onScanDataFlushed()
+     */
+    private static volatile boolean sContinuousDiagnosis = false;
+
+    /**
+     * set continuous diagnosis
+     *
+     * @param continuousDiagnosis whether the flushed scan data is matched against the keys of the last diagnoses
+     */
+    public static void setContinuousDiagnosis(boolean continuousDiagnosis) {
+        sContinuousDiagnosis = continuousDiagnosis;
+    }
+
+    /**
+     * is continuous diagnosis
+     *
+     * @return sContinuousDiagnosis
+     */
+    public static boolean isContinuousDiagnosis() {
+        return sContinuousDiagnosis;
+    }
+
+    /**
+     * Whether the keys are derived by MultiBufferHkdf instead of the JCA Macs of HkdfEngine. Off until the
+     * multi-buffer path is measured faster on devices, and even then only used if its known-answer check passes.
+     */
+    private static volatile boolean sMultiBufferHkdf = false;
+
+    /**
+     * set multi-buffer hkdf
+     *
+     * @param multiBufferHkdf whether the keys are derived by MultiBufferHkdf
+     */
+    public static void setMultiBufferHkdf(boolean multiBufferHkdf) {
+        sMultiBufferHkdf = multiBufferHkdf;
+    }
+
+    /**
+     * is multi-buffer hkdf
+     *
+     * @return sMultiBufferHkdf
+     */
+    public static boolean isMultiBufferHkdf() {
+        return sMultiBufferHkdf;
+    }
+
     /**
      * getGlobalContactShieldSetting
      */
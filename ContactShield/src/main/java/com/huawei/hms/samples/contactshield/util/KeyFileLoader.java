@@ -0,0 +1,98 @@
+/*
+ * Copyright 2020. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huawei.hms.samples.contactshield.util;
+
+import com.huawei.hms.samples.contactshield.util.threadpool.ThreadExec;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Load the exports of the key files in order, the next files are opened and mapped on the IO threads while the
+ * current one is parsed and matched.
+ *
+ * @since 2020-10-22
+ */
+public class KeyFileLoader {
+    private static final String TAG = "KeyFileLoader";
+
+    // A loaded export takes no heap, a STORED one is mapped and a compressed one is streamed when it is parsed.
+    private static final int MAX_PREFETCH_FILES = 2;
+
+    private final List<File> mFileList;
+
+    private final ArrayDeque<Future<KeyFileParser.Export>> mPending = new ArrayDeque<>(MAX_PREFETCH_FILES);
+
+    private int mNextIndex;
+
+    public KeyFileLoader(List<File> fileList) {
+        mFileList = fileList;
+        prefetch();
+    }
+
+    /**
+     * Whether there are more files
+     *
+     * @return true if next() can be called
+     */
+    public boolean hasNext() {
+        return !mPending.isEmpty();
+    }
+
+    /**
+     * Wait for the export of the next file
+     *
+     * @return export of the file, null if the file is invalid
+     */
+    public KeyFileParser.Export next() {
+        Future<KeyFileParser.Export> future = mPending.poll();
+        prefetch();
+        if (future == null) {
+            return null;
+        }
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            ContactShieldLog.e(TAG, "Load key file exception: " + e.getMessage());
+        } catch (InterruptedException e) {
+            ContactShieldLog.e(TAG, "Load key file interrupted");
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+    /**
+     * Cancel the files not loaded yet
+     */
+    public void close() {
+        for (Future<KeyFileParser.Export> future : mPending) {
+            future.cancel(false);
+        }
+        mPending.clear();
+        mNextIndex = mFileList.size();
+    }
+
+    private void prefetch() {
+        while (mPending.size() < MAX_PREFETCH_FILES && mNextIndex < mFileList.size()) {
+            File file = mFileList.get(mNextIndex++);
+            mPending.add(ThreadExec.submitIoTask(TAG, () -> KeyFileParser.loadExport(file)));
+        }
+    }
+}
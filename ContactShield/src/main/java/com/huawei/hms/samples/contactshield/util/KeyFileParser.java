@@ -16,19 +16,25 @@
 
 package com.huawei.hms.samples.contactshield.util;
 
-import androidx.annotation.NonNull;
-
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
 import com.huawei.hms.samples.TEKSignatureListOuterClass;
 import com.huawei.hms.samples.TemporaryExposureKeyExportOuterClass;
 import com.huawei.hms.samples.contactshield.contact.PeriodicKey;
+import com.huawei.hms.samples.contactshield.util.threadpool.ThreadExec;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -39,74 +45,113 @@ public class KeyFileParser {
     private static final int READ_LINE_LENGTH = 16;
     private static final int STREAM_EOF = -1;
     private static final int STREAM_BUFFER_SIZE = 4096;
+    private static final String FINGERPRINT_ALGORITHM = "SHA-256";
 
-    public static List<PeriodicKey> parseFiles(File keyFile) {
-        List<PeriodicKey> keyList = new ArrayList<>();
-        FileContent fileContent = readFile(keyFile);
-        if (fileContent == null) {
-            return keyList;
-        }
-        for (TemporaryExposureKeyExportOuterClass.TemporaryExposureKey k : fileContent.export.getKeysList()) {
-            // Discard key if invalid parameter is found.
-            if (!checkFileKeyValid(k)) {
-                continue;
-            }
-            PeriodicKey periodicKey = new PeriodicKey.Builder()
-                    .setContent(k.getKeyData().toByteArray())
-                    .setPeriodicKeyValidTime(k.getRollingStartIntervalNumber())
-                    .setPeriodicKeyLifeTime(k.getRollingPeriod())
-                    .setInitialRiskLevel(k.getTransmissionRiskLevel())
-                    .setReportType(k.getReportType().getNumber())
-                    .build();
-            keyList.add(periodicKey);
-        }
+    // Mapped exports with fewer keys are decoded on the calling thread, decoding them in parallel does not pay.
+    private static final int PARALLEL_MIN_KEYS = 16 * 1024;
 
-        return keyList;
-    }
+    // Number of key records decoded by a task.
+    private static final int DECODE_CHUNK_KEYS = 4 * 1024;
 
-    private static byte[] inputStreamToByteArray(InputStream input) throws IOException {
-        ByteArrayOutputStream output = new ByteArrayOutputStream();
-        /* Memory usage to be optimised for large file */
-        byte[] buffer = new byte[STREAM_BUFFER_SIZE];
-        int n;
-        while ((n = input.read(buffer)) != STREAM_EOF) {
-            output.write(buffer, 0, n);
-        }
-        return output.toByteArray();
-    }
+    // Decoded chunks waiting for the consumer, per worker.
+    private static final int PENDING_CHUNKS_PER_WORKER = 2;
+
+    // Encoded fields of the export other than the keys, such as timestamps, region and signature infos.
+    private static final int EXPORT_FIELDS_SIZE = 128;
+
+    // A key takes 30 ~ 36 bytes in the export, depending on the optional fields.
+    private static final int ENCODED_KEY_SIZE = 32;
+
+    private static final int START_TIMESTAMP_TAG = makeTag(
+        TemporaryExposureKeyExportOuterClass.TemporaryExposureKeyExport.START_TIMESTAMP_FIELD_NUMBER,
+        WireFormat.WIRETYPE_FIXED64);
+
+    private static final int END_TIMESTAMP_TAG = makeTag(
+        TemporaryExposureKeyExportOuterClass.TemporaryExposureKeyExport.END_TIMESTAMP_FIELD_NUMBER,
+        WireFormat.WIRETYPE_FIXED64);
+
+    private static final int KEYS_TAG = makeTag(
+        TemporaryExposureKeyExportOuterClass.TemporaryExposureKeyExport.KEYS_FIELD_NUMBER,
+        WireFormat.WIRETYPE_LENGTH_DELIMITED);
+
+    private static final int REVISED_KEYS_TAG = makeTag(
+        TemporaryExposureKeyExportOuterClass.TemporaryExposureKeyExport.REVISED_KEYS_FIELD_NUMBER,
+        WireFormat.WIRETYPE_LENGTH_DELIMITED);
+
+    private static final int KEY_DATA_TAG = makeTag(
+        TemporaryExposureKeyExportOuterClass.TemporaryExposureKey.KEY_DATA_FIELD_NUMBER,
+        WireFormat.WIRETYPE_LENGTH_DELIMITED);
+
+    private static final int TRANSMISSION_RISK_LEVEL_TAG = makeTag(
+        TemporaryExposureKeyExportOuterClass.TemporaryExposureKey.TRANSMISSION_RISK_LEVEL_FIELD_NUMBER,
+        WireFormat.WIRETYPE_VARINT);
+
+    private static final int ROLLING_START_INTERVAL_NUMBER_TAG = makeTag(
+        TemporaryExposureKeyExportOuterClass.TemporaryExposureKey.ROLLING_START_INTERVAL_NUMBER_FIELD_NUMBER,
+        WireFormat.WIRETYPE_VARINT);
+
+    private static final int ROLLING_PERIOD_TAG = makeTag(
+        TemporaryExposureKeyExportOuterClass.TemporaryExposureKey.ROLLING_PERIOD_FIELD_NUMBER,
+        WireFormat.WIRETYPE_VARINT);
+
+    private static final int REPORT_TYPE_TAG = makeTag(
+        TemporaryExposureKeyExportOuterClass.TemporaryExposureKey.REPORT_TYPE_FIELD_NUMBER,
+        WireFormat.WIRETYPE_VARINT);
+
+    // Default value of rolling_period in the proto file.
+    private static final int DEFAULT_ROLLING_PERIOD = 144;
+
+    private static final int TAG_TYPE_BITS = 3;
+
+    private static final int WIRE_TYPE_MASK = (1 << TAG_TYPE_BITS) - 1;
+
+    private static final int VARINT_PAYLOAD_BITS = 7;
+
+    private static final int VARINT_PAYLOAD_MASK = 0x7f;
+
+    // Int32 fields may be sign-extended to 10 bytes.
+    private static final int MAX_VARINT_SHIFT = 10 * VARINT_PAYLOAD_BITS;
 
-    private static FileContent readFile(File file) {
-        FileContent fileContent = null;
+    private static final int VARINT_POSITION_SHIFT = 32;
+
+    private static final int FIXED32_SIZE = 4;
+
+    private static final int FIXED64_SIZE = 8;
+
+    private static final long VARINT_VALUE_MASK = 0xffffffffL;
+
+    /**
+     * Load export.bin of the key file for parseExport(). A STORED export is memory-mapped and read in place. A
+     * compressed one is not inflated here, it is streamed from the zip file when it is parsed or hashed, so the heap
+     * taken by an export does not grow with its size.
+     *
+     * @param keyFile key file
+     * @return export of the key file, null if the file is invalid
+     */
+    public static Export loadExport(File keyFile) {
         ZipFile zip;
         try {
-            zip = new ZipFile(file);
+            zip = new ZipFile(keyFile);
         } catch (IOException e) {
             ContactShieldLog.e(TAG, "ZIP file io exception");
             return null;
         }
 
+        Export export = null;
         ZipEntry signatureEntry = zip.getEntry(SIG_FILENAME);
         ZipEntry exportEntry = zip.getEntry(EXPORT_FILENAME);
-
         try {
             if (signatureEntry != null && exportEntry != null) {
-                byte[] sigData = inputStreamToByteArray(zip.getInputStream(signatureEntry));
-                byte[] bodyData = inputStreamToByteArray(zip.getInputStream(exportEntry));
-
-                if (bodyData.length > READ_LINE_LENGTH) {
-                    byte[] header = Arrays.copyOf(bodyData, READ_LINE_LENGTH);
-                    byte[] exportData = Arrays.copyOfRange(bodyData, READ_LINE_LENGTH, bodyData.length);
-
-                    String headerString = new String(header, "UTF-8");
-                    TEKSignatureListOuterClass.TEKSignatureList signature =
-                            TEKSignatureListOuterClass.TEKSignatureList.parseFrom(sigData);
-                    TemporaryExposureKeyExportOuterClass.TemporaryExposureKeyExport export =
-                            TemporaryExposureKeyExportOuterClass.TemporaryExposureKeyExport.parseFrom(exportData);
-                    fileContent = new FileContent(headerString, export, signature);
+                parseSignatureList(zip, signatureEntry);
+                ByteBuffer mapping = null;
+                if (exportEntry.getMethod() == ZipEntry.STORED) {
+                    mapping = ZipEntryMapper.mapStoredEntry(keyFile, EXPORT_FILENAME);
                 }
+                export = new Export(keyFile, mapping);
             }
         } catch (IOException e) {
             ContactShieldLog.e(TAG, "Get input stream exception");
+            export = null;
         }
 
         try {
@@ -114,36 +159,629 @@ public class KeyFileParser {
         } catch (IOException e) {
             ContactShieldLog.w(TAG, "Close zip file exception");
         }
-        return fileContent;
+        return export;
+    }
+
+    /**
+     * Parse the export loaded by loadExport() and pass the valid keys to consumer in chunks, in the order of the
+     * export. The valid revised keys are passed to revisedKeyConsumer once all the keys are passed.
+     * A mapped export is read in place: the key records are located by a cheap scan of the tags first, the records
+     * of a large export are then decoded in parallel, and a chunk is passed as soon as it is decoded, so the consumer
+     * works on it while the following chunks are still being decoded. A streamed export is decoded record by record
+     * from the zip stream, the memory used does not depend on its size.
+     *
+     * @param export export of the key file
+     * @param chunkSize max number of keys of a chunk
+     * @param consumer receiver of the chunks
+     * @param revisedKeyConsumer receiver of the revised keys, null if they are not used
+     * @return false if the export is invalid, the chunks before an invalid key record may have been passed already
+     */
+    public static boolean parseExport(Export export, int chunkSize, KeyChunkConsumer consumer,
+        KeyConsumer revisedKeyConsumer) {
+        KeyChunker chunker = new KeyChunker(chunkSize, consumer);
+        if (export.mMapping == null) {
+            return streamExport(export.mKeyFile, chunker, revisedKeyConsumer);
+        }
+        ByteBuffer mapping = export.mMapping.duplicate();
+        RecordIndex revisedIndex = new RecordIndex(1);
+        RecordIndex index = indexRecords(mapping, revisedIndex);
+        if (index == null) {
+            return false;
+        }
+        boolean isValid;
+        if (ThreadExec.getParallelism() > 1 && index.mSize >= PARALLEL_MIN_KEYS) {
+            isValid = decodeInParallel(mapping, index, chunker);
+        } else {
+            isValid = decode(mapping, index, chunker);
+        }
+        if (isValid) {
+            chunker.flush();
+        }
+        if (isValid && revisedKeyConsumer != null) {
+            // A few keys at most, revisions are published for the keys already published.
+            isValid = decode(mapping, revisedIndex, revisedKeyConsumer);
+        }
+        return isValid;
+    }
+
+    /**
+     * Hash export.bin of the key file, header included. A streamed export is read again from the zip file.
+     *
+     * @param export export loaded by loadExport()
+     * @param digest digest to update
+     * @return false if the export can not be read
+     */
+    public static boolean updateDigest(Export export, MessageDigest digest) {
+        if (export.mMapping != null) {
+            digest.update(export.mMapping.duplicate());
+            return true;
+        }
+        try (ZipFile zip = new ZipFile(export.mKeyFile)) {
+            ZipEntry exportEntry = zip.getEntry(EXPORT_FILENAME);
+            if (exportEntry == null) {
+                return false;
+            }
+            updateDigest(zip, exportEntry, digest, new byte[STREAM_BUFFER_SIZE]);
+            return true;
+        } catch (IOException e) {
+            ContactShieldLog.e(TAG, "Hash export exception");
+            return false;
+        }
+    }
+
+    /**
+     * Fingerprint of the content of the key file, the same file downloaded again has the same fingerprint.
+     *
+     * @param keyFile key file
+     * @return SHA-256 of export.sig and export.bin, null if the file is invalid
+     */
+    public static byte[] getFileFingerprint(File keyFile) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(FINGERPRINT_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            ContactShieldLog.e(TAG, "Get message digest exception");
+            return null;
+        }
+        try (ZipFile zip = new ZipFile(keyFile)) {
+            ZipEntry signatureEntry = zip.getEntry(SIG_FILENAME);
+            ZipEntry exportEntry = zip.getEntry(EXPORT_FILENAME);
+            if (signatureEntry == null || exportEntry == null) {
+                return null;
+            }
+            byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+            updateDigest(zip, signatureEntry, digest, buffer);
+            updateDigest(zip, exportEntry, digest, buffer);
+            return digest.digest();
+        } catch (IOException e) {
+            ContactShieldLog.e(TAG, "Get file fingerprint exception");
+            return null;
+        }
+    }
+
+    /**
+     * Load export.sig of the key file
+     *
+     * @param keyFile key file
+     * @return signature list, null if the file is invalid
+     */
+    public static TEKSignatureListOuterClass.TEKSignatureList loadSignatureList(File keyFile) {
+        try (ZipFile zip = new ZipFile(keyFile)) {
+            ZipEntry signatureEntry = zip.getEntry(SIG_FILENAME);
+            if (signatureEntry == null) {
+                return null;
+            }
+            return parseSignatureList(zip, signatureEntry);
+        } catch (IOException e) {
+            ContactShieldLog.e(TAG, "Load signature list exception");
+            return null;
+        }
+    }
+
+    /**
+     * Read the timestamps of the export without decoding any key. The fields are encoded in the order of their
+     * numbers, so the timestamps come before the keys and only the beginning of export.bin is inflated.
+     *
+     * @param keyFile key file
+     * @return header of the export, null if the file is invalid or the timestamps are not before the keys
+     */
+    public static ExportHeader readExportHeader(File keyFile) {
+        try (ZipFile zip = new ZipFile(keyFile)) {
+            ZipEntry exportEntry = zip.getEntry(EXPORT_FILENAME);
+            if (exportEntry == null) {
+                return null;
+            }
+            try (InputStream exportInput = zip.getInputStream(exportEntry)) {
+                return skipHeader(exportInput) ? readExportHeader(exportInput) : null;
+            }
+        } catch (IOException e) {
+            ContactShieldLog.e(TAG, "Read export header exception");
+            return null;
+        }
+    }
+
+    /**
+     * Estimate the number of keys in the key file from the size of the export, without reading the keys.
+     *
+     * @param keyFile key file
+     * @return estimated number of keys, 0 if the file is invalid
+     */
+    public static long estimateKeyNum(File keyFile) {
+        ZipFile zip;
+        try {
+            zip = new ZipFile(keyFile);
+        } catch (IOException e) {
+            ContactShieldLog.e(TAG, "ZIP file io exception");
+            return 0;
+        }
+        long exportSize = 0;
+        ZipEntry exportEntry = zip.getEntry(EXPORT_FILENAME);
+        if (exportEntry != null) {
+            // The uncompressed size is in the central directory, fall back to the file size if it is unknown.
+            // Keys are random bytes and hardly compressed.
+            exportSize = exportEntry.getSize() >= 0 ? exportEntry.getSize() : keyFile.length();
+        }
+        try {
+            zip.close();
+        } catch (IOException e) {
+            ContactShieldLog.w(TAG, "Close zip file exception");
+        }
+        return Math.max(0, exportSize - READ_LINE_LENGTH - EXPORT_FIELDS_SIZE) / ENCODED_KEY_SIZE;
+    }
+
+    private static TEKSignatureListOuterClass.TEKSignatureList parseSignatureList(ZipFile zip,
+        ZipEntry signatureEntry) throws IOException {
+        // The signatures are verified by KeyFileVerifier, but a file whose signature list can not be parsed is
+        // rejected anyway.
+        try (InputStream sigInput = zip.getInputStream(signatureEntry)) {
+            return TEKSignatureListOuterClass.TEKSignatureList.parseFrom(sigInput);
+        }
+    }
+
+    private static void updateDigest(ZipFile zip, ZipEntry entry, MessageDigest digest, byte[] buffer)
+        throws IOException {
+        try (InputStream input = zip.getInputStream(entry)) {
+            int n;
+            while ((n = input.read(buffer)) != STREAM_EOF) {
+                digest.update(buffer, 0, n);
+            }
+        }
+    }
+
+    private static boolean streamExport(File keyFile, KeyChunker chunker, KeyConsumer revisedKeyConsumer) {
+        List<PeriodicKey> revisedKeys = new ArrayList<>();
+        try (ZipFile zip = new ZipFile(keyFile)) {
+            ZipEntry exportEntry = zip.getEntry(EXPORT_FILENAME);
+            if (exportEntry == null) {
+                return false;
+            }
+            try (InputStream exportInput = zip.getInputStream(exportEntry)) {
+                if (!skipHeader(exportInput) || !decodeStream(exportInput, chunker, revisedKeys)) {
+                    return false;
+                }
+            }
+        } catch (IOException e) {
+            ContactShieldLog.e(TAG, "Decode key records exception: " + e.getMessage());
+            return false;
+        }
+        chunker.flush();
+        if (revisedKeyConsumer != null) {
+            for (PeriodicKey revisedKey : revisedKeys) {
+                revisedKeyConsumer.accept(revisedKey);
+            }
+        }
+        return true;
+    }
+
+    private static boolean decodeStream(InputStream input, KeyConsumer consumer, List<PeriodicKey> revisedKeys)
+        throws IOException {
+        CodedInputStream codedInput = CodedInputStream.newInstance(input);
+        boolean isEmpty = true;
+        while (true) {
+            int tag = codedInput.readTag();
+            if (tag == 0) {
+                // The export must contain something after the header.
+                return !isEmpty;
+            }
+            isEmpty = false;
+            if (tag != KEYS_TAG && tag != REVISED_KEYS_TAG) {
+                // Timestamps, region and signature infos are not used.
+                codedInput.skipField(tag);
+                continue;
+            }
+            int oldLimit = codedInput.pushLimit(codedInput.readRawVarint32());
+            PeriodicKey key = parseKey(codedInput);
+            if (codedInput.getBytesUntilLimit() > 0) {
+                // The stream ended within the record, as the length checked by indexRecords() for a mapped export.
+                ContactShieldLog.e(TAG, "Truncated key record");
+                return false;
+            }
+            codedInput.popLimit(oldLimit);
+            if (key == null) {
+                continue;
+            }
+            if (tag == KEYS_TAG) {
+                consumer.accept(key);
+            } else {
+                // A few keys at most, they are passed once all the keys are passed.
+                revisedKeys.add(key);
+            }
+        }
     }
 
-    private static boolean checkFileKeyValid(TemporaryExposureKeyExportOuterClass.TemporaryExposureKey key) {
-        return ParamsRangeChecker.checkByteArrayValid(key.getKeyData().toByteArray()) &&
-                !ParamsRangeChecker.checkIsNegative(key.getRollingStartIntervalNumber()) &&
-                !ParamsRangeChecker.checkIsNegative(key.getRollingPeriod()) &&
-                ParamsRangeChecker.checkIsRiskLevelValid(key.getTransmissionRiskLevel()) &&
-                ParamsRangeChecker.checkArgumentRange(key.getReportType().getNumber(), 0 ,
+    private static boolean decode(ByteBuffer export, RecordIndex index, KeyConsumer consumer) {
+        try {
+            for (int from = 0; from < index.mSize; from += DECODE_CHUNK_KEYS) {
+                for (PeriodicKey key : decodeRecords(export, index, from,
+                    Math.min(from + DECODE_CHUNK_KEYS, index.mSize))) {
+                    consumer.accept(key);
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            ContactShieldLog.e(TAG, "Decode key records exception: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static boolean decodeInParallel(ByteBuffer export, RecordIndex index, KeyConsumer consumer) {
+        int taskNum = (index.mSize + DECODE_CHUNK_KEYS - 1) / DECODE_CHUNK_KEYS;
+        int maxPending = ThreadExec.getParallelism() * PENDING_CHUNKS_PER_WORKER;
+        ArrayDeque<Future<List<PeriodicKey>>> pending = new ArrayDeque<>(maxPending);
+        int next = 0;
+        try {
+            for (; next < taskNum && pending.size() < maxPending; next++) {
+                pending.add(submitDecode(export, index, next));
+            }
+            while (!pending.isEmpty()) {
+                List<PeriodicKey> keys = pending.poll().get();
+                if (next < taskNum) {
+                    pending.add(submitDecode(export, index, next++));
+                }
+                for (PeriodicKey key : keys) {
+                    consumer.accept(key);
+                }
+            }
+            return true;
+        } catch (ExecutionException e) {
+            ContactShieldLog.e(TAG, "Decode key records exception: " + e.getMessage());
+        } catch (InterruptedException e) {
+            ContactShieldLog.e(TAG, "Decode key records interrupted");
+            Thread.currentThread().interrupt();
+        } finally {
+            for (Future<List<PeriodicKey>> future : pending) {
+                future.cancel(false);
+            }
+        }
+        return false;
+    }
+
+    private static Future<List<PeriodicKey>> submitDecode(ByteBuffer export, RecordIndex index, int task) {
+        int from = task * DECODE_CHUNK_KEYS;
+        int to = Math.min(from + DECODE_CHUNK_KEYS, index.mSize);
+        return ThreadExec.submitParallelTask(TAG, () -> decodeRecords(export, index, from, to));
+    }
+
+    private static List<PeriodicKey> decodeRecords(ByteBuffer export, RecordIndex index, int from, int to)
+        throws IOException {
+        int start = index.mOffsets[from];
+        ByteBuffer records = export.duplicate();
+        records.limit(index.mOffsets[to - 1] + index.mLengths[to - 1]);
+        records.position(start);
+        // Read in place from the mapping.
+        CodedInputStream codedInput = CodedInputStream.newInstance(records);
+        List<PeriodicKey> keys = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            // Other fields may lie between the key records, skip to the next record.
+            codedInput.skipRawBytes(index.mOffsets[i] - start - codedInput.getTotalBytesRead());
+            int oldLimit = codedInput.pushLimit(index.mLengths[i]);
+            PeriodicKey key = parseKey(codedInput);
+            codedInput.popLimit(oldLimit);
+            if (key != null) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Locate the key records of the export without decoding them. Only the tags and lengths are read.
+     *
+     * @param revisedIndex index to add the revised key records to
+     * @return offsets and lengths of the key records, null if the export is invalid
+     */
+    private static RecordIndex indexRecords(ByteBuffer export, RecordIndex revisedIndex) {
+        int limit = export.limit();
+        int position = export.position() + READ_LINE_LENGTH;
+        if (position >= limit) {
+            return null;
+        }
+        RecordIndex index = new RecordIndex((limit - position) / ENCODED_KEY_SIZE + 1);
+        while (position < limit) {
+            long tag = readVarint(export, position, limit);
+            position = (int) (tag >>> VARINT_POSITION_SHIFT);
+            long length;
+            switch ((int) tag & WIRE_TYPE_MASK) {
+                case WireFormat.WIRETYPE_VARINT:
+                    length = (readVarint(export, position, limit) >>> VARINT_POSITION_SHIFT) - position;
+                    break;
+                case WireFormat.WIRETYPE_FIXED64:
+                    length = FIXED64_SIZE;
+                    break;
+                case WireFormat.WIRETYPE_FIXED32:
+                    length = FIXED32_SIZE;
+                    break;
+                case WireFormat.WIRETYPE_LENGTH_DELIMITED:
+                    long value = readVarint(export, position, limit);
+                    position = (int) (value >>> VARINT_POSITION_SHIFT);
+                    length = (int) (value & VARINT_VALUE_MASK);
+                    break;
+                default:
+                    // Groups are not used by the export.
+                    length = -1;
+                    break;
+            }
+            if (position < 0 || length < 0 || length > limit - position) {
+                ContactShieldLog.e(TAG, "Invalid export at " + position);
+                return null;
+            }
+            if ((int) tag == KEYS_TAG) {
+                index.add(position, (int) length);
+            } else if ((int) tag == REVISED_KEYS_TAG) {
+                revisedIndex.add(position, (int) length);
+            }
+            position += length;
+        }
+        return index;
+    }
+
+    /**
+     * Read a varint of up to 32 bits at position
+     *
+     * @return position after the varint in the high 32 bits, value in the low 32 bits, -1 if the varint is invalid
+     */
+    private static long readVarint(ByteBuffer buffer, int position, int limit) {
+        int value = 0;
+        for (int shift = 0, i = position; i < limit && shift < MAX_VARINT_SHIFT; shift += VARINT_PAYLOAD_BITS, i++) {
+            byte b = buffer.get(i);
+            value |= (b & VARINT_PAYLOAD_MASK) << shift;
+            if (b >= 0) {
+                return ((long) (i + 1) << VARINT_POSITION_SHIFT) | (value & VARINT_VALUE_MASK);
+            }
+        }
+        return -1L;
+    }
+
+    private static boolean skipHeader(InputStream input) throws IOException {
+        // The header is a fixed length string, such as "EK Export v1    ".
+        byte[] header = new byte[READ_LINE_LENGTH];
+        int length = 0;
+        while (length < header.length) {
+            int n = input.read(header, length, header.length - length);
+            if (n == STREAM_EOF) {
+                return false;
+            }
+            length += n;
+        }
+        return true;
+    }
+
+    private static ExportHeader readExportHeader(InputStream input) throws IOException {
+        CodedInputStream codedInput = CodedInputStream.newInstance(input);
+        Long startTimestamp = null;
+        Long endTimestamp = null;
+        while (startTimestamp == null || endTimestamp == null) {
+            int tag = codedInput.readTag();
+            if (tag == 0 || tag == KEYS_TAG) {
+                return null;
+            }
+            if (tag == START_TIMESTAMP_TAG) {
+                startTimestamp = codedInput.readFixed64();
+            } else if (tag == END_TIMESTAMP_TAG) {
+                endTimestamp = codedInput.readFixed64();
+            } else {
+                codedInput.skipField(tag);
+            }
+        }
+        // The timestamps are unsigned, a negative one is out of any sensible range.
+        if (startTimestamp < 0 || startTimestamp > endTimestamp) {
+            ContactShieldLog.w(TAG, "Invalid export timestamps " + startTimestamp + " ~ " + endTimestamp);
+            return null;
+        }
+        return new ExportHeader(startTimestamp, endTimestamp);
+    }
+
+    private static PeriodicKey parseKey(CodedInputStream codedInput) throws IOException {
+        byte[] keyData = null;
+        int riskLevel = 0;
+        int rollingStartIntervalNumber = 0;
+        int rollingPeriod = DEFAULT_ROLLING_PERIOD;
+        int reportType = 0;
+        while (true) {
+            int tag = codedInput.readTag();
+            if (tag == 0) {
+                break;
+            }
+            if (tag == KEY_DATA_TAG) {
+                keyData = codedInput.readByteArray();
+            } else if (tag == TRANSMISSION_RISK_LEVEL_TAG) {
+                riskLevel = codedInput.readInt32();
+            } else if (tag == ROLLING_START_INTERVAL_NUMBER_TAG) {
+                rollingStartIntervalNumber = codedInput.readInt32();
+            } else if (tag == ROLLING_PERIOD_TAG) {
+                rollingPeriod = codedInput.readInt32();
+            } else if (tag == REPORT_TYPE_TAG) {
+                int value = codedInput.readEnum();
+                // Unknown report types are read as UNKNOWN, like the generated parser does.
+                reportType = TemporaryExposureKeyExportOuterClass.TemporaryExposureKey.ReportType
+                    .forNumber(value) == null ? 0 : value;
+            } else {
+                codedInput.skipField(tag);
+            }
+        }
+        // Discard key if invalid parameter is found.
+        if (!checkFileKeyValid(keyData, riskLevel, rollingStartIntervalNumber, rollingPeriod, reportType)) {
+            return null;
+        }
+        return new PeriodicKey.Builder()
+                .setContent(keyData)
+                .setPeriodicKeyValidTime(rollingStartIntervalNumber)
+                .setPeriodicKeyLifeTime(rollingPeriod)
+                .setInitialRiskLevel(riskLevel)
+                .setReportType(reportType)
+                .build();
+    }
+
+    private static boolean checkFileKeyValid(byte[] keyData, int riskLevel, int rollingStartIntervalNumber,
+        int rollingPeriod, int reportType) {
+        return ParamsRangeChecker.checkByteArrayValid(keyData) &&
+                !ParamsRangeChecker.checkIsNegative(rollingStartIntervalNumber) &&
+                !ParamsRangeChecker.checkIsNegative(rollingPeriod) &&
+                ParamsRangeChecker.checkIsRiskLevelValid(riskLevel) &&
+                ParamsRangeChecker.checkArgumentRange(reportType, 0 ,
                         GlobalSettings.REPORT_TYPE_MAX, "reportType is %s, must >=%s and <=%s");
     }
 
-    private static class FileContent {
-        private final String header;
-        private final TemporaryExposureKeyExportOuterClass.TemporaryExposureKeyExport export;
-        private final TEKSignatureListOuterClass.TEKSignatureList signature;
+    private static int makeTag(int fieldNumber, int wireType) {
+        return (fieldNumber << TAG_TYPE_BITS) | wireType;
+    }
+
+    /**
+     * Receive the keys parsed from a key file in chunks
+     */
+    public interface KeyChunkConsumer {
+        /**
+         * Accept a chunk of valid keys
+         *
+         * @param keys PeriodicKey list, never empty
+         */
+        void accept(List<PeriodicKey> keys);
+    }
+
+    /**
+     * Receive the keys parsed from a key file
+     */
+    public interface KeyConsumer {
+        /**
+         * Accept a valid key
+         *
+         * @param key PeriodicKey
+         */
+        void accept(PeriodicKey key);
+    }
+
+    /**
+     * Fields of the export read before the keys
+     */
+    public static class ExportHeader {
+        private final long mStartTimestamp;
+
+        private final long mEndTimestamp;
+
+        ExportHeader(long startTimestamp, long endTimestamp) {
+            mStartTimestamp = startTimestamp;
+            mEndTimestamp = endTimestamp;
+        }
+
+        /**
+         * Getter
+         *
+         * @return seconds since Epoch, the keys were published since then
+         */
+        public long getStartTimestamp() {
+            return mStartTimestamp;
+        }
+
+        /**
+         * Getter
+         *
+         * @return seconds since Epoch, the keys were published before then
+         */
+        public long getEndTimestamp() {
+            return mEndTimestamp;
+        }
+    }
+
+    /**
+     * Export of a key file loaded by loadExport()
+     */
+    public static class Export {
+        private final File mKeyFile;
+
+        // Mapping of a STORED export, null if the export is streamed from the zip file.
+        private final ByteBuffer mMapping;
+
+        Export(File keyFile, ByteBuffer mapping) {
+            mKeyFile = keyFile;
+            mMapping = mapping;
+        }
+
+        /**
+         * Getter
+         *
+         * @return key file
+         */
+        public File getKeyFile() {
+            return mKeyFile;
+        }
+    }
+
+    /**
+     * Offsets and lengths of the key records in the export
+     */
+    private static class RecordIndex {
+        private int[] mOffsets;
+
+        private int[] mLengths;
+
+        private int mSize;
+
+        RecordIndex(int capacity) {
+            mOffsets = new int[capacity];
+            mLengths = new int[capacity];
+        }
+
+        private void add(int offset, int length) {
+            if (mSize == mOffsets.length) {
+                mOffsets = Arrays.copyOf(mOffsets, mSize * 2);
+                mLengths = Arrays.copyOf(mLengths, mSize * 2);
+            }
+            mOffsets[mSize] = offset;
+            mLengths[mSize] = length;
+            mSize++;
+        }
+    }
+
+    /**
+     * Group the keys into chunks of chunkSize
+     */
+    private static class KeyChunker implements KeyConsumer {
+        private final int mChunkSize;
 
-        FileContent(String header, TemporaryExposureKeyExportOuterClass.TemporaryExposureKeyExport export,
-                    TEKSignatureListOuterClass.TEKSignatureList signature) {
-            this.export = export;
-            this.header = header;
-            this.signature = signature;
+        private final KeyChunkConsumer mConsumer;
+
+        private List<PeriodicKey> mChunk = new ArrayList<>();
+
+        KeyChunker(int chunkSize, KeyChunkConsumer consumer) {
+            mChunkSize = Math.max(1, chunkSize);
+            mConsumer = consumer;
         }
 
-        @NonNull
         @Override
-        public String toString() {
-            return "FileContent[header=" + header +
-                    ", TemporaryExposureKeyExport=" + export.toString() +
-                    ", signature=" + signature.toString() + "]";
+        public void accept(PeriodicKey key) {
+            mChunk.add(key);
+            if (mChunk.size() >= mChunkSize) {
+                flush();
+            }
+        }
+
+        private void flush() {
+            if (mChunk.isEmpty()) {
+                return;
+            }
+            List<PeriodicKey> chunk = mChunk;
+            mChunk = new ArrayList<>();
+            mConsumer.accept(chunk);
         }
     }
 }
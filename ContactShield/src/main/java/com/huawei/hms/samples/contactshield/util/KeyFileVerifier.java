@@ -0,0 +1,195 @@
+/*
+ * Copyright 2020. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huawei.hms.samples.contactshield.util;
+
+import com.huawei.hms.samples.TEKSignatureListOuterClass;
+import com.huawei.hms.samples.TemporaryExposureKeyExportOuterClass;
+import com.huawei.hms.samples.contactshield.util.threadpool.ThreadExec;
+
+import java.io.File;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Verify the signatures of the key files with the public keys of the key servers. A file is trusted if any of its
+ * signatures is verified by one of the keys. The export is hashed once by the verify threads, from its mapping or
+ * streamed from the zip file, while the keys are decoded. All the signatures are checked against that hash.
+ * Without any key configured, the signatures are not verified and all the files are trusted.
+ *
+ * @since 2020-10-27
+ */
+public class KeyFileVerifier {
+    private static final String TAG = "KeyFileVerifier";
+
+    // ECDSA P-256 with SHA-256, the only algorithm of the key file format.
+    private static final String ECDSA_SHA256_OID = "1.2.840.10045.4.3.2";
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    // SHA256withECDSA over the hash of the export.
+    private static final String SIGNATURE_ALGORITHM = "NONEwithECDSA";
+
+    private static final String KEY_ID_SEPARATOR = "/";
+
+    // Key id of the files trusted without verification.
+    private static final String NOT_VERIFIED = "";
+
+    private final Map<String, PublicKey> mKeys;
+
+    /**
+     * Constructor
+     *
+     * @param keys public keys by getKeyId(), empty if the signatures are not verified
+     */
+    public KeyFileVerifier(Map<String, PublicKey> keys) {
+        mKeys = keys;
+    }
+
+    /**
+     * Get the id of a public key of the key servers
+     *
+     * @param verificationKeyId verification_key_id of the signature info, such as the MCC of the region
+     * @param verificationKeyVersion verification_key_version of the signature info, such as "v1"
+     * @return key id
+     */
+    public static String getKeyId(String verificationKeyId, String verificationKeyVersion) {
+        return verificationKeyId + KEY_ID_SEPARATOR + verificationKeyVersion;
+    }
+
+    /**
+     * Check whether a file verified before is still trusted, its key may have been rotated out since then.
+     *
+     * @param verifiedKeyId id of the key which verified the file, empty if the file was not verified
+     * @return true if the file does not need to be verified again
+     */
+    public boolean isTrusted(String verifiedKeyId) {
+        return mKeys.isEmpty() || mKeys.containsKey(verifiedKeyId);
+    }
+
+    /**
+     * Verify the key file on the verify threads
+     *
+     * @param export export of the key file loaded by KeyFileParser.loadExport()
+     * @return verification of the file
+     */
+    public Verification submit(KeyFileParser.Export export) {
+        if (mKeys.isEmpty()) {
+            return new Verification(null);
+        }
+        return new Verification(ThreadExec.submitVerifyTask(TAG, () -> verify(export)));
+    }
+
+    /**
+     * Verify the key file
+     *
+     * @param export export of the key file loaded by KeyFileParser.loadExport()
+     * @return id of the key which verified the file, null if no signature is verified
+     */
+    public String verify(KeyFileParser.Export export) {
+        File keyFile = export.getKeyFile();
+        TEKSignatureListOuterClass.TEKSignatureList signatureList = KeyFileParser.loadSignatureList(keyFile);
+        if (signatureList == null) {
+            return null;
+        }
+        byte[] hash = null;
+        for (TEKSignatureListOuterClass.TEKSignature signature : signatureList.getSignaturesList()) {
+            TemporaryExposureKeyExportOuterClass.SignatureInfo info = signature.getSignatureInfo();
+            String keyId = getKeyId(info.getVerificationKeyId(), info.getVerificationKeyVersion());
+            PublicKey key = mKeys.get(keyId);
+            if (key == null || !ECDSA_SHA256_OID.equals(info.getSignatureAlgorithm())) {
+                continue;
+            }
+            try {
+                if (hash == null) {
+                    hash = hashExport(export);
+                    if (hash == null) {
+                        return null;
+                    }
+                }
+                Signature verifier = Signature.getInstance(SIGNATURE_ALGORITHM);
+                verifier.initVerify(key);
+                verifier.update(hash);
+                if (verifier.verify(signature.getSignature().toByteArray())) {
+                    return keyId;
+                }
+            } catch (GeneralSecurityException e) {
+                ContactShieldLog.w(TAG, "Verify signature of " + keyId + " exception: " + e.getMessage());
+            }
+        }
+        ContactShieldLog.w(TAG, "No signature of " + keyFile.getName() + " is verified");
+        return null;
+    }
+
+    private static byte[] hashExport(KeyFileParser.Export export) throws GeneralSecurityException {
+        MessageDigest digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        return KeyFileParser.updateDigest(export, digest) ? digest.digest() : null;
+    }
+
+    /**
+     * Result of the verification of a key file, waited for by the thread parsing the file
+     */
+    public static class Verification {
+        private final Future<String> mFuture;
+
+        private boolean mIsDone;
+
+        private String mKeyId;
+
+        Verification(Future<String> future) {
+            mFuture = future;
+        }
+
+        /**
+         * Wait for the verification
+         *
+         * @return true if the file is trusted
+         */
+        public synchronized boolean await() {
+            if (mIsDone) {
+                return mKeyId != null;
+            }
+            mIsDone = true;
+            if (mFuture == null) {
+                mKeyId = NOT_VERIFIED;
+                return true;
+            }
+            try {
+                mKeyId = mFuture.get();
+            } catch (ExecutionException e) {
+                ContactShieldLog.e(TAG, "Verify key file exception: " + e.getMessage());
+            } catch (InterruptedException e) {
+                ContactShieldLog.e(TAG, "Verify key file interrupted");
+                Thread.currentThread().interrupt();
+            }
+            return mKeyId != null;
+        }
+
+        /**
+         * Getter
+         *
+         * @return id of the key which verified the file, empty if not verified, null if the file is not trusted
+         */
+        public synchronized String getKeyId() {
+            return mKeyId;
+        }
+    }
+}
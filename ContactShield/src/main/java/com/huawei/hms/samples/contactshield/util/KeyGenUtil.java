@@ -61,7 +61,17 @@ public class KeyGenUtil {
      * @return interval number
      */
     public static long getIntervalNumber() {
-        return getSecondsSinceEpoch() / SECS_TO_10MINS;
+        return getIntervalNumber(getSecondsSinceEpoch());
+    }
+
+    /**
+     * Calculate interval number of the time.
+     *
+     * @param secondsSinceEpoch seconds since Epoch
+     * @return interval number
+     */
+    public static long getIntervalNumber(long secondsSinceEpoch) {
+        return secondsSinceEpoch / SECS_TO_10MINS;
     }
 
     /**
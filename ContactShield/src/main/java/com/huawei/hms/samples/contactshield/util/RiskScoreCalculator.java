@@ -20,6 +20,9 @@ import com.huawei.hms.samples.contactshield.contact.DiagnosisConfiguration;
 
 /**
  * RiskScoreCalculator
+ * The risk values of the configuration are compiled once into a table of the total risk value of every
+ * combination of the attenuation, days, duration and transmission risk buckets, and the inputs are mapped to
+ * their buckets by lookup tables, so scoring a key takes a few array loads without any allocation.
  *
  * @since 2020-05-08
  */
@@ -28,14 +31,43 @@ public class RiskScoreCalculator {
 
     private static final int MAX_RISK_VALUES_INDEX = 7;
 
+    private static final int RISK_VALUES_NUM = MAX_RISK_VALUES_INDEX + 1;
+
     private static final int MINUTES_PER_DURATION = 5;
 
     private static final int DAYS_PER_RANGE = 2;
 
-    private DiagnosisConfiguration mDiagnosisConfiguration;
+    // Attenuations above the table are all in bucket 0.
+    private static final byte[] ATTENUATION_INDEXES = createAttenuationIndexes();
+
+    // Durations above the table are all in the last bucket.
+    private static final byte[] DURATION_INDEXES = createDurationIndexes();
+
+    // Days above the table are all in bucket 0.
+    private static final byte[] DAYS_EXPOSURE_INDEXES = createDaysExposureIndexes();
+
+    // Total risk value by attenuation, days, duration and transmission risk buckets, in this order.
+    private final int[] mTotalRiskValues = new int[RISK_VALUES_NUM * RISK_VALUES_NUM * RISK_VALUES_NUM
+        * RISK_VALUES_NUM];
 
     public RiskScoreCalculator(DiagnosisConfiguration diagnosisConfiguration) {
-        mDiagnosisConfiguration = diagnosisConfiguration;
+        // Each getter copies its array, they are read once for the whole table.
+        int[] attenuationRiskValues = diagnosisConfiguration.getAttenuationRiskValues();
+        int[] daysRiskValues = diagnosisConfiguration.getDaysAfterContactedRiskValues();
+        int[] durationRiskValues = diagnosisConfiguration.getDurationRiskValues();
+        int[] transmissionRiskValues = diagnosisConfiguration.getInitialRiskLevelRiskValues();
+        int index = 0;
+        for (int attenuation = 0; attenuation < RISK_VALUES_NUM; attenuation++) {
+            for (int days = 0; days < RISK_VALUES_NUM; days++) {
+                for (int duration = 0; duration < RISK_VALUES_NUM; duration++) {
+                    for (int transmission = 0; transmission < RISK_VALUES_NUM; transmission++) {
+                        int totalRiskValue = attenuationRiskValues[attenuation] * daysRiskValues[days]
+                            * durationRiskValues[duration] * transmissionRiskValues[transmission];
+                        mTotalRiskValues[index++] = Math.min(Math.max(totalRiskValue, 0), MAX_TOTAL_RISK_VALUE);
+                    }
+                }
+            }
+        }
     }
 
     /**
@@ -44,15 +76,27 @@ public class RiskScoreCalculator {
      * @return risk level
      */
     public int calcTotalRiskValue(int attenuation, int daysSinceLastExposure, int duration, int transmissionRisk) {
-        int transRiskScore = ParamsRangeChecker.checkRiskLevelValid(transmissionRisk)
-                <= 1 ? 0 : transmissionRisk - 1;
-        int totalRiskValue = mDiagnosisConfiguration.getAttenuationRiskValues()[getAttenuationIndex(attenuation)]
-                * mDiagnosisConfiguration.getDaysAfterContactedRiskValues()[getDaysExposureIndex(daysSinceLastExposure)]
-                * mDiagnosisConfiguration.getDurationRiskValues()[getDurationIndex(duration)]
-                * mDiagnosisConfiguration.getInitialRiskLevelRiskValues()[transRiskScore];
-
-        totalRiskValue = Math.min(Math.max(totalRiskValue, 0), MAX_TOTAL_RISK_VALUE);
-        return totalRiskValue;
+        int transRiskLevel = ParamsRangeChecker.checkRiskLevelValid(transmissionRisk);
+        int transRiskScore = transRiskLevel <= 1 ? 0 : transRiskLevel - 1;
+        int index = getAttenuationIndex(attenuation);
+        index = index * RISK_VALUES_NUM + getDaysExposureIndex(daysSinceLastExposure);
+        index = index * RISK_VALUES_NUM + getDurationIndex(duration);
+        return mTotalRiskValues[index * RISK_VALUES_NUM + transRiskScore];
+    }
+
+    private static int getAttenuationIndex(int attenuationScore) {
+        int val = ParamsRangeChecker.checkNonNegative(attenuationScore);
+        return val < ATTENUATION_INDEXES.length ? ATTENUATION_INDEXES[val] : 0;
+    }
+
+    private static int getDurationIndex(int durationScore) {
+        int val = ParamsRangeChecker.checkNonNegative(durationScore);
+        return val < DURATION_INDEXES.length ? DURATION_INDEXES[val] : MAX_RISK_VALUES_INDEX;
+    }
+
+    private static int getDaysExposureIndex(int exporeDays) {
+        int val = ParamsRangeChecker.checkNonNegative(exporeDays);
+        return val < DAYS_EXPOSURE_INDEXES.length ? DAYS_EXPOSURE_INDEXES[val] : 0;
     }
 
     /**
@@ -66,25 +110,17 @@ public class RiskScoreCalculator {
      *   6 when 15 >= Attenuation > 10
      *   7 when 10 >= Attenuation
      */
-    private static int getAttenuationIndex(int attenuationScore) {
-        int val = ParamsRangeChecker.checkNonNegative(attenuationScore);
-        if (val > 73) {
-            return 0;
-        } else if (val > 63) {
-            return 1;
-        } else if (val > 51) {
-            return 2;
-        } else if (val > 33) {
-            return 3;
-        } else if (val > 27) {
-            return 4;
-        } else if (val > 15) {
-            return 5;
-        } else if (val > 10) {
-            return 6;
-        } else {
-            return 7;
+    private static byte[] createAttenuationIndexes() {
+        int[] lowerBounds = {73, 63, 51, 33, 27, 15, 10};
+        byte[] indexes = new byte[ParamsRangeChecker.ATTEN_REAL_VALUE_MAX + 1];
+        for (int val = 0; val < indexes.length; val++) {
+            int index = 0;
+            while (index < lowerBounds.length && val <= lowerBounds[index]) {
+                index++;
+            }
+            indexes[val] = (byte) index;
         }
+        return indexes;
     }
 
     /**
@@ -98,14 +134,13 @@ public class RiskScoreCalculator {
      *   6 when Duration <= 30
      *   7 when Duration > 30
      */
-    private static int getDurationIndex(int durationScore) {
-        int val = ParamsRangeChecker.checkNonNegative(durationScore);
-        int durationIndex = val / MINUTES_PER_DURATION;
-        if (val % MINUTES_PER_DURATION == 0) {
-            return Math.min(durationIndex, MAX_RISK_VALUES_INDEX);
-        } else {
-            return Math.min(durationIndex + 1, MAX_RISK_VALUES_INDEX);
+    private static byte[] createDurationIndexes() {
+        byte[] indexes = new byte[MAX_RISK_VALUES_INDEX * MINUTES_PER_DURATION + 1];
+        for (int val = 0; val < indexes.length; val++) {
+            int durationIndex = (val + MINUTES_PER_DURATION - 1) / MINUTES_PER_DURATION;
+            indexes[val] = (byte) Math.min(durationIndex, MAX_RISK_VALUES_INDEX);
         }
+        return indexes;
     }
 
     /**
@@ -119,15 +154,11 @@ public class RiskScoreCalculator {
      *   6 when Days >= 2
      *   7 when Days >= 0
      */
-    private static int getDaysExposureIndex(int exporeDays) {
-        int val = ParamsRangeChecker.checkNonNegative(exporeDays);
-        int result = MAX_RISK_VALUES_INDEX - val / DAYS_PER_RANGE;
-        if (result < 0) {
-            return 0;
-        }
-        if (result > MAX_RISK_VALUES_INDEX) {
-            return MAX_RISK_VALUES_INDEX;
+    private static byte[] createDaysExposureIndexes() {
+        byte[] indexes = new byte[MAX_RISK_VALUES_INDEX * DAYS_PER_RANGE];
+        for (int val = 0; val < indexes.length; val++) {
+            indexes[val] = (byte) (MAX_RISK_VALUES_INDEX - val / DAYS_PER_RANGE);
         }
-        return result;
+        return indexes;
     }
 }
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2020. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huawei.hms.samples.contactshield.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Memory-map a STORED entry of a zip file, so that it is read in place instead of being copied through the
+ * streams of ZipFile. ZipFile does not tell where the data of an entry starts, so the central directory and the
+ * local header are read here. Zip64 and encrypted entries are not supported, then null is returned and the
+ * caller reads the entry with ZipFile.
+ *
+ * @since 2020-10-22
+ */
+public final class ZipEntryMapper {
+    private static final String TAG = "ZipEntryMapper";
+
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+
+    private static final int CENTRAL_DIRECTORY_SIGNATURE = 0x02014b50;
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+
+    private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+
+    private static final int CENTRAL_DIRECTORY_HEADER_SIZE = 46;
+
+    private static final int LOCAL_HEADER_SIZE = 30;
+
+    // Field offsets in the end of central directory record.
+    private static final int EOCD_DIRECTORY_SIZE = 12;
+
+    private static final int EOCD_DIRECTORY_OFFSET = 16;
+
+    // Field offsets in the central directory header.
+    private static final int CDH_FLAGS = 8;
+
+    private static final int CDH_METHOD = 10;
+
+    private static final int CDH_COMPRESSED_SIZE = 20;
+
+    private static final int CDH_SIZE = 24;
+
+    private static final int CDH_NAME_LENGTH = 28;
+
+    private static final int CDH_EXTRA_LENGTH = 30;
+
+    private static final int CDH_COMMENT_LENGTH = 32;
+
+    private static final int CDH_LOCAL_HEADER_OFFSET = 42;
+
+    // Field offsets in the local header.
+    private static final int LH_NAME_LENGTH = 26;
+
+    private static final int LH_EXTRA_LENGTH = 28;
+
+    private static final int METHOD_STORED = 0;
+
+    private static final int FLAG_ENCRYPTED = 1;
+
+    private static final long ZIP64_MAGIC = 0xffffffffL;
+
+    private static final int SHORT_MASK = 0xffff;
+
+    private static final long INT_MASK = 0xffffffffL;
+
+    private ZipEntryMapper() {
+    }
+
+    /**
+     * Map the data of a STORED entry
+     *
+     * @param file zip file
+     * @param name name of the entry
+     * @return read-only buffer of the data, null if the entry is not found, not STORED or not supported
+     * @throws IOException if the file can not be read
+     */
+    public static ByteBuffer mapStoredEntry(File file, String name) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+            FileChannel channel = randomAccessFile.getChannel()) {
+            ByteBuffer centralDirectory = readCentralDirectory(channel);
+            if (centralDirectory == null) {
+                return null;
+            }
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            while (centralDirectory.remaining() >= CENTRAL_DIRECTORY_HEADER_SIZE) {
+                int start = centralDirectory.position();
+                if (centralDirectory.getInt(start) != CENTRAL_DIRECTORY_SIGNATURE) {
+                    return null;
+                }
+                int nameLength = centralDirectory.getShort(start + CDH_NAME_LENGTH) & SHORT_MASK;
+                int extraLength = centralDirectory.getShort(start + CDH_EXTRA_LENGTH) & SHORT_MASK;
+                int commentLength = centralDirectory.getShort(start + CDH_COMMENT_LENGTH) & SHORT_MASK;
+                int next = start + CENTRAL_DIRECTORY_HEADER_SIZE + nameLength + extraLength + commentLength;
+                if (next > centralDirectory.limit()) {
+                    return null;
+                }
+                if (isName(centralDirectory, start + CENTRAL_DIRECTORY_HEADER_SIZE, nameLength, nameBytes)) {
+                    return mapEntry(channel, centralDirectory, start);
+                }
+                centralDirectory.position(next);
+            }
+            return null;
+        }
+    }
+
+    private static ByteBuffer readCentralDirectory(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        int tailSize = (int) Math.min(fileSize, END_OF_CENTRAL_DIRECTORY_SIZE + MAX_COMMENT_SIZE);
+        ByteBuffer tail = read(channel, fileSize - tailSize, tailSize);
+        if (tail == null) {
+            return null;
+        }
+        // The record is followed by a comment of variable length, search it backwards.
+        for (int offset = tailSize - END_OF_CENTRAL_DIRECTORY_SIZE; offset >= 0; offset--) {
+            if (tail.getInt(offset) != END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+                continue;
+            }
+            long size = tail.getInt(offset + EOCD_DIRECTORY_SIZE) & INT_MASK;
+            long position = tail.getInt(offset + EOCD_DIRECTORY_OFFSET) & INT_MASK;
+            if (size == ZIP64_MAGIC || position == ZIP64_MAGIC || position + size > fileSize) {
+                return null;
+            }
+            return read(channel, position, (int) size);
+        }
+        return null;
+    }
+
+    private static ByteBuffer mapEntry(FileChannel channel, ByteBuffer centralDirectory, int start)
+        throws IOException {
+        int flags = centralDirectory.getShort(start + CDH_FLAGS) & SHORT_MASK;
+        int method = centralDirectory.getShort(start + CDH_METHOD) & SHORT_MASK;
+        long compressedSize = centralDirectory.getInt(start + CDH_COMPRESSED_SIZE) & INT_MASK;
+        long size = centralDirectory.getInt(start + CDH_SIZE) & INT_MASK;
+        long localHeaderOffset = centralDirectory.getInt(start + CDH_LOCAL_HEADER_OFFSET) & INT_MASK;
+        if (method != METHOD_STORED || (flags & FLAG_ENCRYPTED) != 0 || compressedSize != size
+            || size == ZIP64_MAGIC || localHeaderOffset == ZIP64_MAGIC) {
+            return null;
+        }
+        ByteBuffer localHeader = read(channel, localHeaderOffset, LOCAL_HEADER_SIZE);
+        if (localHeader == null || localHeader.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            return null;
+        }
+        // The extra field of the local header may differ from the one in the central directory.
+        long dataOffset = localHeaderOffset + LOCAL_HEADER_SIZE + (localHeader.getShort(LH_NAME_LENGTH) & SHORT_MASK)
+            + (localHeader.getShort(LH_EXTRA_LENGTH) & SHORT_MASK);
+        if (dataOffset + size > channel.size()) {
+            return null;
+        }
+        ContactShieldLog.d(TAG, "Map stored entry of " + size + " bytes");
+        // The mapping stays valid after the channel is closed.
+        return channel.map(FileChannel.MapMode.READ_ONLY, dataOffset, size);
+    }
+
+    private static boolean isName(ByteBuffer buffer, int offset, int length, byte[] name) {
+        if (length != name.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(offset + i) != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                return null;
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
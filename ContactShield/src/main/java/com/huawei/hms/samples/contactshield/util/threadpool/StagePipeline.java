@@ -0,0 +1,456 @@
+/*
+ * Copyright 2020. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.huawei.hms.samples.contactshield.util.threadpool;
+
+import com.huawei.hms.samples.contactshield.util.ContactShieldLog;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pipeline of stages connected by bounded channels. The stages run at the same time, each on its own workers, and
+ * a stage whose output channel is full waits for the next stage, so the items in flight are bounded.
+ * The source and the stages run on the pipeline threads, the sink runs on the thread calling run().
+ * If any stage fails, the whole pipeline is aborted. run() returns only when every worker has stopped, so the
+ * state shared with the stages can be released by the caller.
+ *
+ * @since 2020-10-23
+ */
+public final class StagePipeline {
+    private static final String TAG = "StagePipeline";
+
+    // Marks the end of a channel, one for each consumer worker.
+    private static final Object END = new Object();
+
+    private static final long NS_TO_MS = 1000L * 1000;
+
+    private static final int PERCENT = 100;
+
+    private final String mName;
+
+    private final List<StageRunner> mRunners = new ArrayList<>();
+
+    private final List<Channel<?>> mChannels = new ArrayList<>();
+
+    // Threads running a worker, interrupted by abort(). A worker may abort the pipeline while the others are still
+    // being started.
+    private final Set<Thread> mWorkerThreads = new HashSet<>();
+
+    private final AtomicBoolean mAborted = new AtomicBoolean(false);
+
+    private StageRunner mSinkRunner;
+
+    private long mElapsedNs;
+
+    public StagePipeline(String name) {
+        mName = name;
+    }
+
+    /**
+     * Add the first stage, which produces the items by itself
+     *
+     * @param name name of the stage
+     * @param capacity max number of items waiting in the output channel
+     * @param source producer of the items
+     * @return output channel
+     */
+    public <O> Channel<O> addSource(String name, int capacity, Source<O> source) {
+        Channel<O> output = newChannel(capacity);
+        StageStats stats = new StageStats(name, 1);
+        mRunners.add(new StageRunner(stats, null, output) {
+            @Override
+            void process(Object item, Worker worker) throws Exception {
+                source.produce(worker.getEmitter(output));
+            }
+        });
+        return output;
+    }
+
+    /**
+     * Add a stage which transforms the items of input
+     *
+     * @param name name of the stage
+     * @param parallelism number of workers of the stage
+     * @param input output channel of the previous stage
+     * @param capacity max number of items waiting in the output channel
+     * @param stage transformer of the items
+     * @return output channel
+     */
+    public <I, O> Channel<O> addStage(String name, int parallelism, Channel<I> input, int capacity,
+        Stage<I, O> stage) {
+        Channel<O> output = newChannel(capacity);
+        StageStats stats = new StageStats(name, Math.max(1, parallelism));
+        mRunners.add(new StageRunner(stats, input, output) {
+            @Override
+            @SuppressWarnings("unchecked")
+            void process(Object item, Worker worker) throws Exception {
+                stage.process((I) item, worker.getEmitter(output));
+            }
+        });
+        return output;
+    }
+
+    /**
+     * Add the last stage, which consumes the items of input on the thread calling run()
+     *
+     * @param name name of the stage
+     * @param input output channel of the previous stage
+     * @param sink consumer of the items
+     */
+    public <I> void addSink(String name, Channel<I> input, Sink<I> sink) {
+        mSinkRunner = new StageRunner(new StageStats(name, 1), input, null) {
+            @Override
+            @SuppressWarnings("unchecked")
+            void process(Object item, Worker worker) throws Exception {
+                sink.consume((I) item);
+            }
+        };
+    }
+
+    /**
+     * Run all the stages and wait for them
+     *
+     * @return false if any stage failed and the pipeline was aborted
+     */
+    public boolean run() {
+        long startTime = System.nanoTime();
+        int workerNum = 0;
+        for (StageRunner runner : mRunners) {
+            workerNum += runner.mStats.mParallelism;
+        }
+        // Counted down by each worker when it stops, whether it ran or not.
+        CountDownLatch stopped = new CountDownLatch(workerNum);
+        int startedNum = 0;
+        try {
+            for (StageRunner runner : mRunners) {
+                for (int i = 0; i < runner.mStats.mParallelism; i++) {
+                    ThreadExec.submitBlockingTask(TAG, () -> {
+                        try {
+                            runPoolWorker(runner);
+                        } finally {
+                            stopped.countDown();
+                        }
+                        return null;
+                    });
+                    startedNum++;
+                }
+            }
+        } catch (RejectedExecutionException e) {
+            ContactShieldLog.e(TAG, "Start pipeline " + mName + " rejected");
+            abort();
+        }
+        for (int i = startedNum; i < workerNum; i++) {
+            stopped.countDown();
+        }
+        if (!mAborted.get() && mSinkRunner != null) {
+            mSinkRunner.runWorker();
+        }
+        awaitWorkers(stopped);
+        mElapsedNs = System.nanoTime() - startTime;
+        return !mAborted.get();
+    }
+
+    private void runPoolWorker(StageRunner runner) {
+        synchronized (mWorkerThreads) {
+            if (mAborted.get()) {
+                return;
+            }
+            mWorkerThreads.add(Thread.currentThread());
+        }
+        try {
+            runner.runWorker();
+        } finally {
+            synchronized (mWorkerThreads) {
+                mWorkerThreads.remove(Thread.currentThread());
+            }
+            // The interrupt of abort() must not leak to the next task of the pool thread.
+            Thread.interrupted();
+        }
+    }
+
+    private void awaitWorkers(CountDownLatch stopped) {
+        // A worker which can not be interrupted, such as one waiting for the fork/join pool, is waited for too.
+        boolean isInterrupted = false;
+        while (true) {
+            try {
+                stopped.await();
+                break;
+            } catch (InterruptedException e) {
+                ContactShieldLog.e(TAG, "Pipeline " + mName + " interrupted");
+                abort();
+                isInterrupted = true;
+            }
+        }
+        if (isInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * How occupied each stage was during run(). A stage mostly starved waits for the previous stage, a stage
+     * mostly blocked waits for the next stage, a busy stage is the bottleneck.
+     *
+     * @return report of the stages
+     */
+    public String getReport() {
+        StringBuilder builder = new StringBuilder(String.format(Locale.ENGLISH, "Pipeline %s in %d ms",
+            mName, mElapsedNs / NS_TO_MS));
+        for (StageRunner runner : mRunners) {
+            builder.append(", ").append(runner.mStats.toString(mElapsedNs));
+        }
+        if (mSinkRunner != null) {
+            builder.append(", ").append(mSinkRunner.mStats.toString(mElapsedNs));
+        }
+        return builder.toString();
+    }
+
+    private <T> Channel<T> newChannel(int capacity) {
+        Channel<T> channel = new Channel<>(Math.max(1, capacity));
+        mChannels.add(channel);
+        return channel;
+    }
+
+    private void abort() {
+        if (!mAborted.compareAndSet(false, true)) {
+            return;
+        }
+        ContactShieldLog.w(TAG, "Abort pipeline " + mName);
+        synchronized (mWorkerThreads) {
+            for (Thread thread : mWorkerThreads) {
+                thread.interrupt();
+            }
+        }
+        // Wake up the sink, it checks mAborted after each item.
+        for (Channel<?> channel : mChannels) {
+            channel.mQueue.clear();
+            channel.mQueue.offer(END);
+        }
+    }
+
+    /**
+     * Bounded channel between two stages
+     */
+    public static final class Channel<T> {
+        private final BlockingQueue<Object> mQueue;
+
+        private final AtomicInteger mOpenProducers = new AtomicInteger();
+
+        private int mConsumerNum;
+
+        private Channel(int capacity) {
+            mQueue = new ArrayBlockingQueue<>(capacity);
+        }
+    }
+
+    /**
+     * Producer of the items of the first stage
+     */
+    public interface Source<O> {
+        /**
+         * Produce all the items
+         *
+         * @param output receiver of the items
+         * @throws Exception if the stage fails, then the pipeline is aborted
+         */
+        void produce(Emitter<O> output) throws Exception;
+    }
+
+    /**
+     * Transformer of a stage, it may emit any number of items for each input item
+     */
+    public interface Stage<I, O> {
+        /**
+         * Process an item
+         *
+         * @param item input item
+         * @param output receiver of the output items
+         * @throws Exception if the stage fails, then the pipeline is aborted
+         */
+        void process(I item, Emitter<O> output) throws Exception;
+    }
+
+    /**
+     * Consumer of the items of the last stage
+     */
+    public interface Sink<I> {
+        /**
+         * Consume an item
+         *
+         * @param item input item
+         * @throws Exception if the stage fails, then the pipeline is aborted
+         */
+        void consume(I item) throws Exception;
+    }
+
+    /**
+     * Receiver of the items of a stage
+     */
+    public interface Emitter<T> {
+        /**
+         * Pass an item to the next stage, wait while the channel is full
+         *
+         * @param item item
+         * @return false if the pipeline is aborted, then the item is dropped and the stage should stop
+         */
+        boolean emit(T item);
+    }
+
+    private static class StageStats {
+        private final String mName;
+
+        private final int mParallelism;
+
+        private final AtomicLong mItemNum = new AtomicLong();
+
+        private final AtomicLong mWorkNs = new AtomicLong();
+
+        private final AtomicLong mStarvedNs = new AtomicLong();
+
+        private final AtomicLong mBlockedNs = new AtomicLong();
+
+        StageStats(String name, int parallelism) {
+            mName = name;
+            mParallelism = parallelism;
+        }
+
+        private String toString(long elapsedNs) {
+            // Percentages of the time of all the workers of the stage.
+            long totalNs = Math.max(1, elapsedNs * mParallelism);
+            long busyNs = mWorkNs.get() - mStarvedNs.get() - mBlockedNs.get();
+            return String.format(Locale.ENGLISH, "%s x%d: %d items, busy %d%%, starved %d%%, blocked %d%%",
+                mName, mParallelism, mItemNum.get(), busyNs * PERCENT / totalNs,
+                mStarvedNs.get() * PERCENT / totalNs, mBlockedNs.get() * PERCENT / totalNs);
+        }
+    }
+
+    private abstract class StageRunner {
+        private final StageStats mStats;
+
+        private final Channel<?> mInput;
+
+        private final Channel<?> mOutput;
+
+        StageRunner(StageStats stats, Channel<?> input, Channel<?> output) {
+            mStats = stats;
+            mInput = input;
+            mOutput = output;
+            if (input != null) {
+                input.mConsumerNum += stats.mParallelism;
+            }
+            if (output != null) {
+                output.mOpenProducers.addAndGet(stats.mParallelism);
+            }
+        }
+
+        abstract void process(Object item, Worker worker) throws Exception;
+
+        private void runWorker() {
+            // Items are counted when they are taken, or when they are emitted by the source.
+            Worker worker = new Worker(mStats, mInput == null);
+            long startTime = System.nanoTime();
+            try {
+                if (mInput == null) {
+                    process(null, worker);
+                } else {
+                    consume(worker);
+                }
+                if (!mAborted.get()) {
+                    closeOutput(worker);
+                }
+            } catch (InterruptedException e) {
+                // Usually interrupted by abort(), otherwise the thread calling run() is interrupted.
+                abort();
+                Thread.currentThread().interrupt();
+            } catch (Throwable e) {
+                // Even an error such as OutOfMemoryError aborts, or the next stage would wait for this one forever.
+                ContactShieldLog.e(TAG, "Stage " + mStats.mName + " exception: " + e);
+                abort();
+            } finally {
+                mStats.mWorkNs.addAndGet(System.nanoTime() - startTime);
+            }
+        }
+
+        private void consume(Worker worker) throws Exception {
+            while (true) {
+                long waitTime = System.nanoTime();
+                Object item = mInput.mQueue.take();
+                mStats.mStarvedNs.addAndGet(System.nanoTime() - waitTime);
+                if (item == END || mAborted.get()) {
+                    return;
+                }
+                process(item, worker);
+                mStats.mItemNum.incrementAndGet();
+            }
+        }
+
+        private void closeOutput(Worker worker) throws InterruptedException {
+            if (mOutput == null || mOutput.mOpenProducers.decrementAndGet() > 0) {
+                return;
+            }
+            // The last worker writing to the channel tells every consumer worker that it ends.
+            for (int i = 0; i < mOutput.mConsumerNum; i++) {
+                worker.put(mOutput, END);
+            }
+        }
+    }
+
+    private final class Worker {
+        private final StageStats mStats;
+
+        private final boolean mIsCountingEmitted;
+
+        Worker(StageStats stats, boolean isCountingEmitted) {
+            mStats = stats;
+            mIsCountingEmitted = isCountingEmitted;
+        }
+
+        private <O> Emitter<O> getEmitter(Channel<O> output) {
+            return item -> {
+                if (mAborted.get()) {
+                    return false;
+                }
+                try {
+                    put(output, item);
+                    if (mIsCountingEmitted) {
+                        mStats.mItemNum.incrementAndGet();
+                    }
+                    return true;
+                } catch (InterruptedException e) {
+                    // Interrupted by abort(), keep the flag for the stage to stop.
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            };
+        }
+
+        private void put(Channel<?> channel, Object item) throws InterruptedException {
+            long waitTime = System.nanoTime();
+            channel.mQueue.put(item);
+            mStats.mBlockedNs.addAndGet(System.nanoTime() - waitTime);
+        }
+    }
+}
@@ -15,7 +15,12 @@
  */
 package com.huawei.hms.samples.contactshield.util.threadpool;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -30,10 +35,26 @@ public final class ThreadExec {
     private static final int THREAD_MIN_DEFAULT = 1;
     private static final int THREAD_MAX_LIMIT = 16;
 
+    // Flash storage gains little from more concurrent reads.
+    private static final int THREAD_IO_LIMIT = 2;
+
+    // A signature is checked per key file, beside the decoding of the file.
+    private static final int THREAD_VERIFY_LIMIT = 2;
+
     private static ThreadPoolExecutor sCoreExecutor;
 
     private static ThreadPoolExecutor sSeqTaskExecutor;
 
+    private static ThreadPoolExecutor sBackgroundSeqExecutor;
+
+    private static ForkJoinPool sParallelExecutor;
+
+    private static ThreadPoolExecutor sIoExecutor;
+
+    private static ThreadPoolExecutor sBlockingExecutor;
+
+    private static ThreadPoolExecutor sVerifyExecutor;
+
     static {
         initExecutor();
     }
@@ -43,9 +64,30 @@ public final class ThreadExec {
                 TimeUnit.SECONDS, new LinkedBlockingQueue<>());
         sSeqTaskExecutor.allowCoreThreadTimeOut(true);
 
+        // Long sequence tasks, kept off the threads handling the scans and the BLE control.
+        sBackgroundSeqExecutor = new ThreadPoolExecutor(0, THREAD_MIN_DEFAULT, DEFAULT_KEEP_ALIVE_TIME,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        sBackgroundSeqExecutor.allowCoreThreadTimeOut(true);
+
         sCoreExecutor = new ThreadPoolExecutor(THREAD_MIN_DEFAULT, THREAD_MAX_LIMIT, DEFAULT_KEEP_ALIVE_TIME,
                 TimeUnit.SECONDS, new LinkedBlockingQueue<>());
         sCoreExecutor.allowCoreThreadTimeOut(true);
+
+        // CPU bound tasks, one worker per core.
+        sParallelExecutor = new ForkJoinPool(Math.max(THREAD_MIN_DEFAULT,
+                Math.min(Runtime.getRuntime().availableProcessors(), THREAD_MAX_LIMIT)));
+
+        sIoExecutor = new ThreadPoolExecutor(THREAD_IO_LIMIT, THREAD_IO_LIMIT, DEFAULT_KEEP_ALIVE_TIME,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        sIoExecutor.allowCoreThreadTimeOut(true);
+
+        sVerifyExecutor = new ThreadPoolExecutor(THREAD_VERIFY_LIMIT, THREAD_VERIFY_LIMIT, DEFAULT_KEEP_ALIVE_TIME,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        sVerifyExecutor.allowCoreThreadTimeOut(true);
+
+        // Tasks waiting for each other must not queue behind each other, each one gets its own thread.
+        sBlockingExecutor = new ThreadPoolExecutor(0, THREAD_MAX_LIMIT, DEFAULT_KEEP_ALIVE_TIME,
+                TimeUnit.SECONDS, new SynchronousQueue<>());
     }
 
     /**
@@ -65,4 +107,78 @@ public final class ThreadExec {
     public static void execSeqTask(String moduleName, Runnable task) {
         sSeqTaskExecutor.execute(new TaskWrapper(task));
     }
-}
\ No newline at end of file
+
+    /**
+     * Run long sequence task in background, such as matching the scan data flushed to database
+     *
+     * @param task task
+     */
+    public static void execBackgroundSeqTask(String moduleName, Runnable task) {
+        sBackgroundSeqExecutor.execute(new TaskWrapper(task));
+    }
+
+    /**
+     * Get the number of workers to run parallel task
+     *
+     * @return parallelism
+     */
+    public static int getParallelism() {
+        return sParallelExecutor.getParallelism();
+    }
+
+    /**
+     * Run CPU bound task on the fork/join pool and wait for the result.
+     * Exceptions thrown by the task are rethrown to the caller.
+     *
+     * @param task task
+     * @return result of the task
+     */
+    public static <T> T invokeParallelTask(ForkJoinTask<T> task) {
+        return sParallelExecutor.invoke(task);
+    }
+
+    /**
+     * Run CPU bound task on the fork/join pool and get its result later.
+     * Exceptions thrown by the task are delivered by the future.
+     *
+     * @param task task
+     * @return future of the result
+     */
+    public static <T> Future<T> submitParallelTask(String moduleName, Callable<T> task) {
+        return sParallelExecutor.submit(task);
+    }
+
+    /**
+     * Run IO bound task, such as reading a file or loading the scan data of a day, and get its result later.
+     * Exceptions thrown by the task are delivered by the future.
+     *
+     * @param task task
+     * @return future of the result
+     */
+    public static <T> Future<T> submitIoTask(String moduleName, Callable<T> task) {
+        return sIoExecutor.submit(task);
+    }
+
+    /**
+     * Run signature verification task, so it does not wait behind the decoding on the fork/join pool.
+     * Exceptions thrown by the task are delivered by the future.
+     *
+     * @param task task
+     * @return future of the result
+     */
+    public static <T> Future<T> submitVerifyTask(String moduleName, Callable<T> task) {
+        return sVerifyExecutor.submit(task);
+    }
+
+    /**
+     * Run task which waits for other tasks most of its time, such as a stage of StagePipeline.
+     * The task is rejected if all the threads are busy.
+     * Exceptions thrown by the task are delivered by the future.
+     *
+     * @param task task
+     * @return future of the result
+     */
+    public static <T> Future<T> submitBlockingTask(String moduleName, Callable<T> task) {
+        return sBlockingExecutor.submit(task);
+    }
+}